@@ -0,0 +1,205 @@
+/* This file contains a benchmark of the rate at which the JokeServer's listening sockets accept new connections, for
+ * different numbers of acceptors (see Listeners.java). It opens the listening sockets on a free port exactly as the
+ * server does, with one thread per acceptor accepting and immediately closing each connection, and connector
+ * threads opening connections to it as fast as they can. Only the accept path is measured: no request is read, so
+ * the numbers are not limited by the workers. Options are key=value pairs, like the server's:
+ *
+ * > java AcceptBench
+ * > java AcceptBench acceptors=1,2,4,8 connectors=16 backlog=128 measureMillis=5000
+ *
+ *   acceptors      - the numbers of acceptors to compare (1,2,4, and the number of cores if more)
+ *   connectors     - threads opening connections, each one after the other (twice the number of cores, at least 4)
+ *   backlog        - the accept queue length of each listening socket (128)
+ *   warmupMillis   - how long each run goes before measuring (1000)
+ *   measureMillis  - how long each run is measured for (3000)
+ *
+ * A connection counts once the connector has seen the server close it, i.e. once it has been accepted. For each
+ * number of acceptors the benchmark reports the connections per second, the time from connect() to that close,
+ * the connections that failed or timed out (after 2 seconds), the listen queue overflows of the host during the run (Linux only, see
+ * Metrics.listenQueueOverflows()) and how evenly the connections were spread over the acceptors. Connectors close
+ * with SO_LINGER 0, so the run leaves no sockets in TIME_WAIT behind to use up the local ports.
+ */
+
+//Import the Java libraries for input/output, networking and atomic counters
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* This class represents the benchmark and its options. */
+class AcceptBench {
+
+	int[] acceptorCounts = defaultAcceptors();
+	int connectors = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	int backlog = 128;
+	int warmupMillis = 1000;
+	int measureMillis = 3000;
+
+	static final int TIMEOUT_MILLIS = 2000;	//How long a connector waits to connect, and then to be accepted
+
+	//The state of the run in progress, read by the connector threads
+	volatile boolean running;
+	volatile boolean measuring;
+	final AtomicLong connected = new AtomicLong();	//Connections accepted while measuring
+	final AtomicLong failed = new AtomicLong();	//Connections that failed while measuring
+	LatencyHistogram connectTime;	//From connect() to the server's close, while measuring
+
+	//Returns 1, 2, 4 and the number of cores if that is more than 4
+	private static int[] defaultAcceptors() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		return cores > 4 ? new int[] { 1, 2, 4, cores } : new int[] { 1, 2, 4 };
+	}
+
+	//Parses the key=value arguments described above, throwing an IllegalArgumentException for a bad one
+	static AcceptBench parse(String args[]) {
+		AcceptBench bench = new AcceptBench();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+
+			if (key.equals("acceptors")) {
+				String[] parts = value.split(",");
+				bench.acceptorCounts = new int[parts.length];
+				for (int i = 0; i < parts.length; i++)
+					bench.acceptorCounts[i] = ServerConfig.positiveInt(key, parts[i]);
+			} else if (key.equals("connectors"))
+				bench.connectors = ServerConfig.positiveInt(key, value);
+			else if (key.equals("backlog"))
+				bench.backlog = ServerConfig.positiveInt(key, value);
+			else if (key.equals("warmupMillis"))
+				bench.warmupMillis = ServerConfig.nonNegativeInt(key, value);
+			else if (key.equals("measureMillis"))
+				bench.measureMillis = ServerConfig.positiveInt(key, value);
+			else
+				throw new IllegalArgumentException("Unrecognized option: " + key);
+		}
+		return bench;
+	}
+
+	public static void main(String args[]) throws Exception {
+		AcceptBench bench;
+		try {
+			bench = parse(args);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return;
+		}
+		bench.run();
+	}
+
+	//Runs the benchmark once for every number of acceptors, printing one line each
+	void run() throws IOException, InterruptedException {
+		System.out.println("SO_REUSEPORT " + (Listeners.REUSE_PORT != null ? "is" : "is not") + " available; "
+				+ connectors + " connectors, backlog " + backlog + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.printf("%9s %8s %12s %10s %10s %10s %8s %10s %14s%n", "acceptors", "sockets", "conn/sec", "p50 ms",
+				"p99 ms", "max ms", "failed", "overflows", "spread");
+		for (int acceptors : acceptorCounts)
+			measure(acceptors);
+	}
+
+	/* Runs the connectors against the given number of acceptors for the warmup and then the measurement, and
+	 * prints the results.
+	 */
+	private void measure(int acceptors) throws IOException, InterruptedException {
+		final ServerSocketChannel[] listeners = Listeners.open(0, backlog, acceptors);
+		final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				((InetSocketAddress) listeners[0].getLocalAddress()).getPort());
+		final long[] accepted = new long[acceptors];	//Connections accepted by each acceptor while measuring
+		connected.set(0);
+		failed.set(0);
+		connectTime = new LatencyHistogram();
+		running = true;
+		measuring = false;
+
+		//The acceptors accept from their socket until it is closed, closing every connection right away
+		Thread[] acceptorThreads = new Thread[acceptors];
+		for (int i = 0; i < acceptors; i++) {
+			final int index = i;
+			acceptorThreads[i] = new Thread(new Runnable() {
+				public void run() {
+					ServerSocketChannel listener = listeners[index % listeners.length];
+					try {
+						while (true) {
+							SocketChannel chan = listener.accept();
+							chan.close();
+							if (measuring)
+								accepted[index]++;
+						}
+					} catch (IOException ioe) {
+						//The listening socket was closed at the end of the run
+					}
+				}
+			}, "bench-acceptor-" + i);
+			acceptorThreads[i].start();
+		}
+
+		Thread[] connectorThreads = new Thread[connectors];
+		for (int i = 0; i < connectors; i++) {
+			connectorThreads[i] = new Thread(new Runnable() {
+				public void run() {
+					connect(address);
+				}
+			}, "bench-connector-" + i);
+			connectorThreads[i].start();
+		}
+
+		Thread.sleep(warmupMillis);
+		long[] overflowsBefore = Metrics.listenQueueOverflows();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(measureMillis);
+		measuring = false;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long[] overflowsAfter = Metrics.listenQueueOverflows();
+		running = false;
+		for (Thread t : connectorThreads)
+			t.join();
+		Listeners.close(listeners);
+		for (Thread t : acceptorThreads)
+			t.join();
+
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		long total = 0;
+		for (long n : accepted) {
+			min = Math.min(min, n);
+			max = Math.max(max, n);
+			total += n;
+		}
+		String spread = total == 0 ? "n/a" : String.format("%.0f%%-%.0f%%", 100.0 * min / total, 100.0 * max / total);
+		String overflows = overflowsBefore == null || overflowsAfter == null ? "n/a" : String.valueOf(overflowsAfter[0] - overflowsBefore[0]);
+		System.out.printf("%9d %8d %12.0f %10.3f %10.3f %10.3f %8d %10s %14s%n", acceptors, listeners.length,
+				connected.get() / seconds, connectTime.percentile(50) / 1e6, connectTime.percentile(99) / 1e6,
+				connectTime.percentile(100) / 1e6, failed.get(), overflows, spread);
+	}
+
+	/* Runs on a connector thread until the run ends: opens a connection, waits for the acceptor to close it, and
+	 * closes it with SO_LINGER 0, over and over. Both waits time out, since a connection the kernel could not queue
+	 * may otherwise wait for a minute of SYN retransmissions before it fails.
+	 */
+	private void connect(InetSocketAddress address) {
+		while (running) {
+			long begin = System.nanoTime();
+			try (Socket sock = new Socket()) {
+				sock.setSoLinger(true, 0);
+				sock.setSoTimeout(TIMEOUT_MILLIS);
+				sock.connect(address, TIMEOUT_MILLIS);
+				InputStream in = sock.getInputStream();
+				while (in.read() >= 0)
+					;	//The acceptor sends nothing, so this only returns once it has closed the connection
+				if (measuring) {
+					connected.incrementAndGet();
+					connectTime.record(System.nanoTime() - begin);
+				}
+			} catch (IOException ioe) {
+				if (measuring)
+					failed.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/* This file contains the JokeServer's admission control: what keeps an overloaded server answering quickly, by
+ * turning some requests away at once instead of letting every request wait longer.
+ *
+ * With admission=adaptive, the blocking engine only serves a request while fewer than a concurrency limit of
+ * requests are being served. The limit is not fixed: it follows the latency of the requests served, in the way of a
+ * gradient limiter. Every WINDOW_NANOS, the average latency of the requests answered in that window is compared
+ * with the lowest seen, the latency without queueing; while it stays within TOLERANCE times that, the limit grows by
+ * about its square root (if it was actually reached), and as latency rises above that the limit is cut in
+ * proportion, by at most half. The lowest latency drifts up by BASELINE_DRIFT per window, so that a lasting change
+ * in the work per request (larger batches, say) is taken as the new normal after a while, but an overload is not.
+ *
+ * A request takes its place in the limit once it has been read, and gives it back once its reply has been sent; a
+ * request arriving over the limit is answered BUSY on its connection. PINGs and connections waiting for their next
+ * request hold no place, so every place comes back within a request's deadlines, after which the latency of the
+ * requests served moves the limit again. A new connection arriving while the limit is reached is answered with a
+ * BUSY line by the accepting thread itself, which takes microseconds and no worker. The NIO engine is not limited:
+ * its connections hold no thread while they wait, and it serves each request on one of its few event loop threads,
+ * so it never has more requests in flight than it has loops.
+ *
+ * Closing such a connection right away would lose the BUSY line: the client has usually sent its request already,
+ * and a socket closed with unread input is reset, which makes the client drop what it has not read yet. So the
+ * server only shuts down its side, and one LingeringCloser thread reads and discards what the client sends until it
+ * closes too, or for at most LINGER_MILLIS.
+ *
+ * A BUSY response, from this class or from the RateLimiter (see RateLimiter.java), is a single "BUSY <millis>"
+ * line (see JokeProtocol.java), or the BUSY status followed by the millis in the binary protocol. A connection
+ * turned away at accept has not said which protocol it speaks yet, so it always gets the text line, followed by
+ * END_OF_RESPONSE for keep-alive clients; binary clients recognize it in place of the server's answer to their
+ * opening.
+ */
+
+//Import the Java libraries for buffers, text encoding, channels and atomic counters
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* This class represents the adaptive concurrency limit. tryAcquire() and release() are called around every
+ * request served, and sample() with the latency of every request, from any thread.
+ */
+class AdmissionControl {
+
+	static final int MIN_LIMIT = 4;	//The limit never drops below this many requests
+	static final int INITIAL_LIMIT = 20;	//The limit to start from, if maxWorkers is not lower
+	static final double TOLERANCE = 2.0;	//How many times the lowest latency may be reached before the limit is cut
+	static final double BASELINE_DRIFT = 1.005;	//How much the lowest latency rises per window, doubling in about 14 seconds
+	static final double SMOOTHING = 0.2;	//How much of the way to the new limit each window moves
+	static final long WINDOW_NANOS = 100_000_000L;	//How often the limit is updated, given MIN_SAMPLES requests
+	static final int MIN_SAMPLES = 10;
+
+	private final int maxLimit;	//maxWorkers, which the executor would enforce anyway
+	private final AtomicInteger inflight = new AtomicInteger();	//Requests being served
+	private final AtomicInteger peak = new AtomicInteger();	//The most requests served at once in this window
+	private volatile double limit;	//The current limit, of which the whole part counts
+	private final ByteBuffer busyReply;	//"BUSY <retryAfterMillis>" and END_OF_RESPONSE, for connections turned away
+	private final LingeringCloser closer;	//Closes the connections turned away once their clients have read the reply
+	final LongAdder rejected = new LongAdder();	//Requests turned away, with their connection or on it
+
+	//The latencies of the current window, and the lowest average latency of a window in nanoseconds (0 until the first window)
+	private final LongAdder windowSum = new LongAdder();
+	private final LongAdder windowCount = new LongAdder();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private double baseline = 0;	//Only written by the thread that closes a window
+
+	/* Constructor, takes the highest limit and what to tell the connections turned away, and starts the thread
+	 * closing them
+	 */
+	AdmissionControl(int maxLimit, int retryAfterMillis) throws IOException {
+		this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+		this.limit = Math.min(this.maxLimit, INITIAL_LIMIT);
+		String line = JokeProtocol.BUSY + retryAfterMillis + System.lineSeparator();
+		this.busyReply = ByteBuffer.wrap((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		this.closer = new LingeringCloser();
+		Thread thread = new Thread(closer, "admission-closer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* Returns true, counting the connection as turned away, if the limit has been reached, so that a new connection
+	 * can be answered BUSY before it takes a worker. A connection takes no place itself; its requests do.
+	 */
+	boolean full() {
+		if (inflight.get() < (int) limit)
+			return false;
+		rejected.increment();
+		return true;
+	}
+
+	//Takes a place for a request and returns true, or returns false if the limit has been reached
+	boolean tryAcquire() {
+		while (true) {
+			int n = inflight.get();
+			if (n >= (int) limit) {
+				rejected.increment();
+				return false;
+			}
+			if (inflight.compareAndSet(n, n + 1)) {
+				if (n + 1 > peak.get())
+					peak.set(n + 1);	//A lost update only makes the peak a little lower, see update()
+				return true;
+			}
+		}
+	}
+
+	//Gives back the place of a request that has been answered, or whose connection has been closed
+	void release() {
+		inflight.decrementAndGet();
+	}
+
+	//Records the latency of one request, and updates the limit if this closes the current window
+	void sample(long nanos) {
+		windowSum.add(nanos);
+		windowCount.increment();
+		long start = windowStart.get();
+		long now = System.nanoTime();
+		if (now - start >= WINDOW_NANOS && windowCount.sum() >= MIN_SAMPLES && windowStart.compareAndSet(start, now))
+			update();
+	}
+
+	/* Closes the window: lowers the baseline to the window's average latency if that is lower, and moves the limit
+	 * towards limit * gradient + sqrt(limit), where the gradient is TOLERANCE * baseline / window latency, between 0.5 and 1.
+	 * The square root lets the limit grow while latency holds, but only if the window came near the limit, since a
+	 * lightly loaded server says nothing about how much more it could take.
+	 */
+	private void update() {
+		long count = windowCount.sumThenReset();
+		long sum = windowSum.sumThenReset();
+		int windowPeak = peak.getAndSet(inflight.get());
+		if (count == 0)
+			return;
+		double latency = (double) sum / count;
+		baseline = baseline == 0 ? latency : Math.min(latency, baseline * BASELINE_DRIFT);
+
+		double current = limit;
+		if (windowPeak < current / 2)
+			return;
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baseline / latency));
+		double target = current * gradient + Math.sqrt(current);
+		limit = Math.max(MIN_LIMIT, Math.min(maxLimit, current * (1 - SMOOTHING) + target * SMOOTHING));
+	}
+
+	//Returns the current limit
+	int limit() {
+		return (int) limit;
+	}
+
+	//Returns the number of requests being served
+	int inflight() {
+		return inflight.get();
+	}
+
+	/* Answers a connection turned away with the BUSY line and shuts down the server's side, on the accepting
+	 * thread, then hands it to the LingeringCloser. The few bytes fit in the new socket's empty send buffer, so the
+	 * write does not wait.
+	 */
+	void turnAway(SocketChannel chan) {
+		long start = System.nanoTime();
+		try {
+			chan.configureBlocking(false);
+			chan.write(busyReply.duplicate());
+			chan.shutdownOutput();
+			closer.add(chan);
+		} catch (IOException ioe) {
+			//The client is gone already; all that is left is to close the socket
+			NioServer.closeQuietly(chan);
+			Metrics.closed();
+		}
+		Metrics.rejectStage.record(System.nanoTime() - start);
+	}
+
+	/* Adds a BUSY response to the reply: the BUSY status and the millis to a binary response frame, otherwise the
+	 * "BUSY <millis>" line.
+	 */
+	static void addBusy(long retryAfterMillis, ReplyBuffer reply) {
+		if (reply.frame >= 0) {
+			BinaryProtocol.status(reply, BinaryProtocol.BUSY);
+			int millis = reply.reserve(4);
+			reply.put(millis, 0, retryAfterMillis, 4);
+		} else {
+			reply.addText(ReplyBuffer.BUSY);
+			reply.addNumber(retryAfterMillis);
+			reply.addText(ReplyBuffer.LINE_END);
+		}
+	}
+}
+
+/* This class represents the thread that closes the connections turned away by the AdmissionControl, whose output
+ * has been shut down already. It reads and discards what their clients still send until they close the connection,
+ * or until LINGER_MILLIS have passed, and then closes them. This is what the NIO engine does for all connections,
+ * but with nothing to parse and nothing to answer.
+ */
+class LingeringCloser implements Runnable {
+
+	static final long LINGER_MILLIS = 1000;	//How long a client has to close the connection after the BUSY line
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();	//Not registered yet
+	private final ByteBuffer discard = ByteBuffer.allocate(4096);	//What the clients send is read into this and forgotten
+
+	//Constructor, opens the selector
+	LingeringCloser() throws IOException {
+		selector = Selector.open();
+	}
+
+	//Hands a non-blocking connection to this thread, from any thread
+	void add(SocketChannel chan) {
+		added.add(chan);
+		selector.wakeup();
+	}
+
+	/* Registers the connections added since the last round, with their deadline as the attachment, then reads from
+	 * those with input, and closes those whose client closed or whose deadline has passed.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select(LINGER_MILLIS / 4);
+				long now = System.currentTimeMillis();
+				SocketChannel chan;
+				while ((chan = added.poll()) != null) {
+					try {
+						chan.register(selector, SelectionKey.OP_READ, now + LINGER_MILLIS);
+					} catch (IOException ioe) {
+						close(chan);
+					}
+				}
+				Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+				while (ready.hasNext()) {
+					SelectionKey key = ready.next();
+					ready.remove();
+					drain(key);
+				}
+				for (SelectionKey key : selector.keys()) {
+					if (key.isValid() && now > (Long) key.attachment())
+						close((SocketChannel) key.channel());
+				}
+			} catch (IOException ioe) {
+				System.out.println(JokeServer.serverTag + "Admission closer error: " + ioe);
+			}
+		}
+	}
+
+	//Reads what the connection's client sent, closing the connection once the client has closed it
+	private void drain(SelectionKey key) {
+		SocketChannel chan = (SocketChannel) key.channel();
+		try {
+			int n;
+			do {
+				discard.clear();
+				n = chan.read(discard);
+			} while (n > 0);
+			if (n < 0)
+				close(chan);
+		} catch (IOException ioe) {
+			close(chan);
+		}
+	}
+
+	private static void close(SocketChannel chan) {
+		NioServer.closeQuietly(chan);
+		Metrics.closed();
+	}
+}
@@ -0,0 +1,71 @@
+/* This file contains the corpus holding its entries in memory, which is used for the JokeServer's built-in
+ * jokes/proverbs and by the benchmarks (see Corpus.java for the interface).
+ */
+
+//Import the Java libraries for buffers and character encodings
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* This class represents a corpus given as an array of strings, where each string is the tag followed by the body,
+ * as in the JokeServer's original hardcoded arrays. The entries are encoded one after the other into a single
+ * buffer when the corpus is created.
+ */
+class ArrayCorpus implements Corpus {
+
+	private final String[] entries;	//The entries, tag first
+	private final ByteBuffer encoded;	//The UTF-8 bytes of all entries, one after the other
+	private final int[] starts;	//Where each entry starts in 'encoded', plus the end of the last entry
+	private final int[] bodyStarts;	//Where each entry's body starts in 'encoded'
+	private final int maxEntryBytes;	//The length of the longest entry in 'encoded'
+
+	//Constructor, takes the entries. Throws an IllegalArgumentException if an entry is shorter than its tag
+	ArrayCorpus(String... entries) {
+		for (String entry : entries) {
+			if (entry.length() < TAG_LENGTH)
+				throw new IllegalArgumentException("Entry has no tag: " + entry);
+		}
+		this.entries = entries.clone();
+
+		starts = new int[entries.length + 1];
+		bodyStarts = new int[entries.length];
+		byte[][] tags = new byte[entries.length][];
+		byte[][] bodies = new byte[entries.length][];
+		for (int i = 0; i < entries.length; i++) {
+			tags[i] = tag(i).getBytes(StandardCharsets.UTF_8);
+			bodies[i] = body(i).getBytes(StandardCharsets.UTF_8);
+			bodyStarts[i] = starts[i] + tags[i].length;
+			starts[i + 1] = bodyStarts[i] + bodies[i].length;
+		}
+		encoded = ByteBuffer.allocate(starts[entries.length]);
+		int longest = 0;
+		for (int i = 0; i < entries.length; i++) {
+			encoded.put(tags[i]).put(bodies[i]);
+			longest = Math.max(longest, starts[i + 1] - starts[i]);
+		}
+		maxEntryBytes = longest;
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	public String tag(int i) {
+		return entries[i].substring(0, TAG_LENGTH);
+	}
+
+	public String body(int i) {
+		return entries[i].substring(TAG_LENGTH);
+	}
+
+	public int maxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	public void appendTag(int i, ReplyBuffer reply) {
+		reply.add(encoded, starts[i], bodyStarts[i] - starts[i]);
+	}
+
+	public void appendBody(int i, ReplyBuffer reply) {
+		reply.add(encoded, bodyStarts[i], starts[i + 1] - bodyStarts[i]);
+	}
+}
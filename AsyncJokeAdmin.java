@@ -0,0 +1,67 @@
+/* This file contains the administration counterpart of the AsyncJokeClient API (see AsyncJokeClient.java), for
+ * programs that switch servers' modes without running the console JokeClientAdmin.
+ */
+
+//Import the Java libraries for networking, text encoding and futures
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* This class represents the non-blocking counterpart of JokeClientAdmin.sendCommand(): each command opens a
+ * connection to the admin port on an event loop, and its future completes with the lines the server sent once the
+ * server closes the connection.
+ */
+class AsyncJokeAdmin {
+
+	private final ClientEventLoop[] loops;	//The threads driving the connections
+	private final boolean ownLoops;	//True if the loops were started by this admin client, so close() stops them
+	private final AtomicInteger next = new AtomicInteger();	//Picks the loop for the next command, round robin
+	private final int timeoutMillis;	//How long a command may take
+
+	//Constructor, with an event loop thread of its own and a 5 second timeout
+	AsyncJokeAdmin() {
+		this(ClientEventLoop.start(1), 5000, true);
+	}
+
+	//Constructor, takes the event loops to use (they may be shared with AsyncJokeClients) and the command timeout
+	AsyncJokeAdmin(ClientEventLoop[] loops, int timeoutMillis) {
+		this(loops, timeoutMillis, false);
+	}
+
+	private AsyncJokeAdmin(ClientEventLoop[] loops, int timeoutMillis, boolean ownLoops) {
+		this.loops = loops;
+		this.timeoutMillis = timeoutMillis;
+		this.ownLoops = ownLoops;
+	}
+
+	//Sends an admin command (see AdminWorker in JokeServer.java) to the admin port of the given server
+	CompletableFuture<Reply> command(String host, int port, String command) {
+		ClientEventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		ClientConnection conn = new ClientConnection(loop, new InetSocketAddress(host, port), false);
+		return conn.send((command + "\n").getBytes(StandardCharsets.UTF_8), timeoutMillis);
+	}
+
+	//Switches the server between joke and proverb mode
+	CompletableFuture<Reply> switchServerMode(String host, int port) {
+		return command(host, port, "TOGGLE");
+	}
+
+	//Asks the server for its mode and epoch, answered with "MODE <mode> <epoch>"
+	CompletableFuture<Reply> queryMode(String host, int port) {
+		return command(host, port, "MODE");
+	}
+
+	//Sets the server's mode if the epoch is higher than its own, answered with "OK MODE ..." or "STALE MODE ..."
+	CompletableFuture<Reply> setMode(String host, int port, boolean jokeMode, long epoch) {
+		return command(host, port, "SET " + (jokeMode ? "JOKE" : "PROVERB") + " " + epoch);
+	}
+
+	//Stops the event loops if this admin client started them
+	void close() {
+		if (ownLoops) {
+			for (ClientEventLoop loop : loops)
+				loop.stop();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/* This file contains a client API for programs that embed the JokeServer's clients instead of running the console
+ * JokeClient / JokeClientAdmin. Nothing in it is static: an AsyncJokeClient talks to one server and hands out any
+ * number of ClientIdentity objects (each a UUID and a name, i.e. one logical client), and every request returns a
+ * CompletableFuture straight away:
+ *
+ *   AsyncJokeClient client = new AsyncJokeClient("localhost", 4545);
+ *   ClientIdentity ann = client.newIdentity("Ann");
+ *   ann.next().thenAccept(new Consumer<Reply>() {
+ *       public void accept(Reply reply) { System.out.println(reply); }
+ *   });
+ *
+ * All identities share a few keep-alive connections (see JokeProtocol.java), on which requests are pipelined: a
+ * request is written as soon as it is made, unless the connection already has MAX_PIPELINED_BYTES of requests
+ * unanswered, in which case it waits on the client for earlier responses. The server's responses, which come back
+ * in order, complete the futures in order. The connections are driven by a small number of ClientEventLoop threads, which can be shared
+ * between clients (and with an AsyncJokeAdmin), so one JVM can drive thousands of logical clients with a handful of
+ * threads and sockets. The futures are completed on the event loop threads, so callbacks should not block.
+ *
+ * An AsyncJokeClient may instead be given the members of a cluster (see Cluster.java), in which case it keeps that
+ * many connections to every member and sends each request to the member owning its client, following a MOVED
+ * answer once if its member list is out of date (opening connections to a member it was not given if need be).
+ *
+ * Running this class on its own drives the given number of logical clients concurrently and reports the
+ * throughput and latency:
+ *
+ * > java AsyncJokeClient [server] [port] [clients] [requestsPerClient]
+ */
+
+//Import the Java libraries for networking, collections and concurrency
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/* This class represents a client of one server, or of a cluster. It is safe to use from any number of threads. */
+class AsyncJokeClient {
+
+	private final HashRing cluster;	//The cluster's members, or null for a client of one server
+	private final ClientEventLoop[] loops;	//The threads driving the connections
+	private final boolean ownLoops;	//True if the loops were started by this client, so close() stops them
+	private final ClientConnection[][] connections;	//The keep-alive connections of each member (only one without a cluster)
+	private final ConcurrentHashMap<String, ClientConnection[]> others = new ConcurrentHashMap<String, ClientConnection[]>();	//Of servers named by MOVED answers but not members
+	private final AtomicInteger next = new AtomicInteger();	//Picks the connection for the next request, round robin
+	private final int timeoutMillis;	//How long a request may wait for its response
+
+	//Constructor, with one event loop thread, 4 connections and a 5 second request timeout
+	AsyncJokeClient(String host, int port) {
+		this(host, port, ClientEventLoop.start(1), 4, 5000, true);
+	}
+
+	/* Constructor, takes the server, the event loops to use (see ClientEventLoop.start(), they may be shared with
+	 * other clients), the number of connections to spread requests over, and the request timeout.
+	 */
+	AsyncJokeClient(String host, int port, ClientEventLoop[] loops, int connections, int timeoutMillis) {
+		this(host, port, loops, connections, timeoutMillis, false);
+	}
+
+	/* Constructor for a cluster: takes its members (the ring is built as the servers build it, with the default
+	 * virtualNodes), the event loops, the number of connections to each member and the request timeout.
+	 */
+	AsyncJokeClient(HashRing cluster, ClientEventLoop[] loops, int connections, int timeoutMillis) {
+		this(cluster, cluster.hosts, cluster.ports, loops, connections, timeoutMillis, false);
+	}
+
+	private AsyncJokeClient(String host, int port, ClientEventLoop[] loops, int connections, int timeoutMillis, boolean ownLoops) {
+		this(null, new String[] { host }, new int[] { port }, loops, connections, timeoutMillis, ownLoops);
+	}
+
+	private AsyncJokeClient(HashRing cluster, String[] hosts, int[] ports, ClientEventLoop[] loops, int connections,
+			int timeoutMillis, boolean ownLoops) {
+		this.cluster = cluster;
+		this.loops = loops;
+		this.ownLoops = ownLoops;
+		this.timeoutMillis = timeoutMillis;
+		this.connections = new ClientConnection[hosts.length][connections];
+		for (int m = 0; m < hosts.length; m++) {
+			InetSocketAddress server = new InetSocketAddress(hosts[m], ports[m]);
+			for (int i = 0; i < connections; i++)
+				this.connections[m][i] = new ClientConnection(loops[(m * connections + i) % loops.length], server, true);
+		}
+	}
+
+	//Returns a new logical client with a random UUID and the given name
+	ClientIdentity newIdentity(String name) {
+		return new ClientIdentity(this, UUID.randomUUID().toString(), name);
+	}
+
+	//Returns a logical client with the given UUID and name, e.g. to carry on with a client's cycle
+	ClientIdentity identity(String uuid, String name) {
+		return new ClientIdentity(this, uuid, name);
+	}
+
+	/* Sends a request for 'count' jokes/proverbs for the given client and returns the future of its reply. The future
+	 * fails with an IOException if the connection fails or the reply takes longer than the timeout.
+	 */
+	CompletableFuture<Reply> request(String uuid, String name, int count) {
+		String message = uuid + "\n" + name + "\n";
+		if (count > 1)
+			message = JokeProtocol.BATCH + count + "\n" + message;
+		final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		if (cluster == null)
+			return send(0, bytes);
+
+		//Send the request to the member owning the client, and once more to another member if it answers MOVED
+		return send(cluster.ownerOf(uuid), bytes).thenCompose(new Function<Reply, CompletionStage<Reply>>() {
+			public CompletionStage<Reply> apply(Reply reply) {
+				String moved = JokeProtocol.parseMoved(reply.lines);
+				if (moved == null)
+					return CompletableFuture.completedFuture(reply);
+				int owner = cluster.indexOf(moved);
+				return owner >= 0 ? send(owner, bytes) : send(other(moved), bytes);
+			}
+		});
+	}
+
+	//Sends the request on the next connection to the member, round robin
+	private CompletableFuture<Reply> send(int member, byte[] request) {
+		return send(connections[member], request);
+	}
+
+	//Sends the request on the next of the connections, round robin
+	private CompletableFuture<Reply> send(ClientConnection[] conns, byte[] request) {
+		ClientConnection conn = conns[(next.getAndIncrement() & Integer.MAX_VALUE) % conns.length];
+		return conn.send(request, timeoutMillis);
+	}
+
+	//Returns the connections to a server which is not one of the members this client was given, opening them the first time
+	private ClientConnection[] other(String server) {
+		ClientConnection[] conns = others.get(server);
+		if (conns == null) {
+			int colon = server.lastIndexOf(':');
+			InetSocketAddress address = new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+			conns = new ClientConnection[connections[0].length];
+			for (int i = 0; i < conns.length; i++)
+				conns[i] = new ClientConnection(loops[i % loops.length], address, true);
+			ClientConnection[] raced = others.putIfAbsent(server, conns);
+			if (raced != null) {
+				for (ClientConnection conn : conns)
+					conn.close();
+				conns = raced;
+			}
+		}
+		return conns;
+	}
+
+	//Closes the connections, failing the requests still waiting, and stops the event loops if this client started them
+	void close() {
+		for (ClientConnection[] conns : connections) {
+			for (ClientConnection conn : conns)
+				conn.close();
+		}
+		for (ClientConnection[] conns : others.values()) {
+			for (ClientConnection conn : conns)
+				conn.close();
+		}
+		if (ownLoops) {
+			for (ClientEventLoop loop : loops)
+				loop.stop();
+		}
+	}
+
+	/* Drives 'clients' logical clients, each making 'requestsPerClient' requests one after the other (the next one
+	 * is made when the previous reply arrives), all clients at the same time, and reports throughput and latency.
+	 */
+	public static void main(String args[]) throws Exception {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 4545;
+		final int clients = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		final int requestsPerClient = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		AsyncJokeClient client = new AsyncJokeClient(host, port, ClientEventLoop.start(2), 8, 10000, true);
+		final CountDownLatch done = new CountDownLatch(clients);
+		final AtomicLong failures = new AtomicLong();
+		final long[] latencies = new long[clients * requestsPerClient];
+		final AtomicInteger recorded = new AtomicInteger();
+
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final ClientIdentity identity = client.newIdentity("Client" + c);
+			//Each client chains its requests: every reply triggers the next request
+			new Object() {
+				int left = requestsPerClient;
+				void go() {
+					final long sent = System.nanoTime();
+					identity.next().whenComplete(new BiConsumer<Reply, Throwable>() {
+						public void accept(Reply reply, Throwable failure) {
+							if (failure != null)
+								failures.incrementAndGet();
+							else
+								latencies[recorded.getAndIncrement()] = System.nanoTime() - sent;
+							if (--left > 0)
+								go();
+							else
+								done.countDown();
+						}
+					});
+				}
+			}.go();
+		}
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		client.close();
+
+		int n = recorded.get();
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		System.out.printf("%d clients x %d requests: %.0f requests/sec, %d failed%n", clients, requestsPerClient,
+				clients * (double) requestsPerClient / seconds, failures.get());
+		if (n > 0)
+			System.out.printf("Latency ms: p50 %.2f, p99 %.2f, max %.2f%n", sorted[n / 2] / 1e6, sorted[(int) (n * 0.99)] / 1e6,
+					sorted[n - 1] / 1e6);
+	}
+}
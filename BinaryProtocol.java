@@ -0,0 +1,317 @@
+/* This file contains the binary protocol spoken between the JokeClient and the JokeServer as an alternative to the
+ * text protocols of JokeProtocol.java. It is negotiated on the client port itself: a text request always starts
+ * with an ASCII character, so a connection whose first byte is MAGIC speaks the binary protocol, and every other
+ * connection is served as before, which keeps old JokeClients working.
+ *
+ * The client opens with MAGIC and the highest protocol VERSION it speaks. The server answers with MAGIC, the
+ * version both sides speak (the lower of the two), and its server tag as one length byte and the tag's UTF-8 bytes,
+ * so the client can print responses as the text protocol would. After that the connection is kept alive like a
+ * JOKE/1.1 connection, and requests may be pipelined the same way.
+ *
+ * Every request and response is a frame: a 4 byte length (big-endian, of the rest of the frame) followed by
+ *
+ *   request:   type (1 byte) | type-specific part
+ *     REQUEST  - the client's UUID (16 bytes, most significant first) | name (UTF-8, the rest of the frame)
+ *     BATCH    - count (2 bytes) | the client's UUID (16 bytes) | name (UTF-8, the rest of the frame)
+ *     PING     - nothing, answered with an empty OK response
+ *     ADMIN    - reserved: admin commands stay on the admin port, so a client port answers them with UNSUPPORTED
+ *
+ *   response:  status (1 byte) | status-specific part
+ *     OK       - the items, each: flags (1 byte, PROVERB and CYCLE_COMPLETED) | tag length (1 byte) | tag (UTF-8) |
+ *                body length (4 bytes) | body (UTF-8). Empty for PING
+ *     MOVED    - HOST:PORT of the cluster node owning the client (UTF-8, the rest of the frame, see Cluster.java)
+ *     BUSY     - the milliseconds to wait before trying again (4 bytes, see AdmissionControl.java)
+ *     BAD_REQUEST, UNSUPPORTED, TOO_LARGE - nothing
+ *
+ * A server turning a new connection away does not know its protocol yet, so it answers with the text BUSY line in
+ * place of its answer to the opening.
+ *
+ * The name is not echoed back: the client already knows it. A frame longer than MAX_REQUEST_FRAME_BYTES, or one
+ * too short for its type, is not a request at all and the server closes the connection.
+ *
+ * The same parts make up the datagrams of the UDP mode (see UdpServer.java).
+ *
+ * Running this class on its own prints the bytes a request and its response take on the wire with both protocols
+ * (see main()); HotPathBench's textParse and binaryParse benchmarks compare the cost of parsing them.
+ */
+
+//Import the Java libraries for input/output, text encoding, and the lines of a response
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/* This class holds the protocol constants, the client's encoding and decoding, and the server's framing of replies
+ * in a ReplyBuffer. Everything is static.
+ */
+class BinaryProtocol {
+
+	static final int MAGIC = 0xA5;	//First byte of a binary connection, never the first byte of a text one
+	static final int VERSION = 1;	//The highest version this code speaks
+
+	//Request types. MALFORMED is never sent; it is what a frame too short for its type parses to
+	static final int REQUEST = 1, BATCH = 2, PING = 3, ADMIN = 4, MALFORMED = -1;
+
+	//Response statuses. TOO_LARGE is only sent in the UDP mode (see UdpServer.java)
+	static final int OK = 0, MOVED = 1, BAD_REQUEST = 2, UNSUPPORTED = 3, TOO_LARGE = 4, BUSY = 5;
+
+	//Item flags
+	static final int PROVERB = 1, CYCLE_COMPLETED = 2;
+
+	static final int MAX_REQUEST_FRAME_BYTES = 1024;	//Longest request frame, without its length, the server accepts
+	static final int UUID_BYTES = 16;
+
+	/* This class holds one parsed request. Each connection keeps one and parses every request into it, so only the
+	 * name is created per request.
+	 */
+	static final class Request {
+		int type;
+		int count;	//The number of items asked for, 1 unless the request is a BATCH
+		long hi;	//The client's UUID, which is also its key in the client state store (see ClientStateStore.keyHigh())
+		long lo;
+		String name;
+	}
+
+	/* Parses the request frame of 'length' bytes at 'offset' (after its length prefix) into 'request'. A frame too
+	 * short for its type parses to MALFORMED, which is answered with BAD_REQUEST, after which the server closes the
+	 * connection. Unknown types parse, and are answered with UNSUPPORTED.
+	 */
+	static void parse(byte[] frame, int offset, int length, Request request) {
+		request.type = MALFORMED;
+		request.count = 1;
+		request.name = null;
+		if (length < 1)
+			return;
+		int type = frame[offset] & 0xFF;
+		int at = offset + 1;
+		int end = offset + length;
+		if (type == BATCH) {
+			if (end - at < 2)
+				return;
+			request.count = (frame[at] & 0xFF) << 8 | (frame[at + 1] & 0xFF);
+			at += 2;
+		}
+		if (type == REQUEST || type == BATCH) {
+			if (end - at < UUID_BYTES)
+				return;
+			request.hi = getLong(frame, at);
+			request.lo = getLong(frame, at + 8);
+			at += UUID_BYTES;
+			request.name = new String(frame, at, end - at, StandardCharsets.UTF_8);
+		}
+		request.type = type;
+	}
+
+	//Returns the 8 bytes at 'at', most significant first
+	static long getLong(byte[] bytes, int at) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = value << 8 | (bytes[at + i] & 0xFF);
+		return value;
+	}
+
+	//Returns the 4 bytes at 'at', most significant first
+	static int getInt(byte[] bytes, int at) {
+		return (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8 | (bytes[at + 3] & 0xFF);
+	}
+
+	/* Server side: adds the answer to the client's opening to the reply, i.e. MAGIC, the version both sides speak
+	 * and the server tag. Returns false if the client's version is not one this server speaks.
+	 */
+	static boolean addHello(int clientVersion, ReplyBuffer reply) {
+		if (clientVersion < 1)
+			return false;
+		int hello = reply.reserve(3);
+		reply.put(hello, 0, MAGIC, 1);
+		reply.put(hello, 1, Math.min(clientVersion, VERSION), 1);
+		reply.addText(ReplyBuffer.SERVER_TAG);
+		reply.put(hello, 2, reply.bytesFrom(hello + 1), 1);
+		return true;
+	}
+
+	/* Server side: adds the response frame to the parsed request to the reply. A REQUEST or BATCH is handled by
+	 * Worker.handleClient(), which adds the items with addItem() (or the MOVED status, see Cluster.addMoved()) while
+	 * the reply's frame is open.
+	 */
+	static void respond(Request request, ReplyBuffer reply) {
+		reply.frame = reply.reserve(5);
+		reply.put(reply.frame, 4, OK, 1);
+		if (request.type == REQUEST || request.type == BATCH)
+			Worker.handleClient(request.hi, request.lo, request.name,
+					Math.min(Math.max(request.count, 1), JokeServer.config.maxBatch), reply);
+		else if (request.type == MALFORMED)
+			status(reply, BAD_REQUEST);
+		else if (request.type != PING)
+			status(reply, UNSUPPORTED);
+		reply.put(reply.frame, 0, reply.bytesFrom(reply.frame) - 4, 4);
+		reply.frame = -1;
+	}
+
+	//Server side: adds a BUSY response frame for a request the admission control turned away (see AdmissionControl.java)
+	static void respondBusy(long retryAfterMillis, ReplyBuffer reply) {
+		reply.frame = reply.reserve(5);
+		AdmissionControl.addBusy(retryAfterMillis, reply);
+		reply.put(reply.frame, 0, reply.bytesFrom(reply.frame) - 4, 4);
+		reply.frame = -1;
+	}
+
+	//Server side: sets the status of the response frame being assembled
+	static void status(ReplyBuffer reply, int status) {
+		reply.put(reply.frame, 4, status, 1);
+	}
+
+	/* Server side: adds one joke/proverb item to the response frame being assembled. The lengths are filled in once
+	 * the corpus has added the tag and the body, which come straight from the corpus' bytes as in the text reply.
+	 */
+	static void addItem(Corpus corpus, int index, boolean lastOfCycle, boolean joke, ReplyBuffer reply) {
+		int header = reply.reserve(2);
+		int tagSlot = reply.size();
+		corpus.appendTag(index, reply);
+		reply.put(header, 0, (joke ? 0 : PROVERB) | (lastOfCycle ? CYCLE_COMPLETED : 0), 1);
+		reply.put(header, 1, reply.bytesFrom(tagSlot), 1);
+		int bodyLength = reply.reserve(4);
+		corpus.appendBody(index, reply);
+		reply.put(bodyLength, 0, reply.bytesFrom(bodyLength + 1), 4);
+
+		//Log to the console as the text reply does
+		reply.logSent(joke, tagSlot);
+		if (lastOfCycle)
+			reply.logCycleCompleted(joke);
+	}
+
+	//Client side: sends MAGIC and VERSION, and returns the server tag from the server's answer
+	static String hello(DataOutputStream out, DataInputStream in) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.flush();
+		return readHello(in);
+	}
+
+	/* Client side: reads the server's answer to the opening and returns the server tag from it. A server turning the
+	 * connection away answers with the text BUSY line instead, which is thrown as an IOException.
+	 */
+	static String readHello(DataInputStream in) throws IOException {
+		int first = in.readUnsignedByte();
+		if (first == JokeProtocol.BUSY.charAt(0)) {
+			StringBuilder line = new StringBuilder().append((char) first);
+			for (int c = in.read(); c >= 0 && c != '\n'; c = in.read())
+				line.append((char) c);
+			throw new IOException("The server is busy, try again in " + line.substring(JokeProtocol.BUSY.length()).trim() + " ms");
+		}
+		if (first != MAGIC)
+			throw new IOException("The server does not speak the binary protocol");
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > VERSION)
+			throw new IOException("The server answered with unknown binary protocol version " + version);
+		byte[] tag = new byte[in.readUnsignedByte()];
+		in.readFully(tag);
+		return new String(tag, StandardCharsets.UTF_8);
+	}
+
+	/* Client side: writes a REQUEST frame, or a BATCH frame if count is more than 1, for the client with the given
+	 * UUID. Only real UUIDs can be sent, unlike the text protocol, which also takes any other identifier.
+	 */
+	static void writeRequest(DataOutputStream out, String uuid, String name, int count) throws IOException {
+		UUID id = UUID.fromString(uuid);
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		boolean batch = count > 1;
+		out.writeInt(1 + (batch ? 2 : 0) + UUID_BYTES + nameBytes.length);
+		out.write(batch ? BATCH : REQUEST);
+		if (batch)
+			out.writeShort(Math.min(count, 0xFFFF));
+		out.writeLong(id.getMostSignificantBits());
+		out.writeLong(id.getLeastSignificantBits());
+		out.write(nameBytes);
+	}
+
+	//Client side: writes a PING frame
+	static void writePing(DataOutputStream out) throws IOException {
+		out.writeInt(1);
+		out.write(PING);
+	}
+
+	/* Client side: reads one response frame and returns it as the lines the text protocol would have sent, so that
+	 * callers handle both protocols alike: "<server tag><tag><name>: <body>" per item followed by the cycle
+	 * completion line where one completed, "MOVED HOST:PORT" for a MOVED response and "BUSY <millis>" for a BUSY
+	 * response. Any other status is thrown as an IOException.
+	 */
+	static List<String> readResponse(DataInputStream in, String serverTag, String name) throws IOException {
+		int length = in.readInt();
+		if (length < 1)
+			throw new IOException("Bad binary response frame of " + length + " bytes");
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		ByteBuffer body = ByteBuffer.wrap(frame, 1, length - 1);
+		int status = frame[0] & 0xFF;
+		List<String> lines = new ArrayList<String>(2);
+		if (status == MOVED) {
+			lines.add(JokeProtocol.MOVED + new String(frame, 1, length - 1, StandardCharsets.UTF_8));
+			return lines;
+		}
+		if (status == BUSY && length == 5) {
+			lines.add(JokeProtocol.BUSY + body.getInt());
+			return lines;
+		}
+		if (status != OK)
+			throw new IOException("The server answered with status " + (status == BAD_REQUEST ? "BAD_REQUEST"
+					: status == UNSUPPORTED ? "UNSUPPORTED" : status == TOO_LARGE ? "TOO_LARGE" : String.valueOf(status)));
+		while (body.hasRemaining()) {
+			int flags = body.get() & 0xFF;
+			String tag = string(body, body.get() & 0xFF);
+			lines.add(serverTag + tag + name + ": " + string(body, body.getInt()));
+			if ((flags & CYCLE_COMPLETED) != 0)
+				lines.add(serverTag + ((flags & PROVERB) != 0 ? "PROVERB" : "JOKE") + " CYCLE COMPLETED");
+		}
+		return lines;
+	}
+
+	//Returns the next 'length' bytes of the buffer as UTF-8 text
+	private static String string(ByteBuffer buf, int length) {
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	/* Prints the bytes a request and its response take on the wire, with the keep-alive text protocol and with the
+	 * binary protocol, for single and batch requests. The requests are encoded as the clients encode them, and the
+	 * responses are produced by the NIO engine's request handling from the built-in corpus:
+	 *
+	 * > java BinaryProtocol [name]
+	 */
+	public static void main(String args[]) throws IOException {
+		String name = args.length > 0 ? args[0] : "Bob";
+		String uuid = UUID.randomUUID().toString();
+		System.out.printf("%-8s %6s %14s %14s %15s %15s%n", "Request", "items", "text request", "text response",
+				"binary request", "binary response");
+		for (int count : new int[] { 1, 10 }) {
+			//The text request as PooledConnection sends it, and the binary one as writeRequest() does
+			String textRequest = (count > 1 ? JokeProtocol.BATCH + count + "\n" : "") + uuid + "\n" + name + "\n";
+			ByteArrayOutputStream binaryRequest = new ByteArrayOutputStream();
+			writeRequest(new DataOutputStream(binaryRequest), uuid, name, count);
+
+			//The first line of each connection (KEEP_ALIVE, or MAGIC and VERSION) is left out of both
+			NioConnection text = new NioConnection();
+			text.append(ByteBuffer.wrap((JokeProtocol.KEEP_ALIVE + "\n").getBytes(StandardCharsets.UTF_8)));
+			NioConnection binary = new NioConnection();
+			binary.append(ByteBuffer.wrap(new byte[] { (byte) MAGIC, VERSION }));
+			ReplyBuffer reply = new ReplyBuffer();
+			text.process(reply);
+			reply.clear();
+			binary.process(reply);
+			reply.clear();
+
+			text.append(ByteBuffer.wrap(textRequest.getBytes(StandardCharsets.UTF_8)));
+			text.process(reply);
+			long textResponse = reply.bytesFrom(0);
+			reply.clear();
+			binary.append(ByteBuffer.wrap(binaryRequest.toByteArray()));
+			binary.process(reply);
+			long binaryResponse = reply.bytesFrom(0);
+			reply.clear();
+			System.out.printf("%-8s %6d %14d %14d %15d %15d%n", count > 1 ? "BATCH" : "REQUEST", count,
+					textRequest.getBytes(StandardCharsets.UTF_8).length, textResponse, binaryRequest.size(), binaryResponse);
+		}
+	}
+}
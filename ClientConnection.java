@@ -0,0 +1,216 @@
+/* This file contains one non-blocking connection of an AsyncJokeClient or AsyncJokeAdmin, driven by a ClientEventLoop
+ * (see ClientEventLoop.java), with the pipelining described in AsyncJokeClient.java.
+ */
+
+//Import the Java libraries for input/output, non-blocking networking, collections and futures
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/* This class represents one connection driven by a ClientEventLoop. A keep-alive connection carries any number of
+ * pipelined requests, whose futures wait in order for the responses; it is reopened by the next request after it
+ * fails. Otherwise the connection carries one admin command, whose response ends when the server closes it.
+ */
+class ClientConnection {
+
+	private final ClientEventLoop loop;	//The only thread that touches the fields below
+	private final InetSocketAddress address;
+	private final boolean keepAlive;
+	private SocketChannel chan = null;	//The open channel, or null
+	private SelectionKey key = null;
+	private ByteBuffer out = ByteBuffer.allocate(1024);	//Bytes not written yet, in write mode
+	private final ByteBuffer in = ByteBuffer.allocate(8192);	//Bytes read, only used within a read
+	private byte[] line = new byte[256];	//The bytes of the line being read
+	private int lineLength = 0;
+	private final ArrayDeque<Pending> waiting = new ArrayDeque<Pending>();	//Requests whose responses have not arrived, in order
+	private final ArrayDeque<Pending> queued = new ArrayDeque<Pending>();	//Requests not sent yet, see pump()
+	private int unansweredBytes = 0;	//The bytes of the requests in 'waiting'
+
+	//A request waiting for its response
+	private static final class Pending {
+		final CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+		final List<String> lines = new ArrayList<String>(2);
+		final byte[] message;
+		final long deadline;
+
+		Pending(byte[] message, long deadline) {
+			this.message = message;
+			this.deadline = deadline;
+		}
+	}
+
+	//Constructor, takes the loop to run on, the server and whether the connection speaks the keep-alive protocol
+	ClientConnection(ClientEventLoop loop, InetSocketAddress address, boolean keepAlive) {
+		this.loop = loop;
+		this.address = address;
+		this.keepAlive = keepAlive;
+	}
+
+	//Queues the request bytes on the connection's loop and returns the future of the response. Called by any thread
+	CompletableFuture<Reply> send(final byte[] message, int timeoutMillis) {
+		final Pending pending = new Pending(message, System.currentTimeMillis() + timeoutMillis);
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					if (chan == null)
+						open();
+					queued.add(pending);
+					pump();
+				} catch (IOException ioe) {
+					pending.future.completeExceptionally(ioe);
+				}
+			}
+		});
+		return pending.future;
+	}
+
+	/* Sends queued requests while the unanswered ones stay within JokeProtocol.MAX_PIPELINED_BYTES. One request is
+	 * always let through, however long, so that nothing waits forever.
+	 */
+	private void pump() {
+		while (!queued.isEmpty() && (waiting.isEmpty()
+				|| unansweredBytes + queued.peek().message.length <= JokeProtocol.MAX_PIPELINED_BYTES)) {
+			Pending pending = queued.poll();
+			waiting.add(pending);
+			unansweredBytes += pending.message.length;
+			queue(pending.message);
+		}
+	}
+
+	//Completes the oldest request with the lines received for it, which makes room for queued requests
+	private void answered() {
+		Pending done = waiting.poll();
+		unansweredBytes -= done.message.length;
+		done.future.complete(new Reply(done.lines));
+	}
+
+	//Closes the connection on its loop, failing the requests still waiting
+	void close() {
+		loop.execute(new Runnable() {
+			public void run() {
+				fail(new IOException("Client closed"));
+			}
+		});
+	}
+
+	//Starts connecting. Requests are queued in the meantime, starting with the KEEP_ALIVE line
+	private void open() throws IOException {
+		chan = SocketChannel.open();
+		chan.configureBlocking(false);
+		chan.socket().setTcpNoDelay(true);
+		boolean connected = chan.connect(address);
+		key = chan.register(loop.selector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+		loop.opened(this);
+		if (keepAlive)
+			queue((JokeProtocol.KEEP_ALIVE + "\n").getBytes(StandardCharsets.UTF_8));
+		if (connected)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	//Appends bytes to the output buffer, and asks to be told when they can be written once connected
+	private void queue(byte[] bytes) {
+		if (out.remaining() < bytes.length) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+			out.flip();
+			grown.put(out);
+			out = grown;
+		}
+		out.put(bytes);
+		if (key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	//Called by the loop when the selector reports the connection ready
+	void ready(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				chan.finishConnect();
+				key.interestOps(SelectionKey.OP_READ | (out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+				return;
+			}
+			if (key.isWritable()) {
+				out.flip();
+				chan.write(out);
+				out.compact();
+				if (out.position() == 0)
+					key.interestOps(SelectionKey.OP_READ);
+			}
+			if (key.isReadable())
+				read();
+		} catch (IOException | CancelledKeyException e) {
+			fail(e instanceof IOException ? (IOException) e : new IOException(e));
+		}
+	}
+
+	//Reads what the server sent, splitting it into lines and completing a request at each END_OF_RESPONSE
+	private void read() throws IOException {
+		in.clear();
+		int n = chan.read(in);
+		if (n < 0) {
+			//An admin command's response ends when the server closes the connection
+			if (!keepAlive && !waiting.isEmpty()) {
+				if (lineLength > 0)
+					waiting.peek().lines.add(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+				answered();
+			}
+			fail(new IOException("Connection to " + address + " closed"));
+			return;
+		}
+		in.flip();
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b != '\n') {
+				if (lineLength == line.length)
+					line = Arrays.copyOf(line, line.length * 2);
+				line[lineLength++] = b;
+				continue;
+			}
+			int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+			lineLength = 0;
+			Pending head = waiting.peek();
+			if (head == null)
+				continue;	//Nothing was asked for; ignore it
+			if (keepAlive && length == 0) {
+				answered();
+			} else {
+				head.lines.add(new String(line, 0, length, StandardCharsets.UTF_8));
+			}
+		}
+		pump();
+	}
+
+	/* Fails the connection if its oldest request has waited past its deadline. Since responses come in order, the
+	 * late response would otherwise be taken for the next request's, so the connection is dropped with it.
+	 */
+	void checkTimeout(long now) {
+		Pending head = waiting.peek();
+		if (head != null && now > head.deadline)
+			fail(new SocketTimeoutException("No response from " + address + " in time"));
+	}
+
+	//Closes the channel and fails every waiting request. The next request opens a new connection
+	void fail(IOException cause) {
+		Pending pending;
+		while ((pending = waiting.poll()) != null)
+			pending.future.completeExceptionally(cause);
+		while ((pending = queued.poll()) != null)
+			pending.future.completeExceptionally(cause);
+		unansweredBytes = 0;
+		if (chan != null) {
+			try {
+				chan.close();
+			} catch (IOException ioe) {
+				//Nothing to do, the connection is gone either way
+			}
+			loop.closed(this);
+		}
+		chan = null;
+		key = null;
+		out.clear();
+		lineLength = 0;
+	}
+}
@@ -0,0 +1,106 @@
+/* This file contains the I/O threads that drive the connections of AsyncJokeClients and AsyncJokeAdmins (see
+ * AsyncJokeClient.java and ClientConnection.java).
+ */
+
+//Import the Java libraries for input/output, non-blocking networking and collections
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* This class represents one client I/O thread. It multiplexes any number of ClientConnections with a Selector, and
+ * runs the work handed to it by other threads (new requests) on its own thread, so a connection's state is only
+ * ever touched by its loop.
+ */
+class ClientEventLoop implements Runnable {
+
+	private final Selector selector;	//Tells the loop which connections can be connected, read or written
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();	//Work handed over by other threads
+	private final Set<ClientConnection> connections = new HashSet<ClientConnection>();	//Open connections, for timeouts
+	private volatile boolean running = true;
+
+	//Constructor, opens the selector
+	ClientEventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	//Starts n event loops on daemon threads
+	static ClientEventLoop[] start(int n) {
+		ClientEventLoop[] loops = new ClientEventLoop[n];
+		for (int i = 0; i < n; i++) {
+			try {
+				loops[i] = new ClientEventLoop();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			Thread thread = new Thread(loops[i], "client-io-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return loops;
+	}
+
+	//Runs the task on the loop's thread
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	//Stops the loop, closing its connections
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	//Called by connections on the loop's thread
+	Selector selector() {
+		return selector;
+	}
+
+	void opened(ClientConnection conn) {
+		connections.add(conn);
+	}
+
+	void closed(ClientConnection conn) {
+		connections.remove(conn);
+	}
+
+	/* Runs until stopped: runs the tasks handed over, lets connections connect, read and write, and every 100 ms
+	 * fails the requests that have waited longer than their timeout.
+	 */
+	public void run() {
+		long nextTimeoutCheck = System.currentTimeMillis() + 100;
+		while (running) {
+			try {
+				selector.select(100);
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ClientConnection conn = (ClientConnection) key.attachment();
+					conn.ready(key);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextTimeoutCheck) {
+					for (ClientConnection conn : new ArrayList<ClientConnection>(connections))
+						conn.checkTimeout(now);
+					nextTimeoutCheck = now + 100;
+				}
+			} catch (IOException ioe) {
+				System.out.println("Client event loop error: " + ioe);
+			}
+		}
+		for (ClientConnection conn : new ArrayList<ClientConnection>(connections))
+			conn.fail(new IOException("Client closed"));
+		try {
+			selector.close();
+		} catch (IOException ioe) {
+			//Nothing to do, the loop is gone either way
+		}
+	}
+}
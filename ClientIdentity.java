@@ -0,0 +1,31 @@
+/* This file contains the logical clients handed out by an AsyncJokeClient (see AsyncJokeClient.java). */
+
+//Import the Java library for futures
+import java.util.concurrent.CompletableFuture;
+
+/* This class represents one logical client: a UUID and a name. Its requests share the AsyncJokeClient's connections
+ * with every other identity, and the server keeps its cycle under its UUID.
+ */
+class ClientIdentity {
+
+	final String uuid;
+	final String name;
+	private final AsyncJokeClient client;
+
+	//Constructor, takes the client to send requests through, the UUID and the name
+	ClientIdentity(AsyncJokeClient client, String uuid, String name) {
+		this.client = client;
+		this.uuid = uuid;
+		this.name = name;
+	}
+
+	//Asks for the next joke/proverb
+	CompletableFuture<Reply> next() {
+		return client.request(uuid, name, 1);
+	}
+
+	//Asks for the next 'count' jokes/proverbs in one reply
+	CompletableFuture<Reply> next(int count) {
+		return client.request(uuid, name, count);
+	}
+}
@@ -0,0 +1,376 @@
+/* This file contains the optional persistence of the JokeServer's client state (see ClientStateStore.java), used
+ * when the server is started with stateDir=<directory>. Without it, every client's place in its joke and proverb
+ * cycles is lost when the server restarts.
+ *
+ * Every cursor update is appended to a write-ahead log as a fixed size record. A request only copies its record
+ * into an in-memory buffer (see UpdateBuffer.java); a writer thread writes the buffer out and forces it to disk
+ * every stateSyncMillis, so the fsync is shared by every request of that interval ("group commit") and no request
+ * ever waits for the disk.
+ * A crash loses at most the last interval of updates, whose clients then repeat a few items.
+ *
+ * Every stateSnapshotSeconds the log is compacted: a new log file is started, the whole store is written to a
+ * snapshot file (one record per client, written to a temporary file and then renamed over the old snapshot), and
+ * the log files the snapshot covers are deleted. On startup the snapshot is memory mapped and loaded, and the log
+ * files written since are replayed on top of it.
+ *
+ * The files in the state directory (all numbers big endian):
+ *
+ *   clients.snapshot   header (32 bytes): "JKSTATE1" | version (int) | unused (int) | client count (long) |
+ *                                         number of the first log file not covered by the snapshot (long)
+ *                      one record (48 bytes) per client: UUID (2 longs) | last request, in seconds since 1970 (long) |
+ *                                         position and cycle of each mode (4 ints) | unused (8 bytes)
+ *   clients-N.log      one record (32 bytes) per update: UUID (2 longs) | mode (int) | position (int) |
+ *                                         cycle (int) | checksum of the other fields (int)
+ *
+ * A log record cut short or garbled by a crash fails its checksum, and replay stops there.
+ *
+ * Running this class on its own measures the cost of logging on the request path, the time to write a snapshot,
+ * and the time to recover from it:
+ *
+ * > java ClientStateLog [clients] [directory]
+ */
+
+//Import the Java libraries for input/output, memory mapped files and the directory listing
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* This class represents the log and snapshots of one ClientStateStore. Requests call updated() after releasing the
+ * lock of the client's store segment, so two records of one client may reach the log in either order. A client's
+ * cursor only moves forward, so replaying keeps the record furthest ahead (see ClientStateStore.restore()).
+ */
+class ClientStateLog implements ClientStateStore.Listener {
+
+	static final byte[] MAGIC = "JKSTATE1".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+	static final int SNAPSHOT_RECORD_BYTES = 48;
+	static final String SNAPSHOT_FILE = "clients.snapshot";
+
+	private final File dir;	//The state directory
+	private final ClientStateStore store;	//The store whose updates are logged
+	private final Object fileLock = new Object();	//Held while writing to, or switching, the log file
+
+	private final UpdateBuffer pending = new UpdateBuffer();	//Records appended since the last write
+	private FileChannel log;	//The log file being appended to, guarded by fileLock
+	private long logNumber;	//The number of that file, guarded by fileLock
+
+	/* Constructor, takes the state directory and the store. The store is loaded from the directory's snapshot and
+	 * logs (if any), and a new log file is started, since the last one may end in a torn record. The store must not
+	 * be in use yet. Throws an IOException if the directory cannot be used.
+	 */
+	ClientStateLog(File dir, ClientStateStore store) throws IOException {
+		this.dir = dir;
+		this.store = store;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create state directory " + dir);
+
+		long next = loadSnapshot();
+		for (long number : logNumbers()) {
+			if (number >= next) {
+				replay(logFile(number));
+				next = number + 1;
+			}
+		}
+		logNumber = next;
+		log = openLog(logNumber);
+		store.addListener(this);
+	}
+
+	/* Called by a request (or a replicated update) after the client's cursor for 'mode' has been moved and the
+	 * store segment unlocked. Only copies the record into the calling thread's stripe of the pending buffer.
+	 */
+	public void updated(long hi, long lo, int mode, int position, int cycle, boolean replicated) {
+		pending.append(hi, lo, mode, position, cycle);
+	}
+
+	/* Writes every record appended so far to the log file and forces it to disk. This is the group commit: one
+	 * write and one fsync for all the requests since the last call.
+	 */
+	void sync() throws IOException {
+		synchronized (fileLock) {
+			ByteBuffer[] writing = pending.take();
+			long left = UpdateBuffer.remaining(writing);
+			if (left > 0) {
+				while (left > 0)
+					left -= log.write(writing);
+				log.force(false);
+			}
+		}
+	}
+
+	/* Compacts the log. Records appended before the switch to a new log file are already reflected in the store, so
+	 * a snapshot of the store written after the switch, together with the new log files, holds every update. The
+	 * snapshot replaces the old one in a single rename, after which the log files it covers are deleted. Returns the
+	 * number of clients written. Snapshots are written one at a time, since besides the snapshot thread a cluster
+	 * handoff writes one to make its removals durable (see Cluster.java).
+	 */
+	synchronized long snapshot() throws IOException {
+		long covered;
+		synchronized (fileLock) {
+			sync();
+			log.close();
+			covered = logNumber++;
+			log = openLog(logNumber);
+		}
+
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		final FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		final long[] count = { 0 };
+		try {
+			final ByteBuffer buf = ByteBuffer.allocate(SNAPSHOT_RECORD_BYTES * 4096);
+			buf.position(HEADER_BYTES);
+			store.forEachClient(new ClientStateStore.Visitor() {
+				public void visit(long hi, long lo, int[] state, int at, long lastUsedSeconds) throws IOException {
+					if (buf.remaining() < SNAPSHOT_RECORD_BYTES)
+						writeAll(out, buf);
+					buf.putLong(hi).putLong(lo).putLong(lastUsedSeconds);
+					for (int mode = 0; mode < 2; mode++) {
+						int base = at + mode * ClientStateStore.INTS_PER_MODE;
+						buf.putInt(state[base + ClientStateStore.POSITION]).putInt(state[base + ClientStateStore.CYCLE]);
+					}
+					buf.putLong(0);
+					count[0]++;
+				}
+			});
+			writeAll(out, buf);
+
+			//The header is written last, so a snapshot whose writing was interrupted is never loaded
+			buf.put(MAGIC).putInt(VERSION).putInt(0).putLong(count[0]).putLong(covered + 1);
+			buf.flip();
+			while (buf.hasRemaining())
+				out.write(buf, buf.position());
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		for (long number : logNumbers()) {
+			if (number <= covered)
+				logFile(number).delete();
+		}
+		return count[0];
+	}
+
+	/* Starts the daemon threads that sync the log every syncMillis and take a snapshot every snapshotSeconds, and a
+	 * shutdown hook that syncs the log one last time when the server is stopped.
+	 */
+	void start(final int syncMillis, final int snapshotSeconds) {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(syncMillis);
+						sync();
+					} catch (InterruptedException ie) {
+						return;
+					} catch (IOException ioe) {
+						System.out.println(JokeServer.serverTag + "Client state log write failed: " + ioe.getMessage());
+					}
+				}
+			}
+		}, "client-state-log");
+		writer.setDaemon(true);
+		writer.start();
+
+		Thread snapshotter = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(snapshotSeconds * 1000L);
+						long start = System.nanoTime();
+						long clients = snapshot();
+						System.out.println(JokeServer.serverTag + "Client state snapshot of " + clients + " clients written in "
+								+ (System.nanoTime() - start) / 1000000 + " ms");
+					} catch (InterruptedException ie) {
+						return;
+					} catch (IOException ioe) {
+						System.out.println(JokeServer.serverTag + "Client state snapshot failed: " + ioe.getMessage());
+					}
+				}
+			}
+		}, "client-state-snapshot");
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				try {
+					sync();
+				} catch (IOException ioe) {
+					//Nothing more can be done while shutting down
+				}
+			}
+		}));
+	}
+
+	/* Loads the snapshot, if there is one, into the store. The file is memory mapped in chunks of whole records.
+	 * Returns the number of the first log file the snapshot does not cover (0 if there is no snapshot).
+	 */
+	private long loadSnapshot() throws IOException {
+		File file = new File(dir, SNAPSHOT_FILE);
+		if (!file.exists())
+			return 0;
+		FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && chan.read(header, header.position()) > 0)
+				;
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			if (header.limit() >= MAGIC.length)
+				header.get(magic);
+			if (header.limit() < HEADER_BYTES || !Arrays.equals(magic, MAGIC) || header.getInt(8) != VERSION)
+				throw new IOException(file + " is not a client state snapshot");
+			long count = header.getLong(16);
+			long next = header.getLong(24);
+			if (count < 0 || HEADER_BYTES + count * SNAPSHOT_RECORD_BYTES > chan.size())
+				throw new IOException(file + " is truncated");
+
+			long chunkRecords = (1 << 30) / SNAPSHOT_RECORD_BYTES;
+			for (long first = 0; first < count; first += chunkRecords) {
+				long records = Math.min(chunkRecords, count - first);
+				MappedByteBuffer map = chan.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * SNAPSHOT_RECORD_BYTES,
+						records * SNAPSHOT_RECORD_BYTES);
+				for (long r = 0; r < records; r++) {
+					long hi = map.getLong();
+					long lo = map.getLong();
+					long lastUsedSeconds = map.getLong();
+					for (int mode = 0; mode < 2; mode++)
+						store.restore(hi, lo, mode, map.getInt(), map.getInt(), lastUsedSeconds);
+					map.getLong();
+				}
+			}
+			return next;
+		} finally {
+			chan.close();
+		}
+	}
+
+	//Replays a log file into the store, stopping at the first record that is incomplete or fails its checksum
+	private void replay(File file) throws IOException {
+		long now = System.currentTimeMillis() / 1000;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			byte[] record = new byte[UpdateBuffer.RECORD_BYTES];
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			while (true) {
+				try {
+					in.readFully(record);
+				} catch (EOFException eof) {
+					return;
+				}
+				int mode = UpdateBuffer.mode(buf);
+				if (mode != ClientStateStore.JOKES && mode != ClientStateStore.PROVERBS)
+					return;
+				store.restore(UpdateBuffer.hi(buf), UpdateBuffer.lo(buf), mode, UpdateBuffer.position(buf), UpdateBuffer.cycle(buf), now);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	//Returns the numbers of the log files in the state directory, in increasing order
+	private long[] logNumbers() {
+		List<Long> numbers = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("clients-") && name.endsWith(".log")) {
+					try {
+						numbers.add(Long.parseLong(name.substring("clients-".length(), name.length() - ".log".length())));
+					} catch (NumberFormatException nfe) {
+						//Not one of our files
+					}
+				}
+			}
+		}
+		long[] sorted = new long[numbers.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = numbers.get(i);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	//Returns the log file with the given number
+	private File logFile(long number) {
+		return new File(dir, String.format("clients-%010d.log", number));
+	}
+
+	//Creates the log file with the given number, replacing any file of that name
+	private FileChannel openLog(long number) throws IOException {
+		return FileChannel.open(logFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	//Writes the buffer's contents to the end of the channel and empties the buffer
+	private static void writeAll(FileChannel out, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			out.write(buf);
+		buf.clear();
+	}
+
+
+	/* Measures the log. Runs 'clients' * 4 updates on a store without a log and on a store with one (synced every
+	 * 100 ms by a writer thread), writes a snapshot, appends one more round of updates to the log, and then times
+	 * loading a new store from the snapshot and the log, as the server does on restart.
+	 */
+	public static void main(String args[]) throws IOException, InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		File dir = new File(args.length > 1 ? args[1] : "client-state-bench");
+		if (dir.isDirectory()) {
+			for (File file : dir.listFiles())
+				file.delete();
+		}
+
+		long[] his = new long[clients];
+		long[] los = new long[clients];
+		java.util.Random random = new java.util.Random(42);
+		for (int i = 0; i < clients; i++) {
+			his[i] = random.nextLong();
+			los[i] = random.nextLong();
+		}
+
+		ClientStateStore plain = new ClientStateStore();
+		System.out.printf("Without log: %.1f million updates/sec%n", updates(plain, his, los, 4));
+
+		ClientStateStore logged = new ClientStateStore();
+		ClientStateLog log = new ClientStateLog(dir, logged);
+		log.start(100, Integer.MAX_VALUE);
+		System.out.printf("With log:    %.1f million updates/sec%n", updates(logged, his, los, 4));
+
+		long start = System.nanoTime();
+		long written = log.snapshot();
+		System.out.println("Snapshot of " + written + " clients written in " + (System.nanoTime() - start) / 1000000 + " ms");
+		updates(logged, his, los, 1);
+		log.sync();
+
+		start = System.nanoTime();
+		ClientStateStore recovered = new ClientStateStore();
+		new ClientStateLog(dir, recovered);
+		System.out.println("Recovered " + recovered.size() + " clients (snapshot and " + clients + " log records) in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	//Runs 'rounds' updates of every client in both modes, returning millions of updates per second
+	private static double updates(ClientStateStore store, long[] his, long[] los, int rounds) {
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < his.length; i++)
+				store.advance(his[i], los[i], (i + round) & 1, 1, 4, 0, false);
+		}
+		return (double) rounds * his.length / ((System.nanoTime() - start) / 1e9) / 1e6;
+	}
+}
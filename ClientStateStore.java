@@ -0,0 +1,597 @@
+/* This file contains the store the JokeServer keeps its per-client state in, replacing the two
+ * HashMap<String, Integer> tables (lastJokeSent / lastProverbSent). A client is keyed by the two longs of its
+ * UUID instead of the 36 character string, and its state is a few primitive ints per mode instead of boxed
+ * Integers, so an entry costs a few dozen bytes instead of a few hundred. The store is split into segments,
+ * each with its own lock, so requests from different clients rarely wait on each other, and a request's
+ * state is read and updated with a single lookup.
+ *
+ * Clients are not kept forever: a retention policy bounds the store (see the clientTtlSeconds, maxClients and
+ * clientMemoryMB options in ServerConfig.java). A client idle for longer than the TTL is removed by a background
+ * sweeper, which locks one segment for at most SWEEP_CHUNK slots at a time so requests never wait behind a whole
+ * sweep. A segment that is full evicts an approximately least recently used client to make room for a new one,
+ * by looking at a few slots after a clock hand, which costs a request a handful of slot reads. An evicted or
+ * expired client that comes back simply starts a new cycle.
+ *
+ * Running this class on its own measures the store's memory per client and its throughput on 1..N threads, and
+ * with a maxClients argument, the same with eviction at that bound:
+ *
+ * > java ClientStateStore [clients] [maxThreads] [maxClients]
+ */
+
+//Import the Java libraries for input/output, for filling arrays, and for random numbers and concurrency used by the measurement in main()
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/* This class represents the store. Each segment is an open-addressing hash table with linear probing, kept as
+ * parallel primitive arrays so that an entry is never an object of its own.
+ */
+class ClientStateStore {
+
+	static final int JOKES = 0;	//Mode index of the joke cursor
+	static final int PROVERBS = 1;	//Mode index of the proverb cursor
+
+	/* The ints kept per client: for each mode, the position in the current cycle of the next item to send,
+	 * how many cycles the client has completed in that mode, and the generation of the corpus the position
+	 * refers to plus one (0 for a client that has not made a request in that mode yet).
+	 */
+	static final int POSITION = 0;
+	static final int CYCLE = 1;
+	static final int GENERATION = 2;
+	static final int INTS_PER_MODE = 3;
+	static final int INTS_PER_CLIENT = 2 * INTS_PER_MODE;
+
+	//Bytes of table per slot: the two key longs, the state ints, the last-used int and the used byte
+	static final int SLOT_BYTES = 2 * 8 + INTS_PER_CLIENT * 4 + 4 + 1;
+	static final int MIN_CAPACITY = 16;	//Slots in a new segment
+	static final int EVICTION_SAMPLE = 8;	//Clients looked at to pick the one to evict from a full segment
+	static final int SWEEP_CHUNK = 4096;	//Slots the sweeper looks at per lock of a segment
+
+	private final Segment[] segments;	//A power of two number of segments, each guarded by its own lock
+	private final int segmentMask;	//Picks the segment number out of the high 32 bits of a hash
+	private final int ttlSeconds;	//How long a client may be idle before it is removed, 0 to keep idle clients
+	private final int maxPerSegment;	//The most clients a segment holds before it evicts one
+	private final long epochMillis = System.currentTimeMillis();	//Last-used times are kept in seconds since this time
+	private Listener[] listeners = new Listener[0];	//Told of every cursor update, e.g. the log (see ClientStateLog.java)
+
+	//Called with the state of one client by forEachClient(), see there
+	interface Visitor {
+		void visit(long hi, long lo, int[] state, int at, long lastUsedSeconds) throws IOException;
+	}
+
+	/* Told of every cursor update, after the client's segment lock is released, so a slow listener never holds up
+	 * the other clients of the segment. Two updates of one client made on different threads may therefore arrive
+	 * in either order; since a client's cursor only moves forward, the one furthest ahead is the latest. 'replicated'
+	 * is true for updates received from another server (see Replicator.java). Listeners must only copy the update
+	 * somewhere and return, since the request is waiting.
+	 */
+	interface Listener {
+		void updated(long hi, long lo, int mode, int position, int cycle, boolean replicated);
+	}
+
+	//Constructor, sized for the number of cores of this machine, keeping every client
+	ClientStateStore() {
+		this(Runtime.getRuntime().availableProcessors() * 8, 0, 0, 0);
+	}
+
+	/* Constructor, takes the minimum number of segments (rounded up to a power of two) and the retention policy:
+	 * the idle TTL in seconds, the maximum number of clients and the maximum bytes of table. A zero means no limit.
+	 * The bounds are split evenly over the segments. The byte bound caps each segment's table at the largest power
+	 * of two number of slots that fits, so the tables never grow past it.
+	 */
+	ClientStateStore(int minSegments, int ttlSeconds, long maxClients, long maxBytes) {
+		int n = 1;
+		while (n < minSegments)
+			n <<= 1;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment();
+		segmentMask = n - 1;
+		this.ttlSeconds = ttlSeconds;
+
+		long max = Integer.MAX_VALUE;
+		if (maxClients > 0)
+			max = Math.max(1, (maxClients + n - 1) / n);
+		if (maxBytes > 0) {
+			long capacity = MIN_CAPACITY;
+			while (capacity * 2 * SLOT_BYTES * n <= maxBytes && capacity < (1 << 28))
+				capacity *= 2;
+			max = Math.min(max, capacity * 3 / 4);	//Growing happens above 3/4 full, so this keeps the table at 'capacity'
+		}
+		maxPerSegment = (int) max;
+	}
+
+	//Returns the current time in seconds since the store was created
+	private int now() {
+		return (int) ((System.currentTimeMillis() - epochMillis) / 1000);
+	}
+
+	/* Moves the client's cursor for the given mode forward by 'count' items in a cycle of 'cycleLength' items,
+	 * adding the client if it is new. Returns the cursor before the move packed into a long: the cycle number in
+	 * the high 32 bits and the position in the cycle in the low 32 bits. The caller sends the items from that
+	 * position on, wrapping to position 0 of the next cycle after position cycleLength - 1.
+	 *
+	 * 'generation' is the generation of the corpus being served (see CorpusSnapshot.java). A new cycle is started
+	 * first if the stored position is past the end of the cycle (the corpus got smaller), or if the position refers
+	 * to an older generation of the corpus and restartOnReload is true.
+	 */
+	long advance(long hi, long lo, int mode, int count, int cycleLength, int generation, boolean restartOnReload) {
+		long h = hash(hi, lo);
+		int now = now();
+		Segment seg = segments[(int) (h >>> 32) & segmentMask];
+		int newPosition, newCycle;
+		long before;
+		synchronized (seg) {
+			int slot = seg.find(hi, lo, (int) h);
+			if (slot < 0) {
+				if (seg.size >= maxPerSegment)
+					seg.evictOne(now - ttlSeconds);
+				slot = seg.findOrInsert(hi, lo, (int) h);
+			}
+			seg.lastUsed[slot] = now;
+			int base = slot * INTS_PER_CLIENT + mode * INTS_PER_MODE;
+			int[] state = seg.state;
+			int position = state[base + POSITION];
+			int cycle = state[base + CYCLE];
+			int stored = state[base + GENERATION];
+			if (position >= cycleLength || (restartOnReload && stored != 0 && stored != generation + 1)) {
+				position = 0;
+				cycle++;
+			}
+			state[base + GENERATION] = generation + 1;
+
+			long end = (long) position + count;
+			newPosition = state[base + POSITION] = (int) (end % cycleLength);
+			newCycle = state[base + CYCLE] = cycle + (int) (end / cycleLength);
+			before = ((long) cycle << 32) | position;
+		}
+		for (Listener listener : listeners)
+			listener.updated(hi, lo, mode, newPosition, newCycle, false);
+		return before;
+	}
+
+	//Makes every later cursor update be passed to the given listener. Called before the store is used by requests
+	void addListener(Listener listener) {
+		Listener[] more = Arrays.copyOf(listeners, listeners.length + 1);
+		more[listeners.length] = listener;
+		listeners = more;
+	}
+
+	/* Applies a cursor update received from another server, adding the client if it is new. The update is only
+	 * applied if it is ahead of the client's cursor here (a later cycle, or a later position in the same cycle), so
+	 * updates that arrive late or twice, or that cross an update made here, never move a client back into items it
+	 * has already seen. The corpus generation is cleared, as with restore(). Returns true if the update was applied.
+	 */
+	boolean replicate(long hi, long lo, int mode, int position, int cycle) {
+		long h = hash(hi, lo);
+		int now = now();
+		Segment seg = segments[(int) (h >>> 32) & segmentMask];
+		synchronized (seg) {
+			int slot = seg.find(hi, lo, (int) h);
+			if (slot < 0) {
+				if (seg.size >= maxPerSegment)
+					seg.evictOne(now - ttlSeconds);
+				slot = seg.findOrInsert(hi, lo, (int) h);
+			}
+			int base = slot * INTS_PER_CLIENT + mode * INTS_PER_MODE;
+			int[] state = seg.state;
+			if (((long) cycle << 32 | position) <= ((long) state[base + CYCLE] << 32 | state[base + POSITION]))
+				return false;
+			seg.lastUsed[slot] = now;
+			state[base + POSITION] = position;
+			state[base + CYCLE] = cycle;
+			state[base + GENERATION] = 0;
+		}
+		for (Listener listener : listeners)
+			listener.updated(hi, lo, mode, position, cycle, true);
+		return true;
+	}
+
+	/* Sets the client's position and cycle for the given mode, as read back from a snapshot or log, adding the client
+	 * if it is new. A client already in the store keeps its cursor if that is ahead, so log records may be replayed
+	 * in any order (see Listener). The corpus generation is cleared, since generations start over when the server
+	 * restarts. lastUsedSeconds is the time of the client's last request in seconds since 1970. Nothing is logged.
+	 */
+	void restore(long hi, long lo, int mode, int position, int cycle, long lastUsedSeconds) {
+		long h = hash(hi, lo);
+		int lastUsed = (int) (lastUsedSeconds - epochMillis / 1000);
+		Segment seg = segments[(int) (h >>> 32) & segmentMask];
+		synchronized (seg) {
+			int slot = seg.find(hi, lo, (int) h);
+			if (slot < 0) {
+				if (seg.size >= maxPerSegment)
+					seg.evictOne(now() - ttlSeconds);
+				slot = seg.findOrInsert(hi, lo, (int) h);
+			} else {
+				lastUsed = Math.max(lastUsed, seg.lastUsed[slot]);
+			}
+			seg.lastUsed[slot] = lastUsed;
+			int base = slot * INTS_PER_CLIENT + mode * INTS_PER_MODE;
+			if (((long) cycle << 32 | position) < ((long) seg.state[base + CYCLE] << 32 | seg.state[base + POSITION]))
+				return;
+			seg.state[base + POSITION] = position;
+			seg.state[base + CYCLE] = cycle;
+			seg.state[base + GENERATION] = 0;
+		}
+	}
+
+	/* Removes the client, e.g. after its state was handed off to another server (see Cluster.java). Nothing is
+	 * logged. Returns true if the client was in the store.
+	 */
+	boolean remove(long hi, long lo) {
+		long h = hash(hi, lo);
+		Segment seg = segments[(int) (h >>> 32) & segmentMask];
+		synchronized (seg) {
+			int slot = seg.find(hi, lo, (int) h);
+			if (slot < 0)
+				return false;
+			seg.remove(slot);
+			return true;
+		}
+	}
+
+	/* Calls the visitor once for every client in the store, with the client's ints at state[at ...]. Each segment is
+	 * copied while holding its lock, which takes a few array copies, and visited after the lock is released, so
+	 * requests wait at most for the copy, never for the visitor.
+	 */
+	void forEachClient(Visitor visitor) throws IOException {
+		long epochSeconds = epochMillis / 1000;
+		for (Segment seg : segments) {
+			long[] keys;
+			int[] state;
+			int[] lastUsed;
+			byte[] used;
+			synchronized (seg) {
+				keys = seg.keys.clone();
+				state = seg.state.clone();
+				lastUsed = seg.lastUsed.clone();
+				used = seg.used.clone();
+			}
+			for (int slot = 0; slot < used.length; slot++) {
+				if (used[slot] != 0)
+					visitor.visit(keys[2 * slot], keys[2 * slot + 1], state, slot * INTS_PER_CLIENT, epochSeconds + lastUsed[slot]);
+			}
+		}
+	}
+
+	//Returns the number of clients in the store
+	int size() {
+		int size = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				size += seg.size;
+			}
+		}
+		return size;
+	}
+
+	//Returns the number of bytes held by the store's tables, not counting fixed per-segment overhead
+	long memoryBytes() {
+		long bytes = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				bytes += (long) seg.used.length * SLOT_BYTES;
+			}
+		}
+		return bytes;
+	}
+
+	//Returns the number of clients removed because they were idle for longer than the TTL
+	long expired() {
+		long expired = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				expired += seg.expired;
+			}
+		}
+		return expired;
+	}
+
+	//Returns the number of clients evicted to make room in a full segment
+	long evicted() {
+		long evicted = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				evicted += seg.evicted;
+			}
+		}
+		return evicted;
+	}
+
+	/* Removes every client that has been idle for longer than the TTL. Each segment is locked for at most
+	 * SWEEP_CHUNK slots at a time. Returns the number of clients removed.
+	 */
+	long sweep() {
+		if (ttlSeconds <= 0)
+			return 0;
+		int cutoff = now() - ttlSeconds;
+		long removed = 0;
+		for (Segment seg : segments) {
+			for (int from = 0; ; from += SWEEP_CHUNK) {
+				synchronized (seg) {
+					if (from >= seg.used.length)
+						break;
+					removed += seg.expire(from, Math.min(from + SWEEP_CHUNK, seg.used.length), cutoff);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/* Starts a daemon thread that sweeps out idle clients a few times per TTL (at most once a second and at least
+	 * once a minute). Does nothing if the store has no TTL.
+	 */
+	void startSweeper() {
+		if (ttlSeconds <= 0)
+			return;
+		final long interval = Math.max(1, Math.min(60, ttlSeconds / 4)) * 1000L;
+		Thread sweeper = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					sweep();
+				}
+			}
+		}, "client-state-sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	//Spreads the bits of a UUID over a 64 bit hash. The high 32 bits pick the segment and the low 32 bits the slot
+	static long hash(long hi, long lo) {
+		long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+		h ^= h >>> 33;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return h ^ (h >>> 29);
+	}
+
+	/* Returns the most significant 64 bits of a client identifier. Identifiers are normally UUID strings, which
+	 * are parsed without creating any objects. Any other string is hashed instead, so that it still gets a key.
+	 */
+	static long keyHigh(String uuid) {
+		if (isUuid(uuid))
+			return hex(uuid, 0, 8) << 32 | hex(uuid, 9, 13) << 16 | hex(uuid, 14, 18);
+		return hashString(uuid, 0x9E3779B97F4A7C15L);
+	}
+
+	//Returns the least significant 64 bits of a client identifier, see keyHigh()
+	static long keyLow(String uuid) {
+		if (isUuid(uuid))
+			return hex(uuid, 19, 23) << 48 | hex(uuid, 24, 36);
+		return hashString(uuid, 0xC2B2AE3D27D4EB4FL);
+	}
+
+	//Returns true if the string has the 8-4-4-4-12 hex digit layout of a UUID
+	private static boolean isUuid(String s) {
+		if (s.length() != 36 || s.charAt(8) != '-' || s.charAt(13) != '-' || s.charAt(18) != '-' || s.charAt(23) != '-')
+			return false;
+		for (int i = 0; i < 36; i++) {
+			if (i != 8 && i != 13 && i != 18 && i != 23 && Character.digit(s.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	//Returns the value of the hex digits of s from 'start' up to 'end'
+	private static long hex(String s, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++)
+			value = value << 4 | Character.digit(s.charAt(i), 16);
+		return value;
+	}
+
+	//Returns a 64 bit hash of a string, different for each seed
+	private static long hashString(String s, long seed) {
+		long h = seed;
+		for (int i = 0; i < s.length(); i++)
+			h = (h ^ s.charAt(i)) * 0x100000001B3L;
+		return hash(h, seed);
+	}
+
+	/* This class represents one segment of the store. The arrays are only touched while holding the segment's
+	 * lock. Slot i uses keys[2i], keys[2i+1], used[i], lastUsed[i] and state[i * INTS_PER_CLIENT ...].
+	 */
+	private static final class Segment {
+
+		long[] keys = new long[2 * MIN_CAPACITY];	//The UUID of the client in each slot
+		int[] state = new int[INTS_PER_CLIENT * MIN_CAPACITY];	//The cursors of the client in each slot
+		int[] lastUsed = new int[MIN_CAPACITY];	//When the client in each slot last made a request, see now()
+		byte[] used = new byte[MIN_CAPACITY];	//1 if the slot holds a client, 0 if it is free
+		int size = 0;	//The number of slots holding a client
+		int hand = 0;	//Where the next search for a client to evict starts
+		long expired = 0;	//Clients removed by the sweeper
+		long evicted = 0;	//Clients evicted to make room
+
+		//Returns the slot holding the given client, or -1 if it is not there
+		int find(long hi, long lo, int h) {
+			int mask = used.length - 1;
+			int slot = h & mask;
+			while (used[slot] != 0) {
+				if (keys[2 * slot] == hi && keys[2 * slot + 1] == lo)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		//Returns the slot holding the given client, adding the client with all cursors at zero if it is not there
+		int findOrInsert(long hi, long lo, int h) {
+			int mask = used.length - 1;
+			int slot = h & mask;
+			while (used[slot] != 0) {
+				if (keys[2 * slot] == hi && keys[2 * slot + 1] == lo)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+
+			//Not found, so add it, growing first if the table would get more than 3/4 full
+			if ((size + 1) * 4 > used.length * 3) {
+				grow();
+				return findOrInsert(hi, lo, h);
+			}
+			used[slot] = 1;
+			keys[2 * slot] = hi;
+			keys[2 * slot + 1] = lo;
+			size++;
+			return slot;
+		}
+
+		/* Evicts one client, approximately the least recently used: of the first EVICTION_SAMPLE clients after the
+		 * clock hand, the one idle the longest, or the first one that has already outlived the TTL (used before
+		 * 'cutoff'). The hand then moves past the sampled slots, so successive evictions look at different clients.
+		 */
+		void evictOne(int cutoff) {
+			int mask = used.length - 1;
+			int victim = -1;
+			int slot = hand;
+			for (int seen = 0, looked = 0; seen < EVICTION_SAMPLE && looked < used.length; looked++, slot = (slot + 1) & mask) {
+				if (used[slot] == 0)
+					continue;
+				seen++;
+				if (victim < 0 || lastUsed[slot] < lastUsed[victim])
+					victim = slot;
+				if (lastUsed[slot] < cutoff)
+					break;
+			}
+			hand = slot;
+			if (victim >= 0) {
+				remove(victim);
+				evicted++;
+			}
+		}
+
+		//Removes the clients in slots 'from' up to 'to' that were last used before 'cutoff', returning how many
+		int expire(int from, int to, int cutoff) {
+			int removed = 0;
+			for (int slot = from; slot < to; ) {
+				if (used[slot] != 0 && lastUsed[slot] < cutoff) {
+					remove(slot);	//May move a later client into this slot, so look at it again
+					removed++;
+				} else {
+					slot++;
+				}
+			}
+			expired += removed;
+			return removed;
+		}
+
+		/* Empties the slot. Linear probing needs every client to be reachable from its home slot without passing a
+		 * free slot, so the clients after the emptied slot are shifted back into it where needed, instead of
+		 * leaving a tombstone behind.
+		 */
+		private void remove(int slot) {
+			int mask = used.length - 1;
+			int free = slot;
+			int next = (free + 1) & mask;
+			while (used[next] != 0) {
+				int home = (int) hash(keys[2 * next], keys[2 * next + 1]) & mask;
+				//Move the client back if its home slot is not cyclically within (free, next]
+				if (((next - home) & mask) >= ((next - free) & mask)) {
+					keys[2 * free] = keys[2 * next];
+					keys[2 * free + 1] = keys[2 * next + 1];
+					lastUsed[free] = lastUsed[next];
+					System.arraycopy(state, next * INTS_PER_CLIENT, state, free * INTS_PER_CLIENT, INTS_PER_CLIENT);
+					free = next;
+				}
+				next = (next + 1) & mask;
+			}
+			used[free] = 0;
+			Arrays.fill(state, free * INTS_PER_CLIENT, (free + 1) * INTS_PER_CLIENT, 0);
+			size--;
+		}
+
+		//Doubles the size of the table, putting every client back in its slot in the larger table
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldState = state;
+			int[] oldLastUsed = lastUsed;
+			byte[] oldUsed = used;
+
+			int capacity = oldUsed.length * 2;
+			keys = new long[2 * capacity];
+			state = new int[INTS_PER_CLIENT * capacity];
+			lastUsed = new int[capacity];
+			used = new byte[capacity];
+			int mask = capacity - 1;
+
+			for (int i = 0; i < oldUsed.length; i++) {
+				if (oldUsed[i] == 0)
+					continue;
+				long hi = oldKeys[2 * i];
+				long lo = oldKeys[2 * i + 1];
+				int slot = (int) hash(hi, lo) & mask;
+				while (used[slot] != 0)
+					slot = (slot + 1) & mask;
+				used[slot] = 1;
+				keys[2 * slot] = hi;
+				keys[2 * slot + 1] = lo;
+				lastUsed[slot] = oldLastUsed[i];
+				System.arraycopy(oldState, i * INTS_PER_CLIENT, state, slot * INTS_PER_CLIENT, INTS_PER_CLIENT);
+			}
+		}
+	}
+
+	/* Measures the store. First fills a store (bounded to maxClients, if given) with the given number of random
+	 * clients and reports the heap used per client, then runs the same number of advance() calls on 1, 2, 4, ...
+	 * maxThreads threads and reports the throughput, so that scaling with the number of cores can be checked.
+	 */
+	public static void main(String args[]) throws InterruptedException {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long maxClients = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		final long[] his = new long[clients];
+		final long[] los = new long[clients];
+		Random random = new Random(42);
+		for (int i = 0; i < clients; i++) {
+			his[i] = random.nextLong();
+			los[i] = random.nextLong();
+		}
+
+		long before = usedHeap();
+		final ClientStateStore store = new ClientStateStore(Runtime.getRuntime().availableProcessors() * 8, 0, maxClients, 0);
+		for (int i = 0; i < clients; i++)
+			store.advance(his[i], los[i], JOKES, 1, 4, 0, false);
+		long after = usedHeap();
+		System.out.println("Clients: " + store.size());
+		System.out.println("Table bytes per client: " + store.memoryBytes() / (double) store.size());
+		System.out.println("Heap bytes per client: " + (after - before) / (double) store.size());
+		System.out.println("Evicted: " + store.evicted());
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final int n = threads;
+			final CountDownLatch done = new CountDownLatch(n);
+			long start = System.nanoTime();
+			for (int t = 0; t < n; t++) {
+				final int first = t;
+				new Thread(new Runnable() {
+					public void run() {
+						for (int round = 0; round < 4; round++) {
+							for (int i = first; i < clients; i += n)
+								store.advance(his[i], los[i], (i & 1), 1, 4, 0, false);
+						}
+						done.countDown();
+					}
+				}).start();
+			}
+			done.await();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%d thread(s): %.1f million updates/sec%n", n, 4.0 * clients / seconds / 1e6);
+		}
+	}
+
+	//Returns the bytes of heap in use after asking the JVM to collect garbage
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,105 @@
+/* This file contains the sharding of clients over any number of JokeServers. A server started with a cluster option
+ * only keeps the state of the clients it owns, so the state is partitioned over the nodes instead of duplicated:
+ *
+ * > java JokeServer port=4545 adminPort=5050 cluster=localhost:4545/4645,localhost:4546/4646,localhost:4547/4647
+ * > java JokeServer port=4546 adminPort=5051 cluster=localhost:4545/4645,localhost:4546/4646,localhost:4547/4647
+ * > java JokeServer port=4547 adminPort=5052 cluster=localhost:4545/4645,localhost:4546/4646,localhost:4547/4647
+ *
+ * Each member is the HOST:PORT its clients connect to, optionally followed by /STATEPORT, the port at which it accepts
+ * the state of clients handed to it (see below). A server finds itself in the list as the member on this machine at
+ * its client port, or by the node option, which it needs when several local members share that port. The owner of
+ * a client is found by consistent hashing (see HashRing.java): every member is put on a ring of 64 bit hashes at
+ * virtualNodes points, and a client belongs to the member at the first point after the hash of its UUID. Clients
+ * given the same member list (JokeClient, AsyncJokeClient, LoadGenerator) compute the owner themselves and send their
+ * request straight to it, so a request takes one hop. A server asked about a client it does not own answers with a
+ * single "MOVED HOST:PORT" line naming the owner, which the clients follow once; this only happens while a client's
+ * member list is out of date.
+ *
+ * The member list is changed at runtime with the admin command "CLUSTER MEMBERS EPOCH", carrying an epoch as the
+ * mode changes do (see ServerMode.java), so "java JokeClientAdmin cluster MEMBERS HOST:ADMINPORT..." can send the
+ * same change to every node and report when they have all converged. When a node joins or leaves, consistent
+ * hashing moves only the clients between the new node and its ring neighbours (about 1/N of them), and each node
+ * hands the state of the clients it no longer owns to their new owner in the background (see Handoff.java), as
+ * replication records applied only when ahead (see Replicator.java), and then forgets them. A client making a
+ * request in the moment between the change and the arrival of its state may see up to one item again.
+ */
+
+//Import the Java libraries for input/output, buffers, text encoding and concurrency
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* This class represents one version of the member list as seen by this server: the ring, this server's place in it,
+ * and the MOVED lines naming each member, encoded in advance so a MOVED reply allocates nothing. The current
+ * version is swapped as a whole, as with ServerMode, and is null when the server is not part of a cluster.
+ */
+class Cluster {
+
+	private static final AtomicReference<Cluster> current = new AtomicReference<Cluster>(null);
+
+	final HashRing ring;
+	final long epoch;	//The number of the change that set this member list, 0 for the one the server started with
+	final int self;	//This server's member number, or -1 if it has been taken out of the cluster and owns no clients
+	private final ByteBuffer moved;	//"MOVED HOST:PORT" and a line ending for every member, one after the other
+	private final int[] movedStart;
+	private static final int MOVED_PREFIX_BYTES = JokeProtocol.MOVED.length();
+	private static final int LINE_END_BYTES = System.lineSeparator().length();
+
+	//Constructor, takes the ring, its epoch and this server's HOST:PORT
+	Cluster(HashRing ring, long epoch, String node) {
+		this.ring = ring;
+		this.epoch = epoch;
+		this.self = ring.indexOf(node);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		movedStart = new int[ring.members.length + 1];
+		for (int i = 0; i < ring.members.length; i++) {
+			movedStart[i] = bytes.size();
+			byte[] line = (JokeProtocol.MOVED + ring.members[i] + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+			bytes.write(line, 0, line.length);
+		}
+		movedStart[ring.members.length] = bytes.size();
+		moved = ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	//Returns the current member list, or null if the server is not part of a cluster
+	static Cluster current() {
+		return current.get();
+	}
+
+	/* Replaces the member list if the epoch is higher than the current one (or there is none), and returns the member
+	 * list the server has afterwards. The change was applied, or had already been, if that has the given epoch.
+	 */
+	static Cluster set(HashRing ring, long epoch, String node) {
+		while (true) {
+			Cluster cluster = current.get();
+			if (cluster != null && epoch <= cluster.epoch)
+				return cluster;
+			Cluster changed = new Cluster(ring, epoch, node);
+			if (current.compareAndSet(cluster, changed))
+				return changed;
+		}
+	}
+
+	//Returns the member owning the client, for the request path
+	int ownerOf(long hi, long lo) {
+		return ring.ownerOf(hi, lo);
+	}
+
+	/* Adds the "MOVED HOST:PORT" line naming the member to the reply, or for a binary response the MOVED status and
+	 * only the HOST:PORT, taken from the same bytes (see BinaryProtocol.java).
+	 */
+	void addMoved(int member, ReplyBuffer reply) {
+		int length = movedStart[member + 1] - movedStart[member];
+		if (reply.frame >= 0) {
+			BinaryProtocol.status(reply, BinaryProtocol.MOVED);
+			reply.add(moved, movedStart[member] + MOVED_PREFIX_BYTES, length - MOVED_PREFIX_BYTES - LINE_END_BYTES);
+		} else
+			reply.add(moved, movedStart[member], length);
+	}
+
+	//Returns the member list as the admin CLUSTER command reports it, e.g. "CLUSTER localhost:4545,localhost:4546 2"
+	public String toString() {
+		return "CLUSTER " + ring.spec() + " " + epoch;
+	}
+}
@@ -0,0 +1,257 @@
+/* This file contains the client side of the keep-alive protocol (see JokeProtocol.java): a pool of open
+ * connections for each server/port, so that repeated requests, and switching back and forth between the primary
+ * and secondary server, reuse connections that are already open instead of connecting again for every request.
+ * A pool may speak the binary protocol instead (see BinaryProtocol.java), or send each request as a datagram
+ * (see UdpClient.java); responses are handed back as the same lines, so callers do not need to know which protocol
+ * is spoken.
+ */
+
+//Import the Java libraries for input/output, working with networks, and necessary data structures/collections
+import java.io.*;
+import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/* This class represents the pool. Idle connections are kept per "server:port", at most maxIdlePerServer of them,
+ * and are handed out most recently used first. The pool is safe to use from several threads.
+ */
+class ConnectionPool {
+
+	private final int maxIdlePerServer;	//Connections returned beyond this many are closed instead of kept
+	private final boolean binary;	//True if the connections speak the binary protocol
+	private final UdpClient udp;	//Sends the requests if the pool speaks the UDP mode, in which case it holds no connections
+	private final HashMap<String, ArrayDeque<PooledConnection>> idle = new HashMap<String, ArrayDeque<PooledConnection>>();
+
+	//Constructor, takes the number of idle connections to keep for each server/port
+	ConnectionPool(int maxIdlePerServer) {
+		this(maxIdlePerServer, "text");
+	}
+
+	//Same as above, but speaks the given protocol: "text", "binary" or "udp"
+	ConnectionPool(int maxIdlePerServer, String protocol) {
+		this.maxIdlePerServer = maxIdlePerServer;
+		this.binary = protocol.equals("binary");
+		this.udp = protocol.equals("udp") ? new UdpClient() : null;
+	}
+
+	/* Sends one UUID + name request to the given server/port and returns the lines of the response. An idle
+	 * connection is reused if there is one. If the server closed that connection in the meantime (for example
+	 * because it was idle for too long), the request is sent again on a new connection.
+	 */
+	List<String> request(String server, int port, String uuid, String name) throws IOException {
+		return request(server, port, uuid, name, 1);
+	}
+
+	//Same as above, but asks for 'count' jokes/proverbs in one batch response if count is more than 1
+	List<String> request(String server, int port, String uuid, String name, int count) throws IOException {
+		return request(server, port, uuid, name, count, 0);
+	}
+
+	/* Same as above, but gives up with a SocketTimeoutException if connecting or the response takes longer than
+	 * timeoutMillis (0 for no limit). A connection that timed out is closed, since a late response could still arrive on it.
+	 */
+	List<String> request(String server, int port, String uuid, String name, int count, int timeoutMillis) throws IOException {
+		return exchange(server, port, uuid, name, count, timeoutMillis);
+	}
+
+	//Sends a PING to the given server/port and returns once it has answered, see JokeProtocol.java
+	void ping(String server, int port, int timeoutMillis) throws IOException {
+		exchange(server, port, null, null, 0, timeoutMillis);
+	}
+
+	//Sends the request (a PING if uuid is null) on a pooled connection and returns the lines of the response
+	private List<String> exchange(String server, int port, String uuid, String name, int count, int timeoutMillis) throws IOException {
+		if (udp != null)
+			return udp.exchange(server, port, uuid, name, count, timeoutMillis);
+		PooledConnection conn = borrow(server, port);
+		if (conn != null) {
+			try {
+				List<String> response = conn.exchange(uuid, name, count, timeoutMillis);
+				release(conn);
+				return response;
+			} catch (SocketTimeoutException timeout) {
+				conn.close();
+				throw timeout;	//The server is slow rather than the connection stale, so trying again would not help
+			} catch (IOException stale) {
+				conn.close();
+			}
+		}
+
+		conn = new PooledConnection(server, port, timeoutMillis, binary);
+		try {
+			List<String> response = conn.exchange(uuid, name, count, timeoutMillis);
+			release(conn);
+			return response;
+		} catch (IOException ioe) {
+			conn.close();
+			throw ioe;
+		}
+	}
+
+	//Returns the most recently used idle connection to the given server/port, or null if there is none
+	synchronized PooledConnection borrow(String server, int port) {
+		ArrayDeque<PooledConnection> conns = idle.get(server + ":" + port);
+		return conns == null ? null : conns.pollFirst();
+	}
+
+	//Gives a connection back to the pool, or closes it if the pool already holds enough for its server/port
+	void release(PooledConnection conn) {
+		synchronized (this) {
+			ArrayDeque<PooledConnection> conns = idle.get(conn.key);
+			if (conns == null) {
+				conns = new ArrayDeque<PooledConnection>();
+				idle.put(conn.key, conns);
+			}
+			if (conns.size() < maxIdlePerServer) {
+				conns.addFirst(conn);
+				return;
+			}
+		}
+		conn.close();
+	}
+
+	//Closes every idle connection in the pool
+	synchronized void close() {
+		for (ArrayDeque<PooledConnection> conns : idle.values()) {
+			for (PooledConnection conn : conns)
+				conn.close();
+		}
+		idle.clear();
+	}
+}
+
+/* This class represents one keep-alive connection. The KEEP_ALIVE line is sent when the connection is opened,
+ * and every response is read up to its END_OF_RESPONSE line. A connection speaking the binary protocol opens with
+ * its MAGIC and version instead, and reads one response frame per request.
+ */
+class PooledConnection {
+
+	final String key;	//The "server:port" this connection belongs to in the pool
+	private final Socket sock;	//Socket used for server connection
+	private final BufferedReader fromServer;	//Buffer used for receiving text from server
+	private final PrintStream toServer;	//Print stream used to send info to the server
+	private final DataInputStream framesFromServer;	//The binary protocol's streams, or null for the text protocol
+	private final DataOutputStream framesToServer;
+	private final String serverTag;	//The server tag a binary server announced, which its responses leave out
+	private final Deadline deadline;	//Closes the socket if an exchange takes longer than its timeout, see Deadline.java
+
+	//Constructor, connects to the given server/port and announces the keep-alive protocol
+	PooledConnection(String server, int port) throws IOException {
+		this(server, port, 0, false);
+	}
+
+	/* Same as above, but gives up with a SocketTimeoutException if connecting takes longer than timeoutMillis (0 for
+	 * no limit), and speaks the binary protocol if 'binary' is true.
+	 */
+	PooledConnection(String server, int port, int timeoutMillis, boolean binary) throws IOException {
+		key = server + ":" + port;
+		sock = new Socket();
+		sock.connect(new InetSocketAddress(server, port), timeoutMillis);
+		sock.setTcpNoDelay(true);
+		deadline = new Deadline(sock, null);
+		if (binary) {
+			fromServer = null;
+			toServer = null;
+			framesFromServer = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			framesToServer = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			if (timeoutMillis > 0)
+				deadline.arm(Deadline.REQUEST, timeoutMillis);
+			try {
+				serverTag = BinaryProtocol.hello(framesToServer, framesFromServer);
+			} catch (IOException ioe) {
+				close();
+				throw timedOut(ioe, timeoutMillis);
+			} finally {
+				deadline.disarm();
+			}
+		} else {
+			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			toServer = new PrintStream(new BufferedOutputStream(sock.getOutputStream()));
+			toServer.println(JokeProtocol.KEEP_ALIVE);
+			framesFromServer = null;
+			framesToServer = null;
+			serverTag = null;
+		}
+	}
+
+	/* Sends the uuid and name, preceded by a batch line if count is more than 1, then reads the lines of the
+	 * response up to END_OF_RESPONSE. Throws an IOException if the server closes the connection before the
+	 * response is complete.
+	 */
+	List<String> request(String uuid, String name, int count) throws IOException {
+		return exchange(uuid, name, count, 0);
+	}
+
+	/* Sends the request, or a PING if uuid is null, then reads the lines of the response. Gives up with a
+	 * SocketTimeoutException, closing the connection, if the whole exchange takes longer than timeoutMillis (0 for
+	 * no limit): a server trickling its response cannot hold the client past its deadline.
+	 */
+	List<String> exchange(String uuid, String name, int count, int timeoutMillis) throws IOException {
+		if (timeoutMillis > 0)
+			deadline.arm(Deadline.REQUEST, timeoutMillis);
+		try {
+			return send(uuid, name, count);
+		} catch (IOException ioe) {
+			throw timedOut(ioe, timeoutMillis);
+		} finally {
+			deadline.disarm();
+		}
+	}
+
+	//Sends the request, or a PING if uuid is null, and returns the lines of the response
+	private List<String> send(String uuid, String name, int count) throws IOException {
+		if (framesToServer != null) {
+			if (uuid == null)
+				BinaryProtocol.writePing(framesToServer);
+			else
+				BinaryProtocol.writeRequest(framesToServer, uuid, name, count);
+			framesToServer.flush();
+			try {
+				return BinaryProtocol.readResponse(framesFromServer, serverTag, name);
+			} catch (EOFException eof) {
+				throw new IOException("Connection to " + key + " closed before the end of the response");
+			}
+		}
+		if (uuid == null)
+			return exchange(JokeProtocol.PING);
+		if (count > 1)
+			return exchange(JokeProtocol.BATCH + count + "\n" + uuid + "\n" + name);
+		return exchange(uuid + "\n" + name);
+	}
+
+	//Sends the message lines, then reads the lines of the response up to END_OF_RESPONSE
+	private List<String> exchange(String message) throws IOException {
+		toServer.println(message);
+		toServer.flush();
+		if (toServer.checkError())
+			throw new IOException("Connection to " + key + " is closed");
+
+		List<String> lines = new ArrayList<String>(2);
+		String line;
+		while ((line = fromServer.readLine()) != null) {
+			if (line.equals(JokeProtocol.END_OF_RESPONSE))
+				return lines;
+			lines.add(line);
+		}
+		throw new IOException("Connection to " + key + " closed before the end of the response");
+	}
+
+	//Returns a SocketTimeoutException in place of the given exception if it was caused by the deadline closing the socket
+	private IOException timedOut(IOException ioe, int timeoutMillis) {
+		if (!deadline.expired())
+			return ioe;
+		return new SocketTimeoutException("No response from " + key + " within " + timeoutMillis + " ms");
+	}
+
+	//Closes the connection, ignoring any error since there is nothing left to do with it
+	void close() {
+		deadline.cancel();
+		try {
+			sock.close();
+		} catch (IOException ioe) {
+			//Nothing to do, the connection is gone either way
+		}
+	}
+}
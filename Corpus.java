@@ -0,0 +1,33 @@
+/* This file contains the interface the JokeServer reads its jokes/proverbs through. The built-in jokes/proverbs
+ * are held in memory (see ArrayCorpus.java), and large corpora are memory mapped from a file (see MappedCorpus.java).
+ *
+ * Every entry has a 3 character tag (e.g. "JA ") and a body (e.g. "Joke 1"), which the server sends as
+ * tag + client name + ": " + body. Both are encoded as UTF-8 when the corpus is loaded, and are added to
+ * replies as views of those bytes (see ReplyBuffer.java).
+ */
+
+/* This interface represents a corpus of entries, indexed from 0 to size() - 1. Implementations must be safe to
+ * read from many threads at once and must never change once they have been created.
+ */
+interface Corpus {
+
+	int TAG_LENGTH = 3;	//The number of characters in every entry's tag
+
+	//Returns the number of entries
+	int size();
+
+	//Returns the tag of entry i
+	String tag(int i);
+
+	//Returns the body of entry i, i.e. the entry without its tag
+	String body(int i);
+
+	//Returns the most bytes the encoded tag and body of any one entry take together
+	int maxEntryBytes();
+
+	//Adds the encoded tag of entry i to the reply
+	void appendTag(int i, ReplyBuffer reply);
+
+	//Adds the encoded body of entry i to the reply
+	void appendBody(int i, ReplyBuffer reply);
+}
@@ -0,0 +1,73 @@
+/* This file contains the immutable pair of corpora (jokes and proverbs) the JokeServer is serving. The server
+ * holds the current snapshot in a volatile field: a request reads that field once and uses the snapshot it got
+ * for its whole reply, so an admin RELOAD can build a new snapshot on the admin thread and publish it with a
+ * single write, while requests already in flight finish on the old one. Reads never take a lock.
+ *
+ * What happens to a client's place in its cycle when a corpus is reloaded is decided by the reloadPolicy option:
+ *   keep    - the client keeps its position. If the new corpus has no more entries than that position, the
+ *             client starts a new cycle. Since the client's order depends on the corpus size, a cycle in which
+ *             the size changed may repeat or skip entries; later cycles are complete again.
+ *   restart - every client starts a new cycle, in its own new order, on its first request after the reload.
+ */
+
+//Import the Java libraries for input/output
+import java.io.*;
+
+/* This class represents one snapshot. Each corpus has a generation number, which goes up by one every time
+ * that corpus is reloaded, so the client state store can tell which clients' cursors predate a reload.
+ */
+class CorpusSnapshot {
+
+	final Corpus jokes;	//The jokes being served
+	final Corpus proverbs;	//The proverbs being served
+	final int jokesGeneration;	//How many times the jokes have been reloaded
+	final int proverbsGeneration;	//How many times the proverbs have been reloaded
+
+	//Constructor, takes the corpora and their generations
+	CorpusSnapshot(Corpus jokes, Corpus proverbs, int jokesGeneration, int proverbsGeneration) {
+		this.jokes = jokes;
+		this.proverbs = proverbs;
+		this.jokesGeneration = jokesGeneration;
+		this.proverbsGeneration = proverbsGeneration;
+	}
+
+	//Returns the corpus for the given ClientStateStore mode
+	Corpus corpus(int mode) {
+		return mode == ClientStateStore.JOKES ? jokes : proverbs;
+	}
+
+	//Returns the generation of the corpus for the given ClientStateStore mode
+	int generation(int mode) {
+		return mode == ClientStateStore.JOKES ? jokesGeneration : proverbsGeneration;
+	}
+
+	/* Returns a new snapshot in which the corpora read from the given files (either may be null to keep the
+	 * current corpus) replace those of this snapshot. The files are mapped and checked before anything is
+	 * returned, so a bad file leaves the server serving this snapshot. Throws an IOException if a file cannot be
+	 * loaded or is empty.
+	 */
+	CorpusSnapshot reload(String jokesFile, String proverbsFile) throws IOException {
+		Corpus newJokes = jokes;
+		Corpus newProverbs = proverbs;
+		int newJokesGeneration = jokesGeneration;
+		int newProverbsGeneration = proverbsGeneration;
+
+		if (jokesFile != null) {
+			newJokes = load(jokesFile);
+			newJokesGeneration++;
+		}
+		if (proverbsFile != null) {
+			newProverbs = load(proverbsFile);
+			newProverbsGeneration++;
+		}
+		return new CorpusSnapshot(newJokes, newProverbs, newJokesGeneration, newProverbsGeneration);
+	}
+
+	//Maps a corpus file, throwing an IOException if it cannot be loaded or has no entries
+	private static Corpus load(String file) throws IOException {
+		Corpus corpus = new MappedCorpus(new File(file));
+		if (corpus.size() == 0)
+			throw new IOException(file + " has no entries");
+		return corpus;
+	}
+}
@@ -0,0 +1,57 @@
+/* This file contains the permutation that decides the order in which a client sees the jokes/proverbs of one
+ * cycle. Instead of shuffling the shared arrays (which reorders them under every other client in the middle of
+ * their cycles), each client and cycle gets its own pseudo-random order, computed from a key rather than stored:
+ * a small Feistel network is a bijection on [0, 2^bits), and "cycle walking" (re-applying it until the result
+ * falls inside [0, size)) turns that into a bijection on [0, size). Position p of a cycle is therefore sent item
+ * index(p, size, key), every item appears exactly once per cycle, and the per-client cost is the cycle number
+ * the ClientStateStore already keeps, for corpora of any size up to Integer.MAX_VALUE.
+ */
+
+/* This class holds the permutation functions. They have no state, so the same client, mode and cycle give the same
+ * order on every server and after a restart.
+ */
+class CyclePermutation {
+
+	private static final int ROUNDS = 6;	//Feistel rounds. Six keep small cycles (a handful of items) close to evenly shuffled
+
+	/* Returns the index of the item sent at the given position of a cycle of 'size' items, for the cycle with the
+	 * given key. For a fixed size and key this is a bijection on [0, size). The expected number of Feistel
+	 * evaluations is below 4, since the domain [0, 2^bits) is less than four times larger than the cycle.
+	 */
+	static int index(int position, int size, long key) {
+		if (size <= 1)
+			return 0;
+
+		//Use an even number of bits so the two halves of the Feistel network are the same width
+		int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		if ((bits & 1) == 1)
+			bits++;
+		int half = bits / 2;
+		int mask = (1 << half) - 1;
+
+		int x = position;
+		do {
+			int left = x >>> half;
+			int right = x & mask;
+			for (int round = 0; round < ROUNDS; round++) {
+				int next = left ^ ((int) mix(key + round * 0x9E3779B97F4A7C15L + right) & mask);
+				left = right;
+				right = next;
+			}
+			x = (left << half) | right;
+		} while ((x & 0xFFFFFFFFL) >= size);	//Unsigned, since with 32 bits x may not fit in a positive int
+		return x;
+	}
+
+	//Returns the key of one client's cycle in one mode, from the client's UUID, the mode and the cycle number
+	static long key(long hi, long lo, int mode, int cycle) {
+		return mix(mix(hi ^ mode) + lo) ^ mix(cycle + 0x632BE59BD9B4E019L);
+	}
+
+	//Spreads the bits of a long so that nearby inputs give unrelated outputs (the SplitMix64 finalizer)
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
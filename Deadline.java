@@ -0,0 +1,98 @@
+/* This file contains the deadline of one connection, on the server and in the clients. When it passes, the
+ * connection is closed by the TimerWheel's thread, which makes a read or write blocked on it fail at once (see
+ * TimerWheel.java for why, and for how deadlines are kept).
+ */
+
+//Import the Java libraries for closing connections and atomic counters
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* This class represents the deadline of one connection, which closes the connection when it passes. It is armed
+ * for one phase of the connection after the other with arm(), and cancelled once the connection is closed. The
+ * phase it expired in is counted, on the server (see Metrics.java).
+ */
+class Deadline {
+
+	//The phases of a connection, which say what it was waiting for if its deadline passes
+	static final int REQUEST = 0, IDLE = 1, WRITE = 2;
+	static final String[] PHASES = { "request", "idle", "write" };
+
+	private static final long DISARMED = Long.MAX_VALUE;
+	private static final long EXPIRED = Long.MIN_VALUE;
+
+	private final Closeable target;	//What is closed when the deadline passes
+	private final LongAdder[] expirations;	//Counted by phase when the deadline passes, or null
+	private final AtomicLong at = new AtomicLong(DISARMED);	//When it passes on the wheel's clock, DISARMED or EXPIRED
+	private volatile int phase = REQUEST;
+	private boolean added = false;	//True once handed to the wheel; only used by the connection's thread
+	volatile boolean cancelled = false;
+	Deadline next;	//The next deadline in the same bucket, only used by the wheel thread
+
+	//Constructor, takes what to close when the deadline passes and the counters of expirations by phase, if any
+	Deadline(Closeable target, LongAdder[] expirations) {
+		this.target = target;
+		this.expirations = expirations;
+	}
+
+	/* Sets the deadline to 'millis' from now, for the given phase. Once it has expired it stays expired. This is
+	 * only called by the thread using the connection.
+	 */
+	void arm(int phase, long millis) {
+		this.phase = phase;
+		long when = TimerWheel.now() + millis;
+		long current = at.get();
+		if (current != EXPIRED)
+			at.compareAndSet(current, when);
+		if (!added) {
+			added = true;
+			TimerWheel.shared().add(this);
+		}
+	}
+
+	//Takes the deadline off the connection until it is armed again
+	void disarm() {
+		long current = at.get();
+		if (current != EXPIRED)
+			at.compareAndSet(current, DISARMED);
+	}
+
+	//Drops the deadline for good, once the connection is closed
+	void cancel() {
+		cancelled = true;
+		disarm();
+	}
+
+	//Returns the phase the deadline was last armed for
+	int phase() {
+		return phase;
+	}
+
+	//Returns true if the deadline has passed, and closed the connection
+	boolean expired() {
+		return at.get() == EXPIRED;
+	}
+
+	//Returns the time the deadline passes on the wheel's clock
+	long at() {
+		return at.get();
+	}
+
+	/* Called by the wheel thread: if the deadline has passed and has not been moved in the meantime, marks it
+	 * expired, counts it and closes the connection, and returns true.
+	 */
+	boolean expireIfDue(long now) {
+		long when = at.get();
+		if (when > now || !at.compareAndSet(when, EXPIRED))
+			return false;
+		if (expirations != null)
+			expirations[phase].increment();
+		try {
+			target.close();
+		} catch (IOException ioe) {
+			//Nothing to do, the connection is gone either way
+		}
+		return true;
+	}
+}
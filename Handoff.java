@@ -0,0 +1,135 @@
+/* This file contains the handing off of client state between the members of a cluster when the member list changes
+ * (see Cluster.java).
+ */
+
+//Import the Java libraries for input/output, networking, buffers and arrays
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* This class represents the handing off of client state after the member list changed: it runs once, on a thread of
+ * its own, sends the state of every client this server no longer owns to the client's new owner, and then removes
+ * those clients from this server's store. The state goes to the owner's state port, where the owner's ReplicaReceiver
+ * applies it like replicated state, so it only moves a client's cursor forward, and acknowledges it once applied
+ * (and logged, with stateDir); clients are only removed after that. A client whose owner takes no state, cannot be
+ * reached or does not acknowledge its state is kept, so nothing is lost if the member list is changed back. Removing a client is not
+ * logged, so with stateDir a snapshot is written after clients were removed; otherwise the log would bring them back
+ * on the next restart (see ClientStateLog.java).
+ */
+class Handoff implements Runnable {
+
+	static final int ACK_TIMEOUT_MILLIS = 10000;	//How long the new owner has to acknowledge the state sent to it
+
+	private final Cluster cluster;	//The member list that decides who owns each client
+	private final ClientStateStore store;
+	private static final Object running = new Object();	//Handoffs run one at a time, so a later list waits for an earlier one
+
+	//Constructor, takes the new member list and the store to hand clients off from
+	Handoff(Cluster cluster, ClientStateStore store) {
+		this.cluster = cluster;
+		this.store = store;
+	}
+
+	//Starts the handoff on a daemon thread
+	void start() {
+		Thread t = new Thread(this, "cluster-handoff");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		synchronized (running) {
+			if (Cluster.current() != cluster)
+				return;	//Replaced by a newer member list while waiting, whose handoff covers this one's
+			final int members = cluster.ring.members.length;
+			final long[][] keys = new long[members][];	//The keys of the clients going to each member, hi and lo
+			final int[] counts = new int[members];
+			final ByteBuffer[] records = new ByteBuffer[members];	//Their state, as replication records
+			try {
+				store.forEachClient(new ClientStateStore.Visitor() {
+					public void visit(long hi, long lo, int[] state, int at, long lastUsedSeconds) {
+						int owner = cluster.ownerOf(hi, lo);
+						if (owner == cluster.self)
+							return;
+						if (keys[owner] == null) {
+							keys[owner] = new long[64];
+							records[owner] = ByteBuffer.allocate((64 + 1) * UpdateBuffer.RECORD_BYTES);	//One more for HANDOFF_END
+						} else if (2 * counts[owner] == keys[owner].length) {
+							keys[owner] = Arrays.copyOf(keys[owner], keys[owner].length * 2);
+							ByteBuffer grown = ByteBuffer.allocate(records[owner].capacity() * 2);
+							records[owner].flip();
+							records[owner] = grown.put(records[owner]);
+						}
+						keys[owner][2 * counts[owner]] = hi;
+						keys[owner][2 * counts[owner] + 1] = lo;
+						counts[owner]++;
+						for (int mode = 0; mode < 2; mode++) {
+							int base = at + mode * ClientStateStore.INTS_PER_MODE;
+							UpdateBuffer.encode(records[owner], hi, lo, mode, state[base + ClientStateStore.POSITION],
+									state[base + ClientStateStore.CYCLE]);
+						}
+					}
+				});
+			} catch (IOException ioe) {
+				return;	//The visitor above throws nothing
+			}
+
+			boolean removed = false;
+			for (int owner = 0; owner < members; owner++) {
+				if (counts[owner] == 0)
+					continue;
+				String member = cluster.ring.members[owner];
+				if (cluster.ring.statePorts[owner] == 0) {
+					System.out.println(JokeServer.serverTag + "Cluster epoch " + cluster.epoch + ": " + counts[owner]
+							+ " clients now belong to " + member + ", which takes no handed off state; they are kept here");
+					continue;
+				}
+				try {
+					send(cluster.ring.hosts[owner], cluster.ring.statePorts[owner], records[owner], 2 * counts[owner]);
+				} catch (IOException ioe) {
+					System.out.println(JokeServer.serverTag + "Cluster epoch " + cluster.epoch + ": cannot hand " + counts[owner]
+							+ " clients off to " + member + ": " + ioe.getMessage() + "; they are kept here");
+					continue;
+				}
+				for (int i = 0; i < counts[owner]; i++)
+					store.remove(keys[owner][2 * i], keys[owner][2 * i + 1]);
+				removed = true;
+				Metrics.handedOff.add(counts[owner]);
+				System.out.println(JokeServer.serverTag + "Cluster epoch " + cluster.epoch + ": handed " + counts[owner]
+						+ " clients off to " + member);
+			}
+
+			if (removed && JokeServer.stateLog != null) {
+				try {
+					JokeServer.stateLog.snapshot();
+				} catch (IOException ioe) {
+					System.out.println(JokeServer.serverTag + "Cluster epoch " + cluster.epoch + ": snapshot after handoff failed: "
+							+ ioe.getMessage() + "; a restart may bring the handed off clients back");
+				}
+			}
+		}
+	}
+
+	/* Sends the 'count' records to the state port, followed by a HANDOFF_END record, and waits for the receiver to
+	 * acknowledge all of them. Throws an IOException if it cannot be reached, goes away or acknowledges fewer.
+	 */
+	private static void send(String host, int port, ByteBuffer records, long count) throws IOException {
+		Socket sock = new Socket();
+		try {
+			sock.connect(new InetSocketAddress(host, port), 1000);
+			sock.setSoTimeout(ACK_TIMEOUT_MILLIS);
+			UpdateBuffer.encode(records, count, 0, Replicator.HANDOFF_END, 0, 0);
+			OutputStream out = sock.getOutputStream();
+			out.write(records.array(), 0, records.position());
+			out.flush();
+			long acknowledged = new DataInputStream(sock.getInputStream()).readLong();
+			if (acknowledged != count)
+				throw new IOException("acknowledged " + acknowledged + " of " + count + " records");
+		} catch (EOFException eof) {
+			throw new IOException("the connection was closed before the state was acknowledged");
+		} finally {
+			sock.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/* This file contains the consistent hash ring that decides which member of a cluster owns each client (see
+ * Cluster.java). Servers and clients build it from the same member list, so they agree on every client's owner.
+ */
+
+//Import the Java libraries for input/output, local addresses and sorting
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+
+/* This class represents a consistent hash ring over a list of members. It is immutable, and shared by any number
+ * of threads. The same member list gives every server and client the same ring.
+ */
+class HashRing {
+
+	static final int DEFAULT_VIRTUAL_NODES = 160;	//Points per member; more points spread the clients more evenly
+
+	final String[] members;	//The members' HOST:PORT, in the order given
+	final String[] hosts;
+	final int[] ports;
+	final int[] statePorts;	//The port each member accepts handed off client state at, or 0 if it takes none
+	private final long[] points;	//The hashes of the members' points, sorted
+	private final int[] owners;	//The member of each point
+
+	/* Constructor, takes the members as "HOST:PORT[/STATEPORT],..." and the number of points per member. Throws an
+	 * IllegalArgumentException if a member is malformed or given twice.
+	 */
+	HashRing(String spec, int virtualNodes) {
+		String[] parts = spec.split(",");
+		members = new String[parts.length];
+		hosts = new String[parts.length];
+		ports = new int[parts.length];
+		statePorts = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			String member = parts[i].trim();
+			int slash = member.indexOf('/');
+			if (slash >= 0) {
+				statePorts[i] = ServerConfig.positiveInt("cluster", member.substring(slash + 1));
+				member = member.substring(0, slash);
+			}
+			int colon = member.lastIndexOf(':');
+			if (colon <= 0)
+				throw new IllegalArgumentException("Invalid cluster member: " + parts[i]);
+			hosts[i] = member.substring(0, colon);
+			ports[i] = ServerConfig.positiveInt("cluster", member.substring(colon + 1));
+			members[i] = member;
+			for (int j = 0; j < i; j++) {
+				if (members[j].equals(member))
+					throw new IllegalArgumentException("Cluster member given twice: " + member);
+			}
+		}
+
+		//Put every member on the ring at virtualNodes points, then sort the points, keeping each one's member
+		long[] unsorted = new long[members.length * virtualNodes];
+		for (int i = 0; i < members.length; i++) {
+			for (int v = 0; v < virtualNodes; v++)
+				unsorted[i * virtualNodes + v] = hash(members[i] + "#" + v) & ~0xFFFFL | (i & 0xFFFF);
+		}
+		Arrays.sort(unsorted);	//The low 16 bits carry the member along, and break ties between members consistently
+		points = new long[unsorted.length];
+		owners = new int[unsorted.length];
+		for (int p = 0; p < unsorted.length; p++) {
+			points[p] = unsorted[p];
+			owners[p] = (int) (unsorted[p] & 0xFFFF);
+		}
+	}
+
+	//Returns the members in the form the constructor takes, state ports included
+	String spec() {
+		StringBuilder spec = new StringBuilder();
+		for (int i = 0; i < members.length; i++) {
+			if (i > 0)
+				spec.append(',');
+			spec.append(members[i]);
+			if (statePorts[i] > 0)
+				spec.append('/').append(statePorts[i]);
+		}
+		return spec.toString();
+	}
+
+	//Returns the number of the member owning the client with the given key (see ClientStateStore.keyHigh())
+	int ownerOf(long hi, long lo) {
+		long h = mix(hi ^ mix(lo));
+		int at = Arrays.binarySearch(points, h);
+		if (at < 0)
+			at = -at - 1;	//The first point after the hash
+		return owners[at == points.length ? 0 : at];
+	}
+
+	//Returns the number of the member owning the client with the given UUID
+	int ownerOf(String uuid) {
+		return ownerOf(ClientStateStore.keyHigh(uuid), ClientStateStore.keyLow(uuid));
+	}
+
+	//Returns the number of the member with the given HOST:PORT, or -1 if it is not a member
+	int indexOf(String member) {
+		for (int i = 0; i < members.length; i++) {
+			if (members[i].equals(member))
+				return i;
+		}
+		return -1;
+	}
+
+	/* Returns the number of the member at the given port whose host is an address of this machine, -1 if there is
+	 * none, or -2 if there is more than one (e.g. two local names for the same port), in which case the server must be
+	 * told which member it is. A host that cannot be resolved is taken to be another machine.
+	 */
+	int localMember(int port) {
+		int found = -1;
+		for (int i = 0; i < members.length; i++) {
+			if (ports[i] != port || !isLocal(hosts[i]))
+				continue;
+			if (found >= 0)
+				return -2;
+			found = i;
+		}
+		return found;
+	}
+
+	//Returns true if the host name resolves to an address of this machine
+	static boolean isLocal(String host) {
+		try {
+			for (InetAddress address : InetAddress.getAllByName(host)) {
+				if (address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null)
+					return true;
+			}
+		} catch (IOException ioe) {
+			//Unknown host, or the interfaces cannot be listed
+		}
+		return false;
+	}
+
+	//Returns a 64 bit hash of the string (FNV-1a, then mixed so that similar strings land far apart)
+	static long hash(String s) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	//The finalizer of SplitMix64, which spreads every input bit over the whole result
+	static long mix(long h) {
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+}
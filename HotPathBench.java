@@ -0,0 +1,366 @@
+/* This file contains microbenchmarks of the JokeServer's per-request path, so that a change which slows a request
+ * down or makes it allocate shows up as a number. Each benchmark runs every combination of the parameters, and for
+ * each one reports the time per operation, the throughput over all threads and the allocation per operation and per
+ * second. Options are key=value pairs; parameters take comma separated lists:
+ *
+ * > java HotPathBench
+ * > java HotPathBench bench=handleClient,stateAdvance corpusSize=4,10000 clients=1000,1000000 threads=1,4
+ *
+ *   bench          - the benchmarks to run, see BENCHMARKS below (all)
+ *   corpusSize     - jokes and proverbs in the corpus (4,1000)
+ *   clients        - distinct clients the operations are spread over at random (16,100000)
+ *   threads        - threads running the operation at the same time (1, plus the number of cores if more than 1)
+ *   warmupMillis   - how long each combination runs before measuring, so the JIT compiled code is measured (1000)
+ *   measureMillis  - how long each combination is measured for (2000)
+ *
+ * The benchmarks:
+ *
+ *   handleClient       - a whole request: Worker.handleClient() with a random client, alternating joke/proverb mode
+ *   sendJoke           - adding one joke line to the reply buffer
+ *   sendProverb        - adding one proverb line to the reply buffer
+ *   stateAdvance       - looking up a random client's cursor in the client state store and moving it forward
+ *   uuidKey            - turning a UUID string into the store's key (ClientStateStore.keyHigh()/keyLow())
+ *   cyclePermutation   - the client's order of the corpus: a new cycle key and the index of one position in it
+ *   replyWrite         - assembling a one joke reply and writing it with a gathering write to a channel that
+ *                        discards it, i.e. the encoding and the write without the socket
+ *   textParse          - parsing a keep-alive text request as the NIO engine does: taking the UUID and name lines
+ *                        from the received bytes, and turning the UUID into the store's key
+ *   binaryParse        - parsing the same request in the binary protocol (see BinaryProtocol.java)
+ *   textRequest        - a whole keep-alive text request from its received bytes to its reply, as the NIO engine
+ *                        handles it (NioConnection.process()), alternating joke/proverb mode
+ *   binaryRequest      - the same in the binary protocol
+ *
+ * Time per operation is per thread (elapsed time / operations done by that thread, averaged over the threads).
+ * Allocation is measured per thread by the JVM (com.sun.management.ThreadMXBean), and is n/a on JVMs without it.
+ * The server's console output is discarded while benchmarking.
+ */
+
+//Import the Java libraries for input/output, buffers, channels, text encoding and collections
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/* This class represents the benchmark suite and its options. */
+class HotPathBench {
+
+	static final ServerMode[] MODES = { new ServerMode(true, 0), new ServerMode(false, 0) };	//Switched between by handleClient
+
+	static final String[] BENCHMARKS = { "handleClient", "sendJoke", "sendProverb", "stateAdvance", "uuidKey",
+			"cyclePermutation", "replyWrite", "textParse", "binaryParse", "textRequest", "binaryRequest" };
+
+	String[] benchmarks = BENCHMARKS;
+	int[] corpusSizes = { 4, 1000 };
+	int[] clientCounts = { 16, 100000 };
+	int[] threadCounts = Runtime.getRuntime().availableProcessors() > 1
+			? new int[] { 1, Runtime.getRuntime().availableProcessors() } : new int[] { 1 };
+	int warmupMillis = 1000;
+	int measureMillis = 2000;
+
+	//The state of the combination being run, read by the benchmark threads
+	String[] uuids;	//The clients' UUIDs
+	long[] his;	//The clients' keys, see ClientStateStore.keyHigh()
+	long[] los;
+	byte[][] textRequests;	//The clients' requests in the keep-alive text protocol
+	byte[][] binaryRequests;	//The same in the binary protocol
+	Corpus jokes;
+	Corpus proverbs;
+	volatile boolean running;	//Cleared to end the measurement
+	volatile boolean measuring;	//Set once the warmup is over
+
+	//Parses the key=value arguments described above, throwing an IllegalArgumentException for a bad one
+	static HotPathBench parse(String args[]) {
+		HotPathBench bench = new HotPathBench();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+
+			if (key.equals("bench")) {
+				bench.benchmarks = value.split(",");
+				for (String name : bench.benchmarks)
+					ServerConfig.oneOf(key, name, BENCHMARKS);
+			} else if (key.equals("corpusSize"))
+				bench.corpusSizes = positiveInts(key, value);
+			else if (key.equals("clients"))
+				bench.clientCounts = positiveInts(key, value);
+			else if (key.equals("threads"))
+				bench.threadCounts = positiveInts(key, value);
+			else if (key.equals("warmupMillis"))
+				bench.warmupMillis = ServerConfig.nonNegativeInt(key, value);
+			else if (key.equals("measureMillis"))
+				bench.measureMillis = ServerConfig.positiveInt(key, value);
+			else
+				throw new IllegalArgumentException("Unrecognized option: " + key);
+		}
+		return bench;
+	}
+
+	//Returns the comma separated values as ints, each of which must be greater than zero
+	private static int[] positiveInts(String key, String value) {
+		String[] parts = value.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = ServerConfig.positiveInt(key, parts[i]);
+		return values;
+	}
+
+	public static void main(String args[]) throws Exception {
+		HotPathBench bench;
+		try {
+			bench = parse(args);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return;
+		}
+		bench.run();
+	}
+
+	//Runs every benchmark with every combination of the parameters, printing one line per combination
+	void run() throws InterruptedException {
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		console.printf("%-17s %10s %9s %8s %12s %14s %12s %12s%n", "Benchmark", "corpusSize", "clients", "threads",
+				"ns/op", "ops/sec", "bytes/op", "MB/sec");
+		for (String name : benchmarks) {
+			for (int corpusSize : corpusSizes) {
+				for (int clientCount : clientCounts) {
+					setUp(corpusSize, clientCount);
+					for (int threads : threadCounts) {
+						double[] result = measure(name, threads);
+						console.printf("%-17s %10d %9d %8d %12.1f %14.0f %12s %12s%n", name, corpusSize, clientCount, threads,
+								result[0], result[1], result[2] < 0 ? "n/a" : String.format("%.2f", result[2]),
+								result[2] < 0 ? "n/a" : String.format("%.2f", result[2] * result[1] / 1e6));
+					}
+				}
+			}
+		}
+		System.setOut(console);
+	}
+
+	/* Sets up the server state for one combination: a corpus of the given size in both modes, and a new client
+	 * state store which already holds every client, so the benchmarks measure lookups of existing clients.
+	 */
+	private void setUp(int corpusSize, int clientCount) {
+		jokes = corpus("J", "Joke", corpusSize);
+		proverbs = corpus("P", "Proverb", corpusSize);
+		JokeServer.corpus = new CorpusSnapshot(jokes, proverbs, 0, 0);
+		JokeServer.clients = new ClientStateStore();
+
+		Random random = new Random(42);
+		uuids = new String[clientCount];
+		his = new long[clientCount];
+		los = new long[clientCount];
+		textRequests = new byte[clientCount][];
+		binaryRequests = new byte[clientCount][];
+		for (int i = 0; i < clientCount; i++) {
+			uuids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+			his[i] = ClientStateStore.keyHigh(uuids[i]);
+			los[i] = ClientStateStore.keyLow(uuids[i]);
+			JokeServer.clients.advance(his[i], los[i], ClientStateStore.JOKES, 1, corpusSize, 0, false);
+			JokeServer.clients.advance(his[i], los[i], ClientStateStore.PROVERBS, 1, corpusSize, 0, false);
+			textRequests[i] = (uuids[i] + "\nBench\n").getBytes(StandardCharsets.UTF_8);
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			try {
+				BinaryProtocol.writeRequest(new DataOutputStream(frame), uuids[i], "Bench", 1);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			binaryRequests[i] = frame.toByteArray();
+		}
+	}
+
+	//Returns a corpus of 'size' entries tagged like the built-in ones, e.g. "JA Joke 1"
+	private static Corpus corpus(String letter, String kind, int size) {
+		String[] entries = new String[size];
+		for (int i = 0; i < size; i++)
+			entries[i] = letter + (char) ('A' + i % 26) + " " + kind + " " + (i + 1);
+		return new ArrayCorpus(entries);
+	}
+
+	/* Runs the benchmark on the given number of threads for the warmup and then the measurement, and returns the
+	 * time per operation in ns, the operations per second over all threads, and the bytes allocated per operation
+	 * (or -1 if the JVM cannot tell).
+	 */
+	private double[] measure(final String name, int threads) throws InterruptedException {
+		final BenchThread[] workers = new BenchThread[threads];
+		running = true;
+		measuring = false;
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new BenchThread(name, t);
+			workers[t].start();
+		}
+		Thread.sleep(warmupMillis);
+		measuring = true;
+		Thread.sleep(measureMillis);
+		running = false;
+
+		long ops = 0;
+		long allocated = 0;
+		double nanosPerOp = 0;
+		double seconds = 0;
+		for (BenchThread worker : workers) {
+			worker.join();
+			ops += worker.ops;
+			allocated = (allocated < 0 || worker.allocated < 0) ? -1 : allocated + worker.allocated;
+			nanosPerOp += worker.nanos / (double) worker.ops / threads;
+			seconds = Math.max(seconds, worker.nanos / 1e9);
+		}
+		return new double[] { nanosPerOp, ops / seconds, allocated < 0 ? -1 : allocated / (double) ops };
+	}
+
+	/* This class represents one thread running a benchmark. It runs the operation in chunks of CHUNK, so checking
+	 * the clock and the flags costs nothing next to the operation, and counts only the chunks run while measuring.
+	 */
+	private final class BenchThread extends Thread {
+
+		static final int CHUNK = 1024;
+
+		private final String name;
+		private long seed;	//State of the thread's random number generator (xorshift), which allocates nothing
+		long ops = 0;	//Operations run while measuring
+		long nanos = 0;	//Time spent running them
+		long allocated = 0;	//Bytes allocated while running them, or -1 if the JVM cannot tell
+		private final NioConnection textConnection = new NioConnection();	//Connections receiving the requests
+		private final NioConnection binaryConnection = new NioConnection();
+		private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+		private final ByteBuffer received = ByteBuffer.allocate(256);	//Holds each request's bytes as if read from a socket
+
+		BenchThread(String name, int index) {
+			super("bench-" + index);
+			this.name = name;
+			this.seed = 0x9E3779B97F4A7C15L * (index + 1);
+		}
+
+		public void run() {
+			ReplyBuffer reply = ReplyBuffer.forThread();
+			GatheringByteChannel discard = new ReplyBuffer.NullChannel();
+
+			//Open both connections, with the KEEP_ALIVE line and with the binary protocol's MAGIC and version
+			receive(textConnection, (JokeProtocol.KEEP_ALIVE + "\n").getBytes(StandardCharsets.UTF_8));
+			receive(binaryConnection, new byte[] { (byte) BinaryProtocol.MAGIC, BinaryProtocol.VERSION });
+			process(textConnection, reply);
+			process(binaryConnection, reply);
+			reply.clear();
+
+			long sink = 0;	//Results of the operations, so the JIT cannot drop them
+			long start = 0;
+			long allocatedBefore = 0;
+			boolean started = false;
+
+			while (running) {
+				if (!started && measuring) {
+					started = true;
+					start = System.nanoTime();
+					allocatedBefore = ReplyBuffer.allocatedBytes();
+				}
+				for (int i = 0; i < CHUNK; i++)
+					sink += operation(reply, discard, i);
+				if (started)
+					ops += CHUNK;
+			}
+			nanos = System.nanoTime() - start;
+			long allocatedAfter = ReplyBuffer.allocatedBytes();
+			allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+			if (sink == 42)
+				System.out.println(sink);
+		}
+
+		//Runs the benchmark's operation once and returns something computed from it
+		private long operation(ReplyBuffer reply, GatheringByteChannel discard, int i) {
+			int client = nextClient();
+			switch (name) {
+			case "handleClient":
+				ServerMode.force(MODES[i & 1]);
+				Worker.handleClient(uuids[client], "Bench", 1, reply);
+				int size = reply.size();
+				reply.clear();
+				return size;
+			case "sendJoke":
+				reply.setName("Bench");
+				Worker.sendJoke(jokes, client % jokes.size(), false, reply);
+				size = reply.size();
+				reply.clear();
+				return size;
+			case "sendProverb":
+				reply.setName("Bench");
+				Worker.sendProverb(proverbs, client % proverbs.size(), false, reply);
+				size = reply.size();
+				reply.clear();
+				return size;
+			case "stateAdvance":
+				return JokeServer.clients.advance(his[client], los[client], i & 1, 1, jokes.size(), 0, false);
+			case "uuidKey":
+				return ClientStateStore.keyHigh(uuids[client]) ^ ClientStateStore.keyLow(uuids[client]);
+			case "cyclePermutation":
+				long key = CyclePermutation.key(his[client], los[client], i & 1, i);
+				return CyclePermutation.index(i % jokes.size(), jokes.size(), key);
+			case "textParse":
+				receive(textConnection, textRequests[client]);
+				String uuid = textConnection.takeLine();
+				String clientName = textConnection.takeLine();
+				return ClientStateStore.keyHigh(uuid) ^ ClientStateStore.keyLow(uuid) ^ clientName.length();
+			case "binaryParse":
+				receive(binaryConnection, binaryRequests[client]);
+				try {
+					binaryConnection.takeFrame(request);
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+				return request.hi ^ request.lo ^ request.name.length();
+			case "textRequest":
+			case "binaryRequest":
+				ServerMode.force(MODES[i & 1]);
+				boolean text = name.equals("textRequest");
+				receive(text ? textConnection : binaryConnection, text ? textRequests[client] : binaryRequests[client]);
+				process(text ? textConnection : binaryConnection, reply);
+				size = reply.size();
+				reply.clear();
+				return size;
+			default:	//replyWrite
+				reply.setName("Bench");
+				Worker.sendJoke(jokes, client % jokes.size(), false, reply);
+				try {
+					reply.writeTo(discard);
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+				return 0;
+			}
+		}
+
+		//Hands the bytes to the connection as the event loop does with the bytes read from a socket
+		private void receive(NioConnection conn, byte[] bytes) {
+			received.clear();
+			received.put(bytes).flip();
+			conn.append(received);
+		}
+
+		//Handles the connection's complete requests as the event loop does
+		private void process(NioConnection conn, ReplyBuffer reply) {
+			try {
+				conn.process(reply);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		//Returns a random client
+		private int nextClient() {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			return (int) ((seed >>> 1) % uuids.length);
+		}
+	}
+}
@@ -42,6 +42,14 @@ command line in order to launch as the secondary server:
  b. JokeServer.java
  c. JokeClient.java
  d. JokeClientAdmin.java
+ e. JokeProtocol.java
+ f. ConnectionPool.java
+ g. ServerSelector.java and ServerEndpoint.java
+ h. AsyncJokeClient.java, AsyncJokeAdmin.java, ClientConnection.java, ClientEventLoop.java, ClientIdentity.java
+    and Reply.java, only needed by programs embedding the client (see the README)
+ i. LoadGenerator.java, only needed for load tests (see the README)
+ j. Cluster.java, HashRing.java and ClientStateStore.java, only needed with a cluster of servers (see the README)
+ k. BinaryProtocol.java, UdpClient.java and UdpServer.java
 
 5. Notes:
 
@@ -52,6 +60,10 @@ to use EXACTLY the following text, without any spaces or differences in capitali
 	secondary	----> Command line arg when launching the secondary server
 	s			----> JokeClient / JokeClientAdmin input to switch to secondary server
 	quit			----> JokeClient / JokeClientAdmin input to exit the program
+	b N		----> JokeClient input to request N jokes/proverbs in one response
+	cluster=HOST:PORT,...	----> JokeClient command line arg to send each request to the cluster node owning this client
+	protocol=binary	----> JokeClient command line arg (before any other) to speak the binary protocol instead of text
+	protocol=udp	----> JokeClient command line arg (before any other) to send each request as a UDP datagram
 	[enter]		----> Simply press enter to request a joke/proverb (in JokeClient program)
 					  or to switch the server into Joke/Proverb mode (in JokeClientAdmin program)
 
@@ -60,6 +72,8 @@ to use EXACTLY the following text, without any spaces or differences in capitali
 //Import the Java libraries for input/output, working with networks, and unique user identification
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 /* This class represents the Client. It contains static variables used uuid and for primary/secondary server accessibility.
@@ -76,6 +90,9 @@ public class JokeClient {
 	static int defaultPort = 4545;	//The port at which the default server will be connected through
 	static int secondaryPort = 4546;	//The port at which the secondary server will be connected through
 	static int currentPort;		//The current port that the client is connected through
+	static ConnectionPool connections = new ConnectionPool(2);	//Open keep-alive connections to the servers, reused between requests
+	static ServerSelector servers;	//Picks the server for each request, failing over when one stops answering (see ServerSelector.java)
+	static HashRing cluster = null;	//The cluster's members if started with cluster=, in which case requests go to this client's owner
 	
 	/* This main method first parses none/one/two args from the command line for server names to connect to.
 	 * Then acquires the users name through an input stream. Then takes user input for requesting jokes/proverbs
@@ -84,6 +101,28 @@ public class JokeClient {
 	 */
 	public static void main (String args[]) {
 		
+		//With protocol=binary or udp, requests are sent in the binary protocol (see BinaryProtocol.java), or as datagrams (see UdpClient.java)
+		if (args.length > 0 && args[0].startsWith("protocol=")) {
+			String protocol = args[0].substring("protocol=".length());
+			if (!protocol.equals("binary") && !protocol.equals("text") && !protocol.equals("udp")) {
+				System.out.println("protocol must be one of text, binary, udp");
+				return;
+			}
+			connections = new ConnectionPool(2, protocol);
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+
+		//With cluster=HOST:PORT,..., there is no default/secondary server: every request goes to the node owning this client
+		if (args.length == 1 && args[0].startsWith("cluster=")) {
+			try {
+				cluster = new HashRing(args[0].substring("cluster=".length()), HashRing.DEFAULT_VIRTUAL_NODES);
+			} catch (IllegalArgumentException iae) {
+				System.out.println(iae.getMessage());
+				return;
+			}
+			args = new String[] { cluster.hosts[0] };
+		}
+
 		/* Parse command line args and update static vars containing primary/secondary server names.
 		 * If no args are present, set default server to "localhost".
 		 * Also update the port at which the client is currently connected to the server through.
@@ -105,9 +144,25 @@ public class JokeClient {
 		}
 		
 
+		//Route requests to the default server, and to the secondary server as well if there is one
+		ServerEndpoint defaultEndpoint = new ServerEndpoint(defaultServer, defaultPort);
+		ServerEndpoint secondaryEndpoint = null;
+		if (secondaryAvailable) {
+			secondaryEndpoint = new ServerEndpoint(secondaryServer, secondaryPort);
+			servers = new ServerSelector(connections, defaultEndpoint, secondaryEndpoint);
+		} else {
+			servers = new ServerSelector(connections, defaultEndpoint);
+		}
+		if (cluster == null)
+			servers.startHealthChecks();
+
 		//Print info to console
 		System.out.println("JokeClient starting up");
-		System.out.println("Server one: " + defaultServer + ", port " + defaultPort);
+		if (cluster != null) {
+			int owner = cluster.ownerOf(uuid);
+			System.out.println("Cluster of " + cluster.members.length + " servers, this client belongs to " + cluster.members[owner]);
+		} else
+			System.out.println("Server one: " + defaultServer + ", port " + defaultPort);
 		if (secondaryAvailable)
 			System.out.println("Server two: " + secondaryServer + ", port " + secondaryPort);
 
@@ -133,14 +188,14 @@ public class JokeClient {
 			do {
 
 				//Request input
-				System.out.print("Press enter for joke/proverb, (s) to switch to secondary server, (quit) to exit:" );
+				System.out.print("Press enter for joke/proverb, (b N) for N at once, (s) to switch to secondary server, (quit) to exit:" );
 				System.out.flush();
 				
 				//Read the input
 				input = in.readLine();
 				
-				/* If input is "s" and there is a secondary server, switch the current port to the other available port
-				 * and print a notification informing the user of the switch.
+				/* If input is "s" and there is a secondary server, switch the current port to the other available port,
+				 * make that server the preferred one, and print a notification informing the user of the switch.
 				 * If there is no secondary server, print a notification informing the user
 				 */
 				if (input.equals("s")) {
@@ -148,9 +203,11 @@ public class JokeClient {
 						if (currentServer.equals(defaultServer) && currentPort == defaultPort) {
 							currentServer = secondaryServer;
 							currentPort = secondaryPort;
+							servers.prefer(secondaryEndpoint);
 						} else {
 							currentServer = defaultServer.toString();
 							currentPort = defaultPort;
+							servers.prefer(defaultEndpoint);
 						}
 						System.out.println("Now communicating with: " + currentServer + ", port " + currentPort);
 					} else {
@@ -158,56 +215,72 @@ public class JokeClient {
 					}
 				}
 
-				//For any other input that is not "quit", call getServerResponse() method
+				//For any other input that is not "quit", call getServerResponse() method, asking for N items if input is "b N"
 				if (!input.equals("quit")) {
 					//Call helper method getServerResponse() which communicates with server
-					getServerResponse(uuid, name, currentServer);
+					getServerResponse(uuid, name, batchSize(input));
 				}
 			
 			//Exit the loop if user input is "quit"
 			} while (!input.equals("quit"));
+			connections.close();
 			System.out.println("Cancelled by client.");
 		} catch (IOException x) {
 			x.printStackTrace();
 		}
 	}
 	
-	/* This method takes 3 arguments: the uuid, the users name, and the name of the
-	 * server to which the client will make a request. After setting up means for server
-	 * communication through a print stream and buffered reader, this method sends the
-	 * server the client's uuid and name, and then reads the response from the buffer
-	 * and prints it to the console.
-	*/
-	static void getServerResponse(String identifier, String name, String serverName) {
+	//Returns N if the input is "b N" with N a positive number, otherwise 1
+	static int batchSize(String input) {
+		if (input.startsWith("b ")) {
+			try {
+				return Math.max(1, Integer.parseInt(input.substring(2).trim()));
+			} catch (NumberFormatException nfe) {
+				System.out.println("Not a number: " + input.substring(2).trim());
+			}
+		}
+		return 1;
+	}
 
-		Socket sock;	//Socket to use for server connection
-		BufferedReader fromServer;	//Buffer used for receiving text from server
-		PrintStream toServer;	//Print stream used to send info to the server
-		String textFromServer;	//Var used to store the server's response
-		
+	/* This method takes 3 arguments: the uuid, the users name, and the number of jokes/proverbs
+	 * to ask for. The server is picked by the ServerSelector, which prefers the server the user
+	 * switched to but fails over to the other one if it does not answer in time. The request is
+	 * sent on a keep-alive connection from the connection pool (see ConnectionPool.java), so that
+	 * the connection to each server is only opened once. The response is printed to the console, or how long
+	 * to wait if the server turned the request away as BUSY (see AdmissionControl.java).
+	*/
+	static void getServerResponse(String identifier, String name, int count) {
 		try {
-
-			//Initialize the socket and the print stream / buffer reader through the socket
-			sock = new Socket(serverName, currentPort);
-			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			toServer = new PrintStream(sock.getOutputStream());
-			
-			//Send the server the user's uuid and name. Flush the print stream
-			toServer.println(identifier + "\n" + name);
-			toServer.flush();
-			
-			//Read 2 lines of input from the server into the string variable and print to console
-			for (int i = 1; i <= 3; i++) {
-				textFromServer = fromServer.readLine();
-				if (textFromServer != null)
-					System.out.println(textFromServer);
+			List<String> response = cluster != null ? clusterRequest(identifier, name, count) : servers.request(identifier, name, count);
+			int busy = JokeProtocol.parseBusy(response);
+			if (busy >= 0) {
+				System.out.println("Server busy, try again in " + busy + " ms");
+				return;
 			}
-
-			//Close the socket before exiting this method
-			sock.close();
+			for (String textFromServer : response)
+				System.out.println(textFromServer);
 		} catch (IOException x) {
-			System.out.println("Socket error.");
-			x.printStackTrace();
+			System.out.println("Socket error: " + x.getMessage());
+		}
+	}
+
+	/* This method sends the request to the cluster node owning the client, found on the hash ring (see Cluster.java),
+	 * over a keep-alive connection from the pool. If the node answers MOVED, because the member list given on the
+	 * command line is out of date, the request is sent once more to the node named in the answer. Each attempt gives
+	 * up after ServerSelector.REQUEST_TIMEOUT_MILLIS, so a node that stops answering does not hang the client.
+	 */
+	static List<String> clusterRequest(String identifier, String name, int count) throws IOException {
+		int owner = cluster.ownerOf(identifier);
+		List<String> response = connections.request(cluster.hosts[owner], cluster.ports[owner], identifier, name, count, ServerSelector.REQUEST_TIMEOUT_MILLIS);
+		String moved = JokeProtocol.parseMoved(response);
+		if (moved != null) {
+			int colon = moved.lastIndexOf(':');
+			try {
+				response = connections.request(moved.substring(0, colon), Integer.parseInt(moved.substring(colon + 1)), identifier, name, count, ServerSelector.REQUEST_TIMEOUT_MILLIS);
+			} catch (RuntimeException re) {
+				throw new IOException("Bad MOVED response: " + moved);
+			}
 		}
+		return response;
 	}
-}
\ No newline at end of file
+}
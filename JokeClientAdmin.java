@@ -36,12 +36,27 @@ command line in order to launch as the secondary server:
 
 > java JokeServer secondary
 
+To set the mode of any number of servers at once, give "set", the mode and the
+admin address (host:port) of every server. All servers are asked at the same time,
+and the admin reports when they have all converged on the mode:
+
+> java JokeClientAdmin set proverb localhost:5050 localhost:5051 140.192.1.22:5050
+
+In the same way, "cluster" gives every server of a cluster its new member list,
+e.g. when a server joins or leaves (see Cluster.java):
+
+> java JokeClientAdmin cluster localhost:4545/4645,localhost:4546/4646 localhost:5050 localhost:5051 localhost:5052
+
 5. List of files needed for running the program.
 
  a. checklist.html
  b. JokeServer.java
  c. JokeClient.java
  d. JokeClientAdmin.java
+ e. JokeProtocol.java
+ f. AsyncJokeClient.java
+ g. ServerMode.java
+ h. Cluster.java and ClientStateStore.java
 
 5. Notes:
 
@@ -51,6 +66,9 @@ to use EXACTLY the following text, without any spaces or differences in capitali
 	localhost	----> Command line arg when using the local machine as the host
 	secondary	----> Command line arg when launching the secondary server
 	s			----> JokeClient / JokeClientAdmin input to switch to secondary server
+	r			----> JokeClientAdmin input to make the server reload its corpus files
+	c			----> JokeClientAdmin input to show the server's client state statistics
+	m			----> JokeClientAdmin input to dump the server's metrics
 	quit		----> JokeClient / JokeClientAdmin input to exit the program
 	[enter]		----> Simply press enter to request a joke/proverb (in JokeClient program)
 					  or to switch the server into Joke/Proverb mode (in JokeClientAdmin program)
@@ -59,7 +77,9 @@ to use EXACTLY the following text, without any spaces or differences in capitali
 
 //Import the Java libraries for input/output and working with networks 
 import java.io.*;
-import java.net.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 
 /* This class represents the Admin Client. It contains static variables used for aknowledging a possible secondary server,
@@ -76,6 +96,7 @@ public class JokeClientAdmin {
 	static int defaultPort = 5050;	//The port number at which the admin connects to the default server
 	static int secondaryPort = 5051;	//The port number at which the admin connects to the secondary server
 	static int currentPort;	//The port number through which the admin is currently connected to the server
+	static AsyncJokeAdmin admin = new AsyncJokeAdmin();	//Sends the commands to the servers on its own I/O thread
 	
 	/* This main method first parses none/one/two args from the command line for server names to connect to.
 	 * Then takes user input for switching between servers, switching server modes, or exiting the program.
@@ -83,6 +104,14 @@ public class JokeClientAdmin {
 	 */
 	public static void main (String args[]) {
 
+		//"set" sets the mode of the servers listed after it and "cluster" their member list, and exits
+		if (args.length > 0 && (args[0].equals("set") || args[0].equals("cluster"))) {
+			String[] rest = Arrays.copyOfRange(args, 1, args.length);
+			int exitCode = args[0].equals("set") ? setModeEverywhere(rest) : setClusterEverywhere(rest);
+			admin.close();
+			System.exit(exitCode);
+		}
+
 		/* Parse command line args and update static vars containing primary/secondary server names.
 		 * If no args are present, set default server to "localhost".
 		 * Also update the port at which the admin is currently connected to the server through.
@@ -124,7 +153,7 @@ public class JokeClientAdmin {
 			 */
 			do {
 				//Request input from user and flush the buffer
-				System.out.print("Press enter to switch modes, (s) to switch to secondary server, (quit) to exit: ");
+				System.out.print("Press enter to switch modes, (r) to reload the corpus, (c) for client stats, (m) for metrics, (s) to switch to secondary server, (quit) to exit: ");
 				System.out.flush();
 
 				//Read the input
@@ -149,8 +178,16 @@ public class JokeClientAdmin {
 					}
 				}
 
-				//For any other input that is not "quit", call switchServerMode() method
-				if (!input.equals("quit")) {
+				/* For "r", ask the server to reload its corpus files, for "c", for its client statistics, and for "m",
+				 * for its metrics. For any other input that is not "quit", call switchServerMode() method
+				 */
+				if (input.equals("r")) {
+					sendCommand(currentServer, "RELOAD");
+				} else if (input.equals("c")) {
+					sendCommand(currentServer, "STATS");
+				} else if (input.equals("m")) {
+					sendCommand(currentServer, "METRICS");
+				} else if (!input.equals("quit")) {
 					//Call helper method switchServerMode() which communicates with server
 					switchServerMode(currentServer);
 				}
@@ -162,38 +199,178 @@ public class JokeClientAdmin {
 		}
 	}
 	
-	/* This method takes input representing the name of the server to which the admin 
-	 * client will make a request input. Since no uuid or identification is necessary and
-	 * the client entered any arbitraty text besides "s" or "quit", no print steam is
-	 * necessary. Simply connecting to the server at the port at which it is listening for
-	 * an admin request will trigger the server to switch between joke/proverb modes.
-	 * After setting up a socket, this method reads 2 lines of server response from its buffered
-	 * reader and prints it to the console.
+	/* This method takes input representing the name of the server to which the admin
+	 * client will make a request, and asks that server to switch between joke/proverb modes
+	 * by sending it the TOGGLE command.
 	*/
 	static void switchServerMode(String serverName) {
+		sendCommand(serverName, "TOGGLE");
+	}
+
+	/* This method takes the name of the server to which the admin client will make a request
+	 * and the admin command to send (see AdminWorker in JokeServer.java). The command is sent
+	 * by the shared AsyncJokeAdmin (see AsyncJokeClient.java), and this method waits for the
+	 * reply and prints every line of it.
+	*/
+	static void sendCommand(String serverName, String command) {
+		try {
+			Reply reply = admin.command(serverName, currentPort, command).get();
+			for (String line : reply.lines)
+				System.out.println(line);
+		} catch (ExecutionException ee) {
+			System.out.println("Socket error: " + ee.getCause().getMessage());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* This method carries out "set joke|proverb HOST:PORT...": it sets every server to the mode with one versioned
+	 * change (see ServerMode.java), talking to all the servers at the same time, and reports whether they converged.
+	 * Returns the exit code: 0 if all servers converged, 1 if not, 2 for bad arguments.
+	 */
+	static int setModeEverywhere(String[] args) {
+		if (args.length < 2 || !(args[0].equals("joke") || args[0].equals("proverb"))) {
+			System.out.println("Usage: java JokeClientAdmin set joke|proverb HOST:PORT [HOST:PORT...]");
+			return 2;
+		}
+		String mode = args[0].equals("joke") ? "JOKE" : "PROVERB";
+		return changeEverywhere("MODE", "SET " + mode, "MODE " + mode, Arrays.copyOfRange(args, 1, args.length));
+	}
 
-		Socket sock;	//Socket used for server communication
-		BufferedReader fromServer;	//Buffer used form receiving text from the server
-		String textFromServer;	//String used to store server response in
-		
+	/* This method carries out "cluster MEMBERS HOST:PORT...": it gives every server the cluster member list MEMBERS
+	 * with one versioned change (see Cluster.java) in the same way, including the servers joining the cluster, which
+	 * were started with the new list, and those leaving it. Returns the exit code as setModeEverywhere() does.
+	 */
+	static int setClusterEverywhere(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: java JokeClientAdmin cluster HOST:PORT[/STATEPORT],... ADMINHOST:ADMINPORT [ADMINHOST:ADMINPORT...]");
+			return 2;
+		}
+		String members;
 		try {
+			members = new HashRing(args[0], 1).spec();
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return 2;
+		}
+		return changeEverywhere("CLUSTER", "CLUSTER " + members, "CLUSTER " + members, Arrays.copyOfRange(args, 1, args.length));
+	}
+
+	/* This method makes one versioned change on every server at the same time, and reports whether they converged.
+	 * 'query' asks a server for its current value, answered as "<value> <epoch>". First every server is asked, and
+	 * an epoch above all of theirs is picked, so the change is newer than anything the servers have seen. Then every
+	 * server is sent the same "<change> <epoch>", and asked again until they all answer "<target> <epoch>", or a few
+	 * rounds have gone by. A server whose epoch has gone past the change's has seen a newer change meanwhile, e.g.
+	 * from another admin; it is reported as a conflict rather than overridden.
+	 */
+	static int changeEverywhere(String query, String change, String target, String[] servers) {
+		String[] hosts = new String[servers.length];
+		int[] ports = new int[servers.length];
+		for (int i = 0; i < servers.length; i++) {
+			int colon = servers[i].lastIndexOf(':');
+			try {
+				hosts[i] = colon < 0 ? servers[i] : servers[i].substring(0, colon);
+				ports[i] = colon < 0 ? defaultPort : Integer.parseInt(servers[i].substring(colon + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("Bad server address: " + servers[i]);
+				return 2;
+			}
+		}
+		long start = System.nanoTime();
+
+		//Ask every server for its value, and pick the next epoch after the highest one
+		String[] values = commandAll(hosts, ports, query);
+		long epoch = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null)
+				System.out.println(servers[i] + ": unreachable, will be changed anyway");
+			else
+				epoch = Math.max(epoch, epochOf(values[i]));
+		}
+		epoch++;
+		target = target + " " + epoch;
+
+		//Send every server the same change, then ask again until all have it, for up to SET_ROUNDS rounds
+		String[] results = commandAll(hosts, ports, change + " " + epoch);
+		for (int round = 1; round <= SET_ROUNDS; round++) {
+			values = commandAll(hosts, ports, query);
+			boolean converged = true;
+			for (String value : values)
+				converged &= target.equals(value);
+			if (converged)
+				break;
+			if (round < SET_ROUNDS) {
+				//Servers which did not answer get the change again; the epoch makes this harmless for the others
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] == null && results[i] == null)
+						results[i] = commandAll(new String[] { hosts[i] }, new int[] { ports[i] }, change + " " + epoch)[0];
+				}
+				try {
+					Thread.sleep(SET_RETRY_MILLIS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		//Report each server, then the outcome
+		int converged = 0;
+		for (int i = 0; i < hosts.length; i++) {
+			String state;
+			if (target.equals(values[i])) {
+				state = "converged";
+				converged++;
+			} else if (values[i] == null)
+				state = "LAGGING, unreachable";
+			else if (epochOf(values[i]) > epoch)
+				state = "CONFLICT, changed again by someone else";
+			else
+				state = "LAGGING";
+			System.out.println(servers[i] + ": " + state + " (answered " + results[i] + ", now " + values[i] + ")");
+		}
+		if (converged == hosts.length) {
+			System.out.println("All " + hosts.length + " servers converged on " + target + " in " + millis + " ms.");
+			return 0;
+		}
+		System.out.println((hosts.length - converged) + " of " + hosts.length + " servers did not converge on " + target
+				+ " within " + millis + " ms.");
+		return 1;
+	}
 
-			//Initialize the socket and the buffer reader through the socket
-			sock = new Socket(serverName, currentPort);
-			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			
-			//Iterate through the buffered reader of response from the server, printing up to 2 lines
-			for (int i = 1; i <= 3; i++) {
-				textFromServer = fromServer.readLine();
-				if (textFromServer != null)
-					System.out.println(textFromServer);
+	static final int SET_ROUNDS = 5;	//How many times the servers are asked for their value before giving up
+	static final int SET_RETRY_MILLIS = 200;	//How long to wait between those rounds
+
+	/* This method sends every server the same admin command at the same time and waits for all the replies.
+	 * Returns the first line of each server's reply, or null for a server which could not be reached or did not
+	 * answer in time.
+	 */
+	static String[] commandAll(String[] hosts, int[] ports, String command) {
+		List<CompletableFuture<Reply>> replies = new ArrayList<CompletableFuture<Reply>>();
+		for (int i = 0; i < hosts.length; i++)
+			replies.add(admin.command(hosts[i], ports[i], command));
+		String[] lines = new String[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			try {
+				List<String> reply = replies.get(i).get().lines;
+				lines[i] = reply.isEmpty() ? null : reply.get(0);
+			} catch (ExecutionException ee) {
+				lines[i] = null;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return lines;
 			}
+		}
+		return lines;
+	}
 
-			//Close the socket
-			sock.close();
-		} catch (IOException x) {
-			System.out.println("Socket error.");
-			x.printStackTrace();
+	//Returns the epoch at the end of a "MODE <mode> <epoch>" or "CLUSTER <members> <epoch>" line, or 0 if it has none
+	static long epochOf(String line) {
+		try {
+			return Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+		} catch (NumberFormatException nfe) {
+			return 0;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+/* This file contains the constants of the protocol spoken between the JokeClient and the JokeServer, which
+ * are needed by both sides.
+ *
+ * The original protocol uses one connection per request: the client sends its UUID and its name as two lines,
+ * the server sends back one or two lines and closes the connection.
+ *
+ * In the keep-alive protocol, the client first sends the KEEP_ALIVE line. After that it may send any number of
+ * UUID + name requests on the same connection, and the server ends every response with an END_OF_RESPONSE line
+ * instead of closing the connection. The connection stays open until the client closes it, or until it has been
+ * idle for longer than the server's keepAliveIdleMillis option.
+ *
+ * Also in the keep-alive protocol, the client may send a PING line instead of a request, which the server answers
+ * with a PONG line and END_OF_RESPONSE without touching any client state. Clients use it to check the health and
+ * latency of a server (see ServerSelector.java).
+ *
+ * Requests may be pipelined in the keep-alive protocol: the client may send further requests before the responses to
+ * the earlier ones arrive, and the responses come back in the order of the requests. The requests not answered yet
+ * must not add up to more than MAX_PIPELINED_BYTES, since a server only buffers so much of a client's input.
+ *
+ * In either protocol, a request may start with a "BATCH n" line before the UUID and name, asking for n
+ * jokes/proverbs in one response (at most the server's maxBatch option). The response holds the n items in
+ * order, each followed by a cycle completion line if that item completed the client's cycle.
+ *
+ * A server that is one node of a cluster answers a request for a client owned by another node with a single MOVED
+ * line naming that node's HOST:PORT instead, to which the client sends the request again (see Cluster.java).
+ *
+ * A server that is overloaded, or a client that exceeds its rate limit, may be answered with a single BUSY line
+ * giving the milliseconds to wait before trying again instead (see AdmissionControl.java). A server turning a new connection
+ * away sends it before closing the connection, followed by END_OF_RESPONSE in case the client speaks keep-alive.
+ *
+ * A connection whose first byte is BinaryProtocol.MAGIC speaks the binary protocol of BinaryProtocol.java instead.
+ */
+
+//Import the Java library for the lines of a response
+import java.util.List;
+
+/* This class holds the protocol constants. A UUID can never be equal to KEEP_ALIVE, so the server can tell the
+ * two protocols apart by the first line it receives.
+ */
+class JokeProtocol {
+
+	static final String KEEP_ALIVE = "JOKE/1.1";	//First line sent by clients speaking the keep-alive protocol
+	static final String END_OF_RESPONSE = "";	//Line ending every response in the keep-alive protocol
+	static final String BATCH = "BATCH ";	//Start of the optional line asking for several items in one response
+	static final String PING = "PING";	//Health check line of the keep-alive protocol
+	static final String PONG = "PONG";	//The server's answer to PING
+	static final int MAX_PIPELINED_BYTES = 2048;	//Most bytes of keep-alive requests a client may have unanswered
+	static final String MOVED = "MOVED ";	//Start of the response to a client owned by another cluster node
+	static final String BUSY = "BUSY ";	//Start of the response to a request turned away, followed by the millis to wait
+
+	//Returns the number of items asked for if the line is a batch line, otherwise -1
+	static int parseBatch(String line) {
+		if (line == null || !line.startsWith(BATCH))
+			return -1;
+		try {
+			return Integer.parseInt(line.substring(BATCH.length()).trim());
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	//Returns the HOST:PORT of the owning node if the response is a MOVED response, otherwise null
+	static String parseMoved(List<String> response) {
+		if (response.size() != 1 || !response.get(0).startsWith(MOVED))
+			return null;
+		return response.get(0).substring(MOVED.length()).trim();
+	}
+
+	//Returns the milliseconds to wait if the response is a BUSY response, otherwise -1
+	static int parseBusy(List<String> response) {
+		if (response.size() != 1 || !response.get(0).startsWith(BUSY))
+			return -1;
+		try {
+			return Integer.parseInt(response.get(0).substring(BUSY.length()).trim());
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+}
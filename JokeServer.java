@@ -36,12 +36,52 @@ command line in order to launch as the secondary server:
 
 > java JokeServer secondary
 
+Further options can be passed to the JokeServer as key=value pairs, for example:
+
+> java JokeServer secondary executor=virtual maxWorkers=5000 saturation=reject
+
+See ServerConfig.java for the list of options and their defaults.
+
 5. List of files needed for running the program.
 
  a. checklist.html
  b. JokeServer.java
- c. JokeClient.java
- d. JokeClientAdmin.java
+ c. Worker.java
+ d. JokeClient.java
+ e. JokeClientAdmin.java
+ f. ServerConfig.java
+ g. WorkerExecutor.java
+ h. NioServer.java
+ i. NioConnection.java
+ j. JokeProtocol.java
+ k. ClientStateStore.java
+ l. CyclePermutation.java
+ m. Corpus.java
+ n. ArrayCorpus.java
+ o. MappedCorpus.java
+ p. CorpusSnapshot.java
+ q. ReplyBuffer.java
+ r. ClientStateLog.java
+ s. UpdateBuffer.java
+ t. Replicator.java
+ u. ReplicaReceiver.java
+ v. HotPathBench.java, only needed to benchmark the server (see the README)
+ w. Metrics.java
+ x. LatencyHistogram.java
+ y. RequestLog.java
+ z. ServerMode.java
+ aa. Cluster.java
+ ab. HashRing.java
+ ac. Handoff.java
+ ad. Listeners.java
+ ae. AcceptBench.java, only needed to benchmark the listening sockets (see the README)
+ af. BinaryProtocol.java
+ ag. UdpServer.java
+ ah. UdpClient.java
+ ai. AdmissionControl.java
+ aj. RateLimiter.java
+ ak. TimerWheel.java
+ al. Deadline.java
 
 5. Notes:
 
@@ -58,18 +98,17 @@ to use EXACTLY the following text, without any spaces or differences in capitali
 ----------------------------------------------------------*/
 
 
-/* This file contains 4 classes, the primary joke server class and its worker class, and also the 
+/* This file contains 4 classes, the primary joke server class and its accept loop, and also the 
  * class which is spawned for admin interaction and its worker class. The primary joke server contains
  * the main method which spawns the 2nd thread for andmin interaction, and contains the loop which waits
- * for clients.
+ * for clients. The Workers (see Worker.java) and AdminWorkers are run by a WorkerExecutor (see WorkerExecutor.java).
  */
 
 //Import the Java libraries for input/output, for working with networks, and necessary data structures/collections
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Arrays;
-import java.util.Collections;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /* This class represents the server and contains static variables and data structures, and also
  * the main method. The static variables are accessed by the other classes in this file, when needed
@@ -79,211 +118,239 @@ public class JokeServer {
 	
 	static boolean secondary = false; //Used for construction of primary/secondary server based on command line arg
 	static boolean controlSwitch = true; //I was going to use this var to allow the admin to shutdown the server but didn't get to it
-	static boolean jokeMode = true; //If true, server is in joke mode. If false, server is in proverb mode
 	static String serverTag = ""; //Empty string if primary server, contains "<S2>" if secondary server
+	static String node = null;	//This server's HOST:PORT in its cluster, or null if it is not part of a cluster
+	static ServerConfig config = new ServerConfig(); //The startup options parsed from the command line
 	
-	/* These HashMaps contain the client UUID's mapped to an int which represents the index of the last joke/proverb
-	 * the client received from a randomly shuffed array containing the jokes/proverbs
+	/* This store maps each client's UUID to its position and cycle number in its joke cycle and in its proverb cycle
+	 * (see ClientStateStore.java). The position is turned into an index in the corpus by CyclePermutation.
 	 */
-	static HashMap<String, Integer> lastJokeSent = new HashMap<String, Integer>();
-	static HashMap<String, Integer> lastProverbSent = new HashMap<String, Integer>();
+	static ClientStateStore clients = new ClientStateStore();
+	static Replicator replicator = null;	//Sends client state to another server, if the replicateTo option was given
+	static ReplicaReceiver replica = null;	//Receives client state from other servers, if the replicationPort option was given
+	static ClientStateLog stateLog = null;	//Persists the client state, if the stateDir option was given
+	static RequestLog requestLog = new RequestLog("off", 1, 0, "drop");	//Takes the per-request console lines, see RequestLog.java; off until main() applies the options
+	static AdmissionControl admission = null;	//Limits the blocking engine's concurrent requests with admission=adaptive (see AdmissionControl.java)
+	static RateLimiter rateLimiter = null;	//Limits each client's request rate if the rateLimit option was given
 	
-	/* Arrays containing the jokes and proverbs. They are shuffled at the beginning of program creation,
-	 * and then shuffled again each time a client has seen each joke/proverb.
+	/* The jokes and proverbs being served. By default these are the built-in ones below, or they are memory mapped
+	 * from the corpus files given with the jokes=/proverbs= options (see MappedCorpus.java). They are never reordered;
+	 * each client sees them in its own random order, which changes every cycle (see CyclePermutation.java). An admin
+	 * RELOAD replaces the whole snapshot at once (see CorpusSnapshot.java).
 	 */
-	static String[] jokes = {"JA Joke 1", "JB Joke 2", "JC Joke 3", "JD Joke 4"};
-	static String[] proverbs = {"PA Proverb 1", "PB Proverb 2", "PC Proverb 3", "PD Proverb 4"};
+	static volatile CorpusSnapshot corpus = new CorpusSnapshot(
+			new ArrayCorpus("JA Joke 1", "JB Joke 2", "JC Joke 3", "JD Joke 4"),
+			new ArrayCorpus("PA Proverb 1", "PB Proverb 2", "PC Proverb 3", "PD Proverb 4"), 0, 0);
 	
-	/* This main method checks for command line arg, shuffles the jokes/proverbs, spawns the admin
+	/* This main method checks for command line arg, spawns the admin
 	 * accessible thread, sets up a socket and port for communication with clients and then enters
 	 * a loop waiting for client interactions.
 	 */
 	public static void main(String args[]) throws IOException {
 		
-		//If user entered "secondary" as arg on command line, this is a secondary server
-		if (args.length > 0 ) {
-			if (args[0].equals("secondary")) {
-				secondary = true;
-				serverTag = "<S2> ";
-			}
+		//Parse the command line args. If user entered "secondary" as an arg, this is a secondary server
+		try {
+			config = ServerConfig.parse(args);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return;
+		}
+		if (config.secondary) {
+			secondary = true;
+			serverTag = "<S2> ";
 		}
 
 		System.out.println(serverTag + "JokeServer starting up");
+
+		//Map the corpus files, if any were given. The built-in jokes/proverbs are used otherwise
+		try {
+			corpus = new CorpusSnapshot(corpus.jokes, corpus.proverbs, 0, 0).reload(config.jokesFile, config.proverbsFile);
+		} catch (IOException ioe) {
+			System.out.println(serverTag + "Cannot load corpus: " + ioe.getMessage());
+			return;
+		}
+		System.out.println(serverTag + "Serving " + corpus.jokes.size() + " jokes and " + corpus.proverbs.size() + " proverbs");
+
+		//Bound the client state with the retention options, and start removing idle clients if there is a TTL
+		clients = new ClientStateStore(Runtime.getRuntime().availableProcessors() * 8, config.clientTtlSeconds,
+				config.maxClients, config.clientMemoryMB * 1024L * 1024L);
+		clients.startSweeper();
+		Metrics.startSampler();
+
+		//Log requests as the options ask, writing out the lines still waiting when the server shuts down
+		requestLog = new RequestLog(config.requestLog, config.logSampling, config.logBufferKB, config.logWhenFull);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				requestLog.stop();
+			}
+		}, "request-log-flush"));
+
+		//With stateDir, load the client state saved by the last run and log every update from now on
+		if (config.stateDir != null) {
+			try {
+				long start = System.nanoTime();
+				stateLog = new ClientStateLog(new File(config.stateDir), clients);
+				System.out.println(serverTag + "Recovered " + clients.size() + " clients from " + config.stateDir + " in "
+						+ (System.nanoTime() - start) / 1000000 + " ms");
+				stateLog.start(config.stateSyncMillis, config.stateSnapshotSeconds);
+			} catch (IOException ioe) {
+				System.out.println(serverTag + "Cannot load client state: " + ioe.getMessage());
+				return;
+			}
+		}
+
+		//Assigns the ports based on the options, or on if this is the primary or secondary server
+		int port = config.port > 0 ? config.port : secondary ? 4546 : 4545;	//The port at which the server will accept requests
+
+		//With cluster, only serve the clients this server owns, and take the state of the clients handed to it
+		if (config.cluster != null) {
+			HashRing ring = new HashRing(config.cluster, config.virtualNodes);
+			int self = config.node != null ? ring.indexOf(config.node) : ring.localMember(port);
+			if (self == -2) {
+				System.out.println(serverTag + "More than one member of the cluster " + config.cluster + " is on this machine at port "
+						+ port + ", give this server's HOST:PORT with node=");
+				return;
+			}
+			if (self < 0) {
+				System.out.println(serverTag + "This server is not in the cluster " + config.cluster + ", give its HOST:PORT with node=");
+				return;
+			}
+			node = ring.members[self];
+
+			//The member's state port, if the cluster gives one, is where this server takes handed off state
+			if (ring.statePorts[self] > 0) {
+				if (config.replicationPort == 0)
+					config.replicationPort = ring.statePorts[self];
+				else if (ring.statePorts[self] != config.replicationPort) {
+					System.out.println(serverTag + "The cluster gives this server state port " + ring.statePorts[self]
+							+ ", but replicationPort is " + config.replicationPort);
+					return;
+				}
+			}
+			Cluster.set(ring, 0, node);
+			System.out.println(serverTag + "Cluster node " + node + ", member " + (self + 1) + " of " + ring.members.length);
+		}
+
+		//Replicate client state to and/or from the other server, each on a thread of its own
+		if (config.replicationPort > 0) {
+			replica = new ReplicaReceiver(config.replicationPort, clients);
+			new Thread(replica, "replica-accept").start();
+		}
+		if (config.replicateTo != null) {
+			replicator = new Replicator(config.replicateTo, clients, config.replicationMillis);
+			Thread sender = new Thread(replicator, "replicator");
+			sender.setDaemon(true);
+			sender.start();
+		}
 		
-		//Shuffle joke/proverb arrays so they are in a random order
-		Collections.shuffle(Arrays.asList(JokeServer.jokes));
-		Collections.shuffle(Arrays.asList(JokeServer.proverbs));
-		
+		//With rateLimit, every client gets a token bucket of rateBurst requests, refilled at rateLimit per second
+		if (config.rateLimit > 0) {
+			rateLimiter = new RateLimiter(config.rateLimit, config.rateBurst > 0 ? config.rateBurst : config.rateLimit);
+			System.out.println(serverTag + "Rate limit: " + config.rateLimit + " requests per second per client, bursts of "
+					+ (config.rateBurst > 0 ? config.rateBurst : config.rateLimit));
+		}
+
+		//With udp=on, answer datagram requests at the client port's number on a thread of their own (see UdpServer.java)
+		if (config.udp.equals("on")) {
+			new Thread(new UdpServer(port, config.udpReplaySlots), "udp").start();
+			System.out.println(serverTag + "Listening for datagrams at port " + port + ".");
+		}
+
 		//Spawn thread that runs a class used for admin interaction
 		AdminAccessor AA = new AdminAccessor();
 		Thread t = new Thread(AA);
 		t.start();
 		
-		int q_len = 6;	//Maximum number of client requests to queue
-		Socket sock;	//A socket that will be designated for each client request
-		int port;	//The port at which the server will accept requests
-		
-		//Assigns port based on if this is the primary or secondary server
-		if (secondary)
-			port = 4546;
-		else
-			port = 4545;
+		/* Represents the server sockets that are constructed on the given port, each with a queue of config.backlog
+		 * connections: one per acceptor where SO_REUSEPORT is supported, otherwise one for all (see Listeners.java).
+		 * They are opened as (blocking) channels so that Workers can write their replies with gathering writes (see
+		 * ReplyBuffer.java)
+		 */
+		ServerSocketChannel[] listeners = Listeners.open(port, config.backlog, config.acceptors);
+		String listening = Listeners.describe(listeners, config.acceptors, config.backlog);
 		
-		//Represents a server socket that is constructed on a given port and with a given queue length
-		ServerSocket servsock = new ServerSocket(port, q_len);
-
-		System.out.println(serverTag + "Listening for clients at port " + port + ".");
-
-		/* This loop runs for the life of the program, waiting for client requests, and then calling the accept() method
-		/  on the server socket which returns a new socket to be used. For each request, a new Worker class is started in
-		/  its own thread to do the work
-		*/
-		while (controlSwitch) {
-			sock = servsock.accept();	//Assigns the 'sock' var to a new socket to accept a client request
-			new Worker(sock).start();	//An instance of Worker is constructed with the given socket and started in its own thread
+		//With engine=nio, the NIO engine's accept loops take the place of the blocking ones below
+		if (config.engine.equals("nio")) {
+			NioServer nio = new NioServer(listeners, config.acceptors, config.eventLoops);
+			System.out.println(serverTag + "Listening for clients at port " + port + " with " + listening + ", "
+					+ config.eventLoops + " NIO event loops.");
+			nio.run();
+			return;
+		}
+
+		System.out.println(serverTag + "Listening for clients at port " + port + " with " + listening + ".");
+
+		//Runs the Workers, with at most config.maxWorkers of them at the same time
+		WorkerExecutor workers = new WorkerExecutor("worker", config.executor, config.maxWorkers, config.saturation);
+		Metrics.workers = workers;
+		System.out.println(serverTag + "Running requests with executor=" + workers.mode + ", maxWorkers=" + config.maxWorkers
+				+ ", saturation=" + config.saturation);
+
+		//With admission=adaptive, connections over a limit that follows their latency are turned away at once
+		if (config.admission.equals("adaptive")) {
+			admission = new AdmissionControl(config.maxWorkers, config.retryAfterMillis);
+			System.out.println(serverTag + "Admission control: adaptive limit of " + AdmissionControl.MIN_LIMIT + " to "
+					+ config.maxWorkers + " requests, starting at " + admission.limit());
 		}
 
-		//Close the socket when the program ends
-		servsock.close();
+		//The first acceptor runs on this thread, any others on threads of their own
+		for (int i = 1; i < config.acceptors; i++)
+			new Thread(new Acceptor(listeners[i % listeners.length], workers, admission), "acceptor-" + (i + 1)).start();
+		new Acceptor(listeners[0], workers, admission).run();
+
+		//Close the sockets and let running Workers finish when the program ends
+		workers.shutdown();
+		Listeners.close(listeners);
 	}
 }
 
-/* This class "does the work" of the primary server. After setting up means of input/output through the socket, 
- * it acquires the clients UUID and name, and then calls the handleClient() method, which uses some helper
- * functions to maintain client state and send the client a joke/proverb.
+/* This class represents one accept loop of the blocking engine. With acceptors=N, N of them run at the same time,
+ * each on its own listening socket or all on the same one (see Listeners.java), handing Workers to the same executor.
  */
-class Worker extends Thread {
+class Acceptor implements Runnable {
 
-	//This socket is a class member, local to the Worker
-	Socket sock;
+	private final ServerSocketChannel servsock;	//The listening socket to accept from
+	private final WorkerExecutor workers;	//Runs the Workers
+	private final AdmissionControl admission;	//Decides which connections are served, or null to serve them all
 
-	//Constructor, takes a socket as an argument and assigns the class member socket to it
-	Worker (Socket s) {
-		this.sock = s;
+	//Constructor, takes the listening socket, the executor and the admission control, if any
+	Acceptor(ServerSocketChannel servsock, WorkerExecutor workers, AdmissionControl admission) {
+		this.servsock = servsock;
+		this.workers = workers;
+		this.admission = admission;
 	}
 
-	/* Since the class is setup to function in a multi-threaded environment, this method
-	 * is automatically called upon invoking the .start() method on an instance of the class.
-	 * This method creates and initializes a print stream to send communication through the
-	 * given socket, and also creates a buffered reader to accept communication from client
-	 * through the given socket. It acquires the client's UUID and name, calls the handleClient()
-	 * method, and then closes the socket.
-	 */
+	/* This loop runs for the life of the program, waiting for client requests, and then calling the accept() method
+	/  on the server socket which returns a new socket to be used. For each request, a new Worker is handed to the
+	/  executor to do the work. A connection over the admission control's limit is answered BUSY and closed on this
+	/  thread instead, and if the executor rejects it because all workers are busy, the socket is closed.
+	*/
 	public void run() {
-		PrintStream out = null;	//This print stream variable will be used to send communication to the client
-		BufferedReader in = null; //This var is a buffer which will receive characters from the client
+		Socket sock;	//A socket that will be designated for each client request
 		try {
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream())); //Initialize buffer reader variable with input stream reader through the given socket
-			out = new PrintStream(sock.getOutputStream());	//Initialize the output stream to send communication to the client through the socket
-
-			/* Attempt to retrieve client UUID and name from the buffered reader and call the handleClient() method.
-			/  Otherwise if there is a problem retrieving the data from the buffer, an IOException is caught.
-			*/
-			try {
-
-				//Assign client's uuid and name to vars from the buffered reader
-				String uuid;
-				String name;
-				uuid = in.readLine();
-				name = in.readLine();
-				
-				//Call method to maintain client state and send joke/proverb
-				handleClient(uuid, name, out);
-								
-			} catch (IOException x) {
-				System.out.println(JokeServer.serverTag + "Server read error");
-				x.printStackTrace();
+			while (JokeServer.controlSwitch) {
+				SocketChannel chan = servsock.accept();
+				Metrics.accepted.increment();
+				Metrics.open.increment();
+				if (admission != null && admission.full()) {
+					admission.turnAway(chan);
+					continue;
+				}
+				sock = chan.socket();	//Assigns the 'sock' var to a new socket to accept a client request
+				Worker worker = new Worker(sock, admission);	//An instance of Worker is constructed with the given socket and handed to the executor
+				if (!workers.dispatch(worker, worker.oneRequest())) {
+					sock.close();
+					Metrics.closed();
+				}
 			}
-			sock.close();	//Close the socket
 		} catch (IOException ioe) {
-			System.out.println(ioe);
-		}
-	}
-	
-	/* Calls a method for sending a joke/proverb to a client depending on which state the server is currently in.
-	 * If the client is new, an initial state is created by calling the initializeClientState() method
-	 */
-	private void handleClient(String uuid, String name, PrintStream out) {
-		if (JokeServer.jokeMode) {
-			if (!JokeServer.lastJokeSent.containsKey(uuid))
-				initializeClientState(uuid);
-			sendJoke(uuid, name, out);
-		} else {
-			if (!JokeServer.lastProverbSent.containsKey(uuid))
-				initializeClientState(uuid);
-			sendProverb(uuid, name, out);
-		}
-	}
-	
-	/* Called when a client is making their first request. Their UUID is stored in the JokeServer's
-	 * hashtable mapped to a value of -1, meaning they have not yet received a joke/proverb.
-	 */
-	private void initializeClientState(String uuid) {
-		if (JokeServer.jokeMode) {
-			JokeServer.lastJokeSent.put(uuid, -1);
-		} else {
-			JokeServer.lastProverbSent.put(uuid, -1);
-		}
-	}
-
-	/* Sends clients randomized jokes, and maintains the servers booking keeping of the client's state
-	 * by updating the lastJokeSent value, representing an index in the array of jokes. When the index
-	 * is the same as the length of the joke array, the array is shuffled, and the index is reset to -1.
-	 */
-	private void sendJoke(String uuid, String name, PrintStream out) {
-		
-		int numJokes = JokeServer.jokes.length;	//The number of jokes in the joke array
-		int joke = JokeServer.lastJokeSent.get(uuid);	//The index of the joke that the client previously received
-		joke++;	//Increment the index, since it is initialzed as -1
-		
-		//Print customized string (through print stream and to console) containing the client's name and joke tag
-		out.println(JokeServer.serverTag + JokeServer.jokes[joke].substring(0, 3) + name + ": " + JokeServer.jokes[joke].substring(3));
-		System.out.println(JokeServer.serverTag + "Sent " + name + " Joke " + JokeServer.jokes[joke].substring(0, 3));
-		
-		/* If the index is now the last joke in the array, print the cycle completion notification (through print stream and to console),
-		 * then reset the lastJokeSent value to -1 and shuffle the joke array. Otherwise, simply update the index of the last joke sent
-		 * in the HashTable.
-		 */
-		if (joke == numJokes - 1) {
-			out.println(JokeServer.serverTag + "JOKE CYCLE COMPLETED");
-			System.out.println(JokeServer.serverTag + "JOKE CYCLE COMPLETED FOR " + name);
-			JokeServer.lastJokeSent.replace(uuid, -1);
-			Collections.shuffle(Arrays.asList(JokeServer.jokes));
-		} else {
-			JokeServer.lastJokeSent.replace(uuid, joke);
-		}
-	}
-	
-	/* Sends clients randomized proverbs, and maintains the servers booking keeping of the client's state
-	 * by updating the lastProverbSent value, representing an index in the array of proverbs. When the index
-	 * is the same as the length of the proverb array, the array is shuffled, and the index is reset to -1.
-	 */
-	private void sendProverb(String uuid, String name, PrintStream out) {
-		
-		int numProverbs = JokeServer.proverbs.length;//The number of proverbs in the proverb array
-		int proverb = JokeServer.lastProverbSent.get(uuid); //The index of the proverb that the client previously received
-		proverb++;	//Increment the index, since it is initialzed as -1
-		
-		//Print customized string (through print stream and to console) containing the client's name and proverb tag
-		out.println(JokeServer.serverTag + JokeServer.proverbs[proverb].substring(0, 3) + name + ": " + JokeServer.proverbs[proverb].substring(3));
-		System.out.println(JokeServer.serverTag + "Sent " + name + " Proverb " + JokeServer.proverbs[proverb].substring(0, 3));
-		
-		/* If the index is now the last proverb in the array, print the cycle completion notification (through print stream and to console),
-		 * then reset the lastProverbSent value to -1 and shuffle the proverb array. Otherwise, simply update the index of the last proverb sent
-		 * in the HashTable.
-		 */
-		if (proverb == numProverbs - 1) {
-			out.println(JokeServer.serverTag + "PROVERB CYCLE COMPLETED");
-			System.out.println(JokeServer.serverTag + "PROVERB CYCLE COMPLETED FOR " + name);
-			JokeServer.lastProverbSent.replace(uuid, -1);
-			Collections.shuffle(Arrays.asList(JokeServer.proverbs));
-		} else {
-			JokeServer.lastProverbSent.replace(uuid, proverb);
+			System.out.println(JokeServer.serverTag + "Accept failed: " + ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
 	}
 }
 
-
 /* An instance of this class is created by the server and run in its own thread in order admin interaction
  * through a different port.
  */
@@ -294,12 +361,13 @@ class AdminAccessor implements Runnable {
 	 */
 	public void run() {
 
-		int q_len = 6;	//Maximum number of client requests to queue
 		Socket sock;	//A socket that will be designated for each client request
 		int port;	//The port at which the server will accept requests
 		
-		//Assigns port based on if this is the primary or secondary server
-		if (JokeServer.secondary)
+		//Assigns port based on the adminPort option, or on if this is the primary or secondary server
+		if (JokeServer.config.adminPort > 0)
+			port = JokeServer.config.adminPort;
+		else if (JokeServer.secondary)
 			port = 5051;
 		else
 			port = 5050;
@@ -308,47 +376,74 @@ class AdminAccessor implements Runnable {
 
 		try {
 			//Represents a server socket that is constructed on a given port and with a given queue length
-			ServerSocket servsock = new ServerSocket(port, q_len);
+			ServerSocket servsock = new ServerSocket(port, JokeServer.config.backlog);
+
+			//Runs the AdminWorkers, with the same execution mode as the client Workers but a separate, smaller cap
+			WorkerExecutor adminWorkers = new WorkerExecutor("admin", JokeServer.config.executor,
+					JokeServer.config.maxAdminWorkers, JokeServer.config.saturation);
 
 			/* This loop runs for the life of this thread, waiting for admin requests, and then calling the accept() method
-			 * on the server socket which returns a new socket to be used. For each request, a new AdminWorker class is started in
-			 * its own thread to do the work
+			 * on the server socket which returns a new socket to be used. For each request, a new AdminWorker is handed to
+			 * the executor to do the work. If the executor rejects it because all workers are busy, the socket is closed.
 			 */
 			while (JokeServer.controlSwitch) {
 				sock = servsock.accept();
-				new AdminWorker(sock).start();
+				if (!adminWorkers.dispatch(new AdminWorker(sock)))
+					sock.close();
 			}
 
-			//Close the socket when this thread is terminated
+			//Close the socket and let running AdminWorkers finish when this thread is terminated
+			adminWorkers.shutdown();
 			servsock.close();
 
 		} catch (IOException ioe) {
 			System.out.println(ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
 	}
 }
 
 
-/* This class "does the work" of the Admin accessible server thread. After setting up means of output through the socket,
- * it changes the 'jokeMode' boolean and prints a prints a message (through the print stream and to the console).
- * (Note that there is no buffered reader since no explicit input is necessary besides having accepted an admin client
- * request through the socket when the admin presses [enter]). 
+/* This class "does the work" of the Admin accessible server thread. After setting up means of input/output through the
+ * socket, it reads the admin's command and carries it out, printing a message (through the print stream and to the console).
+ * The commands are:
+ *   TOGGLE            - switches to the other mode, with the server's next epoch (see ServerMode.java)
+ *   SET JOKE|PROVERB EPOCH
+ *                     - sets the mode if EPOCH is higher than the server's, and answers "OK MODE <mode> <epoch>",
+ *                       or "STALE MODE <mode> <epoch>" with the server's mode if it is not
+ *   MODE              - answers "MODE <mode> <epoch>"
+ *   CLUSTER [MEMBERS EPOCH]
+ *                     - with MEMBERS, replaces the cluster's member list if EPOCH is higher than the server's and
+ *                       hands off the clients the server no longer owns, answering "OK CLUSTER <members> <epoch>" or
+ *                       "STALE CLUSTER ..." as SET does; without, answers "CLUSTER <members> <epoch>" (see Cluster.java)
+ *   RELOAD [jokes=FILE] [proverbs=FILE]
+ *                     - loads the given corpus files, or reloads the files the server was started with, and
+ *                       publishes them as a new CorpusSnapshot without stopping or blocking client requests
+ *   STATS             - reports how many clients' state is resident, its size, and how many were expired/evicted,
+ *                       and the state of replication (see Replicator.java and ReplicaReceiver.java)
+ *   METRICS           - dumps the server's counters, gauges and stage latencies in a machine-readable format (see
+ *                       Metrics.java)
+ * The original JokeClientAdmin sends no command at all, so if no command arrives within the server's
+ * adminCommandWaitMillis option, the request is treated as TOGGLE.
  */
-class AdminWorker extends Thread {
+class AdminWorker implements Runnable {
 
 	//This socket is a class member, local to the AdminWorker
 	Socket sock;
+	private final Deadline deadline;	//Closes the socket of an admin that trickles its command or does not read the answer
 	
 	//Constructor, takes a socket as an argument and assigns the class member socket to it
 	AdminWorker(Socket s) {
 		this.sock = s;
+		this.deadline = new Deadline(s, null);
 	}
 	
 	/* Since the class is setup to function in a multi-threaded environment, this method
-	 * is automatically called upon invoking the .start() method on an instance of the class.
+	 * is called by one of the AdminAccessor's worker threads once the AdminWorker has been dispatched.
 	 * This method creates and initializes a print stream to send communication through the
-	 * given socket. It switches the mode of the server and then prints a message through the
-	 * print stream and to the console.
+	 * given socket, reads the command and calls the method carrying it out, which prints a
+	 * message through the print stream and to the console.
 	 */
 	public void run() {
 
@@ -359,26 +454,188 @@ class AdminWorker extends Thread {
 
 			out = new PrintStream(sock.getOutputStream());	//Initialize the output stream to send communication to the admin through the socket
 			
-			//Change the boolean representing the server's current mode. True = jokeMode, False = proverbMode
-			JokeServer.jokeMode = !JokeServer.jokeMode;
-
-			//Create a string based on the server's current mode
-			String mode;
-			if (JokeServer.jokeMode)
-				mode = "JOKE";
-			else
-				mode = "PROVERB";
-
-			//Print customized message through print stream and to console
-			System.out.println(JokeServer.serverTag + "Server has been switched into " + mode + " mode by admin.");
-			out.println(JokeServer.serverTag + "Server has switched into " + mode + " mode.");
+			deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);
+			String command = readCommand();
+			deadline.arm(Deadline.WRITE, JokeServer.config.writeTimeoutMillis);
+			if (command.equals("TOGGLE")) {
+				toggleMode(out);
+			} else if (command.equals("RELOAD") || command.startsWith("RELOAD ")) {
+				reload(command.substring("RELOAD".length()).trim(), out);
+			} else if (command.equals("STATS")) {
+				stats(out);
+			} else if (command.equals("METRICS")) {
+				Metrics.dump(out);
+			} else if (command.startsWith("SET ")) {
+				setMode(command.substring("SET ".length()).trim(), out);
+			} else if (command.equals("MODE")) {
+				out.println(ServerMode.current());
+			} else if (command.equals("CLUSTER")) {
+				Cluster cluster = Cluster.current();
+				out.println(cluster == null ? "CLUSTER none 0" : cluster.toString());
+			} else if (command.startsWith("CLUSTER ")) {
+				setCluster(command.substring("CLUSTER ".length()).trim(), out);
+			} else {
+				out.println(JokeServer.serverTag + "Unknown admin command: " + command);
+			}
 			
 			//Close the socket
 			sock.close();
 
 		} catch (IOException ioe2) {
-			ioe2.printStackTrace();
-			System.out.println(ioe2);
+			if (!deadline.expired()) {
+				ioe2.printStackTrace();
+				System.out.println(ioe2);
+			}
+		} finally {
+			deadline.cancel();
 		}
 	}
-}
\ No newline at end of file
+
+	//Returns the admin's command, or "TOGGLE" if none arrives in time (as with the original JokeClientAdmin)
+	private String readCommand() throws IOException {
+		sock.setSoTimeout(JokeServer.config.adminCommandWaitMillis);
+		try {
+			String command = new BufferedReader(new InputStreamReader(sock.getInputStream())).readLine();
+			if (command == null || command.trim().isEmpty())
+				return "TOGGLE";
+			return command.trim();
+		} catch (SocketTimeoutException ste) {
+			return "TOGGLE";
+		} finally {
+			sock.setSoTimeout(0);
+		}
+	}
+
+	//Switches the server between joke and proverb mode
+	private void toggleMode(PrintStream out) {
+
+		//Switch to the other mode, with the next epoch
+		ServerMode mode = ServerMode.toggle();
+
+		//Let the replica follow the change
+		if (JokeServer.replicator != null)
+			JokeServer.replicator.modeChanged(mode);
+
+		//Print customized message through print stream and to console
+		System.out.println(JokeServer.serverTag + "Server has been switched into " + mode.name() + " mode by admin (epoch " + mode.epoch + ").");
+		out.println(JokeServer.serverTag + "Server has switched into " + mode.name() + " mode.");
+	}
+
+	/* Carries out "SET JOKE|PROVERB EPOCH": sets the mode unless the epoch is not higher than the server's, and
+	 * answers with the outcome and the mode the server is in (see ServerMode.java).
+	 */
+	private void setMode(String args, PrintStream out) {
+		String[] parts = args.split("\\s+");
+		long epoch;
+		try {
+			if (parts.length != 2 || !(parts[0].equals("JOKE") || parts[0].equals("PROVERB")))
+				throw new NumberFormatException();
+			epoch = Long.parseLong(parts[1]);
+		} catch (NumberFormatException nfe) {
+			out.println("ERROR usage: SET JOKE|PROVERB EPOCH");
+			return;
+		}
+		boolean jokeMode = parts[0].equals("JOKE");
+		ServerMode before = ServerMode.current();
+		ServerMode mode = ServerMode.set(jokeMode, epoch);
+		boolean applied = mode.jokeMode == jokeMode && mode.epoch == epoch;
+		if (applied && mode != before) {
+			if (JokeServer.replicator != null)
+				JokeServer.replicator.modeChanged(mode);
+			System.out.println(JokeServer.serverTag + "Server has been switched into " + mode.name() + " mode by admin (epoch " + epoch + ").");
+		}
+		out.println((applied ? "OK " : "STALE ") + mode);
+	}
+
+	/* Carries out "CLUSTER MEMBERS EPOCH": replaces the member list unless the epoch is not higher than the server's,
+	 * starts handing off the clients the server no longer owns, and answers with the outcome and the member list the
+	 * server has (see Cluster.java).
+	 */
+	private void setCluster(String args, PrintStream out) {
+		if (JokeServer.node == null) {
+			out.println("ERROR this server was not started with the cluster option");
+			return;
+		}
+		String[] parts = args.split("\\s+");
+		HashRing ring;
+		long epoch;
+		try {
+			if (parts.length != 2)
+				throw new IllegalArgumentException("usage: CLUSTER MEMBERS EPOCH");
+			epoch = Long.parseLong(parts[1]);
+			ring = new HashRing(parts[0], JokeServer.config.virtualNodes);
+		} catch (IllegalArgumentException iae) {
+			out.println("ERROR " + iae.getMessage());
+			return;
+		}
+		Cluster before = Cluster.current();
+		Cluster cluster = Cluster.set(ring, epoch, JokeServer.node);
+		boolean applied = cluster.epoch == epoch && cluster.ring.spec().equals(ring.spec());
+		if (applied && cluster != before) {
+			System.out.println(JokeServer.serverTag + "Cluster changed by admin to " + cluster.ring.spec() + " (epoch " + epoch + ")"
+					+ (cluster.self < 0 ? ", this server is no longer a member" : ""));
+			new Handoff(cluster, JokeServer.clients).start();
+		}
+		out.println((applied ? "OK " : "STALE ") + cluster);
+	}
+
+	//Reports the size of the client state store, how many clients the retention policy has removed, and replication
+	private void stats(PrintStream out) {
+		ClientStateStore clients = JokeServer.clients;
+		out.println(JokeServer.serverTag + "Clients resident: " + clients.size() + " (" + clients.memoryBytes() / 1024 + " KB of tables), expired: "
+				+ clients.expired() + ", evicted: " + clients.evicted());
+		if (JokeServer.replicator != null)
+			out.println(JokeServer.serverTag + JokeServer.replicator.status());
+		if (JokeServer.replica != null)
+			out.println(JokeServer.serverTag + JokeServer.replica.status());
+		Cluster cluster = Cluster.current();
+		if (cluster != null)
+			out.println(JokeServer.serverTag + "Cluster epoch " + cluster.epoch + ": " + JokeServer.node + (cluster.self < 0 ? " is not" : " is")
+					+ " one of " + cluster.ring.members.length + " members, requests moved: " + Metrics.moved.sum()
+					+ ", clients handed off: " + Metrics.handedOff.sum());
+	}
+
+	/* Loads new corpora and publishes them. The arguments may name the files to load as jokes=FILE and/or
+	 * proverbs=FILE; without arguments the files the server was started with are loaded again. The new corpora
+	 * are mapped and checked on this admin thread; client requests keep being served from the current snapshot
+	 * until the new one replaces it in a single write. Reloads are serialized so that none is lost.
+	 */
+	private void reload(String args, PrintStream out) {
+		String jokesFile = null;
+		String proverbsFile = null;
+		if (args.isEmpty()) {
+			jokesFile = JokeServer.config.jokesFile;
+			proverbsFile = JokeServer.config.proverbsFile;
+		} else {
+			for (String arg : args.split("\\s+")) {
+				if (arg.startsWith("jokes="))
+					jokesFile = arg.substring("jokes=".length());
+				else if (arg.startsWith("proverbs="))
+					proverbsFile = arg.substring("proverbs=".length());
+				else {
+					out.println(JokeServer.serverTag + "Unknown RELOAD argument: " + arg);
+					return;
+				}
+			}
+		}
+		if (jokesFile == null && proverbsFile == null) {
+			out.println(JokeServer.serverTag + "Nothing to reload: the server is using its built-in jokes and proverbs.");
+			return;
+		}
+
+		try {
+			CorpusSnapshot snapshot;
+			synchronized (AdminWorker.class) {
+				long start = System.nanoTime();
+				snapshot = JokeServer.corpus.reload(jokesFile, proverbsFile);
+				JokeServer.corpus = snapshot;
+				System.out.println(JokeServer.serverTag + "Corpus reloaded by admin in " + (System.nanoTime() - start) / 1000000 + " ms.");
+			}
+			out.println(JokeServer.serverTag + "Now serving " + snapshot.jokes.size() + " jokes (generation " + snapshot.jokesGeneration
+					+ ") and " + snapshot.proverbs.size() + " proverbs (generation " + snapshot.proverbsGeneration + ").");
+		} catch (IOException ioe) {
+			System.out.println(JokeServer.serverTag + "Corpus reload failed: " + ioe.getMessage());
+			out.println(JokeServer.serverTag + "Reload failed, still serving the previous corpus: " + ioe.getMessage());
+		}
+	}
+}
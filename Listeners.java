@@ -0,0 +1,90 @@
+/* This file contains the opening of the JokeServer's listening sockets for the client port. With one acceptor (the
+ * default) there is one listening socket and one thread accepting from it, as there always was. With acceptors=N,
+ * N threads accept connections, so that a storm of new connections is not limited to what one thread on one core
+ * accepts:
+ *
+ *   - where the JVM and the OS support SO_REUSEPORT (Java 9+ on Linux), each acceptor gets a listening socket of its
+ *     own, all bound to the same port. The kernel spreads incoming connections over the sockets by a hash of their
+ *     addresses, and every socket has its own accept queue of 'backlog' connections, so the acceptors neither share
+ *     a lock nor a queue, and N queues absorb a burst that would overflow one
+ *   - elsewhere, the N acceptors share the one listening socket, which still lets a second acceptor take over while
+ *     the first is busy handing off a connection
+ *
+ * The backlog is the length of each accept queue (the kernel caps it at net.core.somaxconn on Linux). Connections
+ * arriving at a full queue are dropped by the kernel, which counts them as listen overflows (see the admin METRICS
+ * command). Note that SO_REUSEPORT also lets another server started by the same user share the port, instead of
+ * failing to bind it.
+ *
+ * Running AcceptBench measures the connection rate for different numbers of acceptors (see AcceptBench.java).
+ */
+
+//Import the Java libraries for input/output and networking
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/* This class holds the listening socket helpers. Everything is static. */
+class Listeners {
+
+	//The SO_REUSEPORT socket option, or null where it is not supported
+	static final SocketOption<Boolean> REUSE_PORT = reusePortOption();
+
+	/* Returns StandardSocketOptions.SO_REUSEPORT if this JVM has it (it was added in Java 9, and is looked up by name
+	 * so the server still runs on Java 8) and server sockets on this OS support it, otherwise null.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			ServerSocketChannel probe = ServerSocketChannel.open();
+			try {
+				return probe.supportedOptions().contains(option) ? option : null;
+			} finally {
+				probe.close();
+			}
+		} catch (NoSuchFieldException | IllegalAccessException | IOException e) {
+			return null;
+		}
+	}
+
+	/* Opens the listening sockets for the given number of acceptors, bound to the port with the given backlog each:
+	 * one per acceptor with SO_REUSEPORT, otherwise a single one for all of them (acceptor i uses socket i modulo the
+	 * number of sockets). Port 0 binds the first socket to a free port and the others to the same one.
+	 */
+	static ServerSocketChannel[] open(int port, int backlog, int acceptors) throws IOException {
+		int sockets = acceptors > 1 && REUSE_PORT != null ? acceptors : 1;
+		ServerSocketChannel[] channels = new ServerSocketChannel[sockets];
+		try {
+			for (int i = 0; i < sockets; i++) {
+				channels[i] = ServerSocketChannel.open();
+				if (sockets > 1)
+					channels[i].setOption(REUSE_PORT, true);
+				channels[i].bind(new InetSocketAddress(port), backlog);
+				port = ((InetSocketAddress) channels[i].getLocalAddress()).getPort();
+			}
+		} catch (IOException ioe) {
+			close(channels);
+			throw ioe;
+		}
+		return channels;
+	}
+
+	//Closes the listening sockets, ignoring errors
+	static void close(ServerSocketChannel[] channels) {
+		for (ServerSocketChannel chan : channels) {
+			if (chan != null)
+				NioServer.closeQuietly(chan);
+		}
+	}
+
+	//Returns a description of the listening sockets, for the startup message
+	static String describe(ServerSocketChannel[] channels, int acceptors, int backlog) {
+		if (acceptors == 1)
+			return "1 acceptor, backlog " + backlog;
+		if (channels.length > 1)
+			return acceptors + " acceptors with a SO_REUSEPORT socket each, backlog " + backlog + " each";
+		return acceptors + " acceptors sharing one socket (SO_REUSEPORT is not available), backlog " + backlog;
+	}
+}
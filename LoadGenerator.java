@@ -0,0 +1,289 @@
+/* This file contains a headless load generator for the JokeServer, to measure what a server sustains with a given
+ * engine and options. It simulates 'clients' distinct UUIDs, sending their requests through an AsyncJokeClient (see
+ * AsyncJokeClient.java) at a fixed rate, and reports the throughput and the latency percentiles. Options are given as
+ * key=value pairs, like the server's:
+ *
+ * > java LoadGenerator rate=20000 seconds=30 clients=10000
+ * > java LoadGenerator port=4546 adminPort=5051 rate=5000 flipMillis=1000
+ *
+ *   host, port        - the server's client port (localhost, 4545)
+ *   cluster           - instead of host and port, the members of a cluster as the servers were given them (see
+ *                       Cluster.java); each request goes to the member owning its client
+ *   adminPort         - the server's admin port, for flipMillis (5050)
+ *   admins            - with a cluster, every member's admin HOST:PORT, comma separated, for flipMillis
+ *   clients           - the number of distinct UUIDs the requests are spread over at random (1000)
+ *   rate              - requests sent per second (5000)
+ *   seconds           - how long to send for, after the warmup (10)
+ *   warmupSeconds     - how long to send for before measuring, at the same rate (2)
+ *   batch             - items asked for by every request, see BATCH in JokeProtocol.java (1)
+ *   flipMillis        - how often to switch the server between joke and proverb mode during the run, or 0 for never (0);
+ *                       with a cluster, every member in admins is switched to the same mode with one versioned change
+ *   connections       - keep-alive connections to spread the requests over (8)
+ *   ioThreads         - client event loop threads (2)
+ *   timeoutMillis     - how long a request may take before it counts as failed (5000)
+ *
+ * The load is open-loop: request i is due at start + i / rate whether or not earlier requests have been answered,
+ * which is how independent clients behave. Every latency is measured from the time the request was due, not from the
+ * time it was actually sent, so a stall of the server (or of the generator) is charged to every request that should
+ * have been sent during it. Measuring from the send time instead hides those requests, which is known as coordinated
+ * omission; that "service time" is reported next to the corrected latency for comparison. The server's mode is the
+ * same for all clients, so mixed joke/proverb traffic comes from flipMillis; the report counts the cycles of each kind
+ * completed. Requests a server with admission control or rate limits turns away (see AdmissionControl.java and
+ * RateLimiter.java) are counted as BUSY, and their latency is reported on its own, so that fast rejections do not
+ * flatter the latency of the rest.
+ */
+
+//Import the Java libraries for formatting, collections, concurrency and atomic counters
+import java.text.DecimalFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/* This class represents one run of the load generator. */
+class LoadGenerator {
+
+	String host = "localhost";
+	int port = 4545;
+	HashRing cluster = null;
+	int adminPort = 5050;
+	String[] adminHosts = null;	//With a cluster, the members' admin ports, for flipMillis
+	int[] adminPorts = null;
+	int clients = 1000;
+	int rate = 5000;
+	int seconds = 10;
+	int warmupSeconds = 2;
+	int batch = 1;
+	int flipMillis = 0;
+	int connections = 8;
+	int ioThreads = 2;
+	int timeoutMillis = 5000;
+
+	final LatencyHistogram latency = new LatencyHistogram();	//Corrected: from the time each request was due
+	final LatencyHistogram serviceTime = new LatencyHistogram();	//Uncorrected: from the time each request was sent
+	final AtomicLong completed = new AtomicLong();	//Replies received, including during the warmup
+	final AtomicLong failed = new AtomicLong();	//Requests that failed or timed out, including during the warmup
+	final AtomicLong busy = new AtomicLong();	//Replies that were BUSY (see AdmissionControl.java), including during the warmup
+	final LatencyHistogram busyLatency = new LatencyHistogram();	//From the time each request was due to its BUSY reply
+	final AtomicLong items = new AtomicLong();	//Jokes and proverbs received, after the warmup
+	final AtomicLong jokeCycles = new AtomicLong();	//Joke cycles completed, after the warmup
+	final AtomicLong proverbCycles = new AtomicLong();	//Proverb cycles completed, after the warmup
+	private boolean jokeMode = true;	//With a cluster, the mode the members were last set to by flip()
+	private long epoch = 0;	//... and the epoch of that change
+
+	//Parses the key=value arguments described above, throwing an IllegalArgumentException for a bad one
+	static LoadGenerator parse(String args[]) {
+		LoadGenerator load = new LoadGenerator();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+
+			if (key.equals("host"))
+				load.host = value;
+			else if (key.equals("port"))
+				load.port = ServerConfig.positiveInt(key, value);
+			else if (key.equals("cluster"))
+				load.cluster = new HashRing(value, HashRing.DEFAULT_VIRTUAL_NODES);
+			else if (key.equals("adminPort"))
+				load.adminPort = ServerConfig.positiveInt(key, value);
+			else if (key.equals("admins")) {
+				String[] admins = value.split(",");
+				load.adminHosts = new String[admins.length];
+				load.adminPorts = new int[admins.length];
+				for (int i = 0; i < admins.length; i++) {
+					int colon = admins[i].lastIndexOf(':');
+					if (colon <= 0)
+						throw new IllegalArgumentException("Bad admin address, expected HOST:PORT: " + admins[i]);
+					load.adminHosts[i] = admins[i].substring(0, colon);
+					load.adminPorts[i] = ServerConfig.positiveInt(key, admins[i].substring(colon + 1));
+				}
+			}
+			else if (key.equals("clients"))
+				load.clients = ServerConfig.positiveInt(key, value);
+			else if (key.equals("rate"))
+				load.rate = ServerConfig.positiveInt(key, value);
+			else if (key.equals("seconds"))
+				load.seconds = ServerConfig.positiveInt(key, value);
+			else if (key.equals("warmupSeconds"))
+				load.warmupSeconds = ServerConfig.nonNegativeInt(key, value);
+			else if (key.equals("batch"))
+				load.batch = ServerConfig.positiveInt(key, value);
+			else if (key.equals("flipMillis"))
+				load.flipMillis = ServerConfig.nonNegativeInt(key, value);
+			else if (key.equals("connections"))
+				load.connections = ServerConfig.positiveInt(key, value);
+			else if (key.equals("ioThreads"))
+				load.ioThreads = ServerConfig.positiveInt(key, value);
+			else if (key.equals("timeoutMillis"))
+				load.timeoutMillis = ServerConfig.positiveInt(key, value);
+			else
+				throw new IllegalArgumentException("Unrecognized option: " + key);
+		}
+		//The admin port of one server says nothing about the other members, which would keep their mode
+		if (load.cluster != null && load.flipMillis > 0 && load.adminHosts == null)
+			throw new IllegalArgumentException("flipMillis with a cluster needs admins=HOST:PORT,... to switch every member");
+		return load;
+	}
+
+	public static void main(String args[]) throws Exception {
+		LoadGenerator load;
+		try {
+			load = parse(args);
+		} catch (IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			return;
+		}
+		load.run();
+	}
+
+	/* Sends the requests on this thread at their due times, flipping the server's mode on the side, then waits for
+	 * the last replies and prints the report.
+	 */
+	void run() throws InterruptedException {
+		ClientEventLoop[] loops = ClientEventLoop.start(ioThreads);
+		AsyncJokeClient client = cluster != null ? new AsyncJokeClient(cluster, loops, connections, timeoutMillis)
+				: new AsyncJokeClient(host, port, loops, connections, timeoutMillis);
+		final AsyncJokeAdmin admin = new AsyncJokeAdmin(loops, timeoutMillis);
+		ClientIdentity[] identities = new ClientIdentity[clients];
+		for (int i = 0; i < clients; i++)
+			identities[i] = client.newIdentity("Load" + i);
+
+		System.out.printf("Sending %d requests/sec to %s from %d clients for %d seconds, after %d seconds of warmup%n", rate,
+				cluster != null ? "a cluster of " + cluster.members.length : host + ":" + port, clients, seconds, warmupSeconds);
+
+		if (adminHosts != null && flipMillis > 0)
+			askModes(admin);
+
+		long total = (long) rate * (seconds + warmupSeconds);
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmupSeconds * 1_000_000_000L;
+		long nextFlip = flipMillis > 0 ? start + flipMillis * 1_000_000L : Long.MAX_VALUE;
+		long nextProgress = start + 1_000_000_000L;
+		long flips = 0;
+		Random random = new Random();
+
+		for (long i = 0; i < total; i++) {
+			final long due = start + i * 1_000_000_000L / rate;
+			long now = System.nanoTime();
+			if (due > now) {
+				LockSupport.parkNanos(due - now);
+				now = System.nanoTime();
+			}
+			if (now >= nextFlip) {
+				flip(admin);
+				flips++;
+				nextFlip += flipMillis * 1_000_000L;
+			}
+			if (now >= nextProgress) {
+				System.out.printf("%3d s: sent %d, answered %d, busy %d, failed %d%n", (now - start) / 1_000_000_000L, i,
+						completed.get(), busy.get(), failed.get());
+				nextProgress += 1_000_000_000L;
+			}
+
+			final long sent = now;
+			identities[random.nextInt(clients)].next(batch).whenComplete(new BiConsumer<Reply, Throwable>() {
+				public void accept(Reply reply, Throwable failure) {
+					if (failure != null) {
+						failed.incrementAndGet();
+						return;
+					}
+					completed.incrementAndGet();
+					boolean turnedAway = JokeProtocol.parseBusy(reply.lines) >= 0;
+					if (turnedAway)
+						busy.incrementAndGet();
+					if (due < measureFrom)
+						return;
+					long end = System.nanoTime();
+					if (turnedAway) {
+						busyLatency.record(end - due);
+						return;
+					}
+					latency.record(end - due);
+					serviceTime.record(end - sent);
+					count(reply);
+				}
+			});
+		}
+		long sendingNanos = System.nanoTime() - measureFrom;
+
+		//Wait for the replies still on their way, which end with their timeout at the latest
+		long waitUntil = System.nanoTime() + timeoutMillis * 1_000_000L + 1_000_000_000L;
+		while (completed.get() + failed.get() < total && System.nanoTime() < waitUntil)
+			Thread.sleep(10);
+		client.close();
+		for (ClientEventLoop loop : loops)
+			loop.stop();
+
+		report(total, sendingNanos, flips);
+	}
+
+	/* Asks every member of the cluster for its mode before the run, so that flip() can pick epochs above all of
+	 * theirs, as "java JokeClientAdmin set" does (see ServerMode.java). The first member's mode is taken as the
+	 * cluster's.
+	 */
+	private void askModes(AsyncJokeAdmin admin) {
+		for (int i = 0; i < adminHosts.length; i++) {
+			try {
+				String mode = admin.queryMode(adminHosts[i], adminPorts[i]).join().lines.get(0);
+				epoch = Math.max(epoch, JokeClientAdmin.epochOf(mode));
+				if (i == 0)
+					jokeMode = mode.startsWith("MODE JOKE");
+			} catch (CompletionException | IndexOutOfBoundsException e) {
+				System.out.println("Cannot ask " + adminHosts[i] + ":" + adminPorts[i] + " for its mode, switching it anyway");
+			}
+		}
+	}
+
+	/* Switches the server's mode. With a cluster, every member is set to the same mode with the same, higher epoch,
+	 * so all members agree whatever order the changes arrive in.
+	 */
+	private void flip(AsyncJokeAdmin admin) {
+		if (adminHosts == null) {
+			admin.switchServerMode(host, adminPort);
+			return;
+		}
+		jokeMode = !jokeMode;
+		epoch++;
+		for (int i = 0; i < adminHosts.length; i++)
+			admin.setMode(adminHosts[i], adminPorts[i], jokeMode, epoch);
+	}
+
+	/* Counts the items of a reply, and the cycles it completed by kind. Item lines start with a tag from the corpus
+	 * files, which says nothing certain about their kind, so the mix is read from the cycle completion lines.
+	 */
+	private void count(Reply reply) {
+		for (String line : reply.lines) {
+			if (line.endsWith("JOKE CYCLE COMPLETED"))
+				jokeCycles.incrementAndGet();
+			else if (line.endsWith("PROVERB CYCLE COMPLETED"))
+				proverbCycles.incrementAndGet();
+			else
+				items.incrementAndGet();
+		}
+	}
+
+	//Prints the throughput, the kinds of items received and both latency distributions
+	private void report(long total, long sendingNanos, long flips) {
+		long measured = latency.count();
+		System.out.println();
+		System.out.printf("Requests: %d sent, %d answered (%d of them BUSY), %d failed or timed out, %d measured after the warmup%n",
+				total, completed.get(), busy.get(), failed.get(), measured);
+		System.out.printf("Throughput: %.0f replies/sec (target %d)%n", measured / (sendingNanos / 1e9), rate);
+		System.out.printf("Items: %d, cycles completed: %d joke, %d proverb, mode flips: %d%n", items.get(), jokeCycles.get(),
+				proverbCycles.get(), flips);
+		System.out.println();
+		System.out.println("Percentile     Latency ms   Service time ms   BUSY latency ms");
+		double[] percentiles = { 50, 90, 99, 99.9, 99.99, 100 };
+		for (double p : percentiles) {
+			System.out.printf("%-12s %12.3f %17.3f %17.3f%n", p == 100 ? "max" : "p" + new DecimalFormat("0.##").format(p),
+					latency.percentile(p) / 1e6, serviceTime.percentile(p) / 1e6, busyLatency.percentile(p) / 1e6);
+		}
+		System.out.println();
+		System.out.println("Latency is measured from the time each request was due, service time from the time it was sent.");
+		System.out.println("BUSY replies are left out of both, and measured on their own from the time each request was due.");
+	}
+}
@@ -0,0 +1,258 @@
+/* This file contains the corpus that is memory mapped from a file, used when the JokeServer is started with
+ * jokes=<file> and/or proverbs=<file>. Opening it reads the fixed size header, maps the rest of the file and
+ * checks every index record once, in one sequential pass over the index; the bodies are never read, so heap use
+ * does not depend on the number of entries, and the operating system pages the bodies in as they are served.
+ *
+ * The file format is (all numbers big endian):
+ *
+ *   header (32 bytes):  "JKCORPUS" | version (int) | entry count (int) | largest entry in bytes (int) |
+ *                       unused (int) | offset of the data section in the file (long)
+ *   index (16 bytes per entry, entry i at 32 + 16 * i):
+ *                       offset of the body in the data section (long) | body length in bytes (int) |
+ *                       tag (3 ASCII bytes) | unused (1 byte)
+ *   data:               the UTF-8 bodies, one after the other
+ *
+ * A corpus file is built from a text file with one entry per line, tag first (as in "JA Joke 1"):
+ *
+ * > java MappedCorpus jokes.txt jokes.jcorpus
+ */
+
+//Import the Java libraries for input/output and for memory mapping files
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* This class represents a memory mapped corpus. A single mapping can be at most 2GB, so the index and data
+ * sections are mapped in chunks of CHUNK_BYTES. Each data chunk's mapping extends past the chunk by the size of the
+ * largest entry, so an entry starting in a chunk can always be read from that chunk's mapping alone.
+ */
+class MappedCorpus implements Corpus {
+
+	static final byte[] MAGIC = "JKCORPUS".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+	static final int INDEX_RECORD_BYTES = 16;
+	static final int CHUNK_SHIFT = 30;
+	static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;	//1GB, a multiple of INDEX_RECORD_BYTES
+
+	private final int count;	//The number of entries
+	private final int maxEntryBytes;	//The length of the longest body, as the header announces it
+	private final MappedByteBuffer[] index;	//The index section, in chunks of CHUNK_BYTES
+	private final MappedByteBuffer[] data;	//The data section, in chunks of CHUNK_BYTES plus the largest entry
+
+	/* Constructor, maps the given corpus file. Throws an IOException if the file cannot be read, is not a
+	 * corpus file of a version this class understands, or has an index record pointing outside the file (see
+	 * checkIndex()), so that a truncated or corrupt file is rejected here, and by RELOAD, instead of failing
+	 * requests later.
+	 */
+	MappedCorpus(File file) throws IOException {
+		FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && chan.read(header, header.position()) > 0)
+				;
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			if (header.limit() >= MAGIC.length)
+				header.get(magic);
+			if (header.limit() < HEADER_BYTES || !Arrays.equals(magic, MAGIC))
+				throw new IOException(file + " is not a corpus file");
+			if (header.getInt(8) != VERSION)
+				throw new IOException(file + " has unsupported corpus version " + header.getInt(8));
+
+			count = header.getInt(12);
+			maxEntryBytes = header.getInt(16);
+			long dataOffset = header.getLong(24);
+			if (count < 0 || maxEntryBytes < 0 || dataOffset < HEADER_BYTES + (long) count * INDEX_RECORD_BYTES
+					|| dataOffset > chan.size())
+				throw new IOException(file + " has a corrupt corpus header");
+
+			index = map(chan, HEADER_BYTES, (long) count * INDEX_RECORD_BYTES, 0);
+			data = map(chan, dataOffset, chan.size() - dataOffset, maxEntryBytes);
+			checkIndex(file, chan.size() - dataOffset, maxEntryBytes);
+		} finally {
+			chan.close();	//The mappings stay valid after the channel is closed
+		}
+	}
+
+	/* Checks every index record: the body must lie within the data section and be no longer than the largest
+	 * entry the header announces (which the data mappings rely on, see the class comment), and the tag must be
+	 * ASCII without line breaks. Throws an IOException naming the first bad record.
+	 */
+	private void checkIndex(File file, long dataLength, int maxEntryBytes) throws IOException {
+		for (int i = 0; i < count; i++) {
+			long record = (long) i * INDEX_RECORD_BYTES;
+			ByteBuffer chunk = index[(int) (record >>> CHUNK_SHIFT)];
+			int at = (int) (record & (CHUNK_BYTES - 1));
+			long offset = chunk.getLong(at);
+			int length = chunk.getInt(at + 8);
+			if (offset < 0 || length < 0 || length > maxEntryBytes || offset > dataLength - length)
+				throw new IOException(file + " has a corrupt index record for entry " + i);
+			for (int c = 0; c < TAG_LENGTH; c++) {
+				byte b = chunk.get(at + 12 + c);
+				if (b < 0 || b == '\n' || b == '\r')
+					throw new IOException(file + " has a corrupt tag for entry " + i);
+			}
+		}
+	}
+
+	//Maps 'length' bytes of the file from 'start' on, in chunks of CHUNK_BYTES each extended by 'overlap' bytes
+	private static MappedByteBuffer[] map(FileChannel chan, long start, long length, int overlap) throws IOException {
+		int chunks = (int) ((length + CHUNK_BYTES - 1) >>> CHUNK_SHIFT);
+		MappedByteBuffer[] maps = new MappedByteBuffer[chunks];
+		for (int c = 0; c < chunks; c++) {
+			long offset = (long) c << CHUNK_SHIFT;
+			maps[c] = chan.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(CHUNK_BYTES + overlap, length - offset));
+		}
+		return maps;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public String tag(int i) {
+		long record = (long) i * INDEX_RECORD_BYTES;
+		ByteBuffer chunk = index[(int) (record >>> CHUNK_SHIFT)];
+		int at = (int) (record & (CHUNK_BYTES - 1)) + 12;
+		char[] tag = new char[TAG_LENGTH];
+		for (int c = 0; c < TAG_LENGTH; c++)
+			tag[c] = (char) (chunk.get(at + c) & 0x7F);
+		return new String(tag);
+	}
+
+	public String body(int i) {
+		long record = (long) i * INDEX_RECORD_BYTES;
+		ByteBuffer chunk = index[(int) (record >>> CHUNK_SHIFT)];
+		int at = (int) (record & (CHUNK_BYTES - 1));
+		long offset = chunk.getLong(at);
+		int length = chunk.getInt(at + 8);
+		if (length == 0)
+			return "";
+
+		//Read the body through a view of the chunk, so that the shared mapping's position is never changed
+		ByteBuffer view = data[(int) (offset >>> CHUNK_SHIFT)].duplicate();
+		view.position((int) (offset & (CHUNK_BYTES - 1)));
+		byte[] bytes = new byte[length];
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int maxEntryBytes() {
+		return TAG_LENGTH + maxEntryBytes;
+	}
+
+	public void appendTag(int i, ReplyBuffer reply) {
+		long record = (long) i * INDEX_RECORD_BYTES;
+		reply.add(index[(int) (record >>> CHUNK_SHIFT)], (int) (record & (CHUNK_BYTES - 1)) + 12, TAG_LENGTH);
+	}
+
+	public void appendBody(int i, ReplyBuffer reply) {
+		long record = (long) i * INDEX_RECORD_BYTES;
+		ByteBuffer chunk = index[(int) (record >>> CHUNK_SHIFT)];
+		int at = (int) (record & (CHUNK_BYTES - 1));
+		long offset = chunk.getLong(at);
+		int length = chunk.getInt(at + 8);
+		if (length > 0)
+			reply.add(data[(int) (offset >>> CHUNK_SHIFT)], (int) (offset & (CHUNK_BYTES - 1)), length);
+	}
+
+	/* Builds a corpus file from a text file with one entry per line, tag first. Empty lines are skipped. The
+	 * text file is read twice, first to size the index and then to write it, so it can be larger than the heap.
+	 * Throws an IOException if an entry's tag is shorter than TAG_LENGTH or not ASCII.
+	 */
+	static void build(File text, File corpus) throws IOException {
+		int count = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(text), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty())
+					count++;
+			}
+		} finally {
+			in.close();
+		}
+
+		long dataOffset = HEADER_BYTES + (long) count * INDEX_RECORD_BYTES;
+		FileChannel chan = FileChannel.open(corpus.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		in = new BufferedReader(new InputStreamReader(new FileInputStream(text), StandardCharsets.UTF_8));
+		try {
+			ByteBuffer indexOut = ByteBuffer.allocate(1 << 16);
+			ByteBuffer dataOut = ByteBuffer.allocate(1 << 16);
+			long indexAt = HEADER_BYTES;	//Where the next index bytes go in the file
+			long dataAt = dataOffset;	//Where the next data bytes go in the file
+			long offset = 0;	//Offset of the next body in the data section
+			int maxEntryBytes = 0;
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				if (line.length() < TAG_LENGTH)
+					throw new IOException("Entry has no tag: " + line);
+				byte[] body = line.substring(TAG_LENGTH).getBytes(StandardCharsets.UTF_8);
+				maxEntryBytes = Math.max(maxEntryBytes, body.length);
+
+				if (indexOut.remaining() < INDEX_RECORD_BYTES)
+					indexAt += flush(chan, indexOut, indexAt);
+				indexOut.putLong(offset).putInt(body.length);
+				for (int c = 0; c < TAG_LENGTH; c++) {
+					char ch = line.charAt(c);
+					if (ch > 0x7F)
+						throw new IOException("Tag is not ASCII: " + line);
+					indexOut.put((byte) ch);
+				}
+				indexOut.put((byte) 0);
+
+				for (int written = 0; written < body.length; ) {
+					if (!dataOut.hasRemaining())
+						dataAt += flush(chan, dataOut, dataAt);
+					int n = Math.min(dataOut.remaining(), body.length - written);
+					dataOut.put(body, written, n);
+					written += n;
+				}
+				offset += body.length;
+			}
+			flush(chan, indexOut, indexAt);
+			flush(chan, dataOut, dataAt);
+
+			//The header is written last, so a file whose build was interrupted is never mistaken for a corpus
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.put(MAGIC).putInt(VERSION).putInt(count).putInt(maxEntryBytes).putInt(0).putLong(dataOffset);
+			flush(chan, header, 0);
+			chan.force(true);
+		} finally {
+			in.close();
+			chan.close();
+		}
+	}
+
+	//Writes the buffer's contents to the file at the given position, empties the buffer and returns the bytes written
+	private static int flush(FileChannel chan, ByteBuffer buf, long at) throws IOException {
+		buf.flip();
+		int n = buf.remaining();
+		while (buf.hasRemaining())
+			at += chan.write(buf, at);
+		buf.clear();
+		return n;
+	}
+
+	//Builds a corpus file from a text file, see build()
+	public static void main(String args[]) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: java MappedCorpus <text file> <corpus file>");
+			return;
+		}
+		long start = System.nanoTime();
+		build(new File(args[0]), new File(args[1]));
+		MappedCorpus corpus = new MappedCorpus(new File(args[1]));
+		System.out.println("Wrote " + corpus.size() + " entries to " + args[1] + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,220 @@
+/* This file contains the JokeServer's metrics, which the admin METRICS command dumps (see AdminWorker in
+ * JokeServer.java). They are always on, so recording them has to cost next to nothing on the request path:
+ *
+ *   counters   - LongAdders, which spread increments from different threads over separate cells instead of
+ *                making every request thread update the same memory
+ *   histograms - LatencyHistograms (see LatencyHistogram.java), striped by thread in the same way, for the time
+ *                spent in each stage of a request: 'state' (the client state store update), 'handle' (the whole
+ *                reply, including the state update), 'write' (writing the reply to the socket) and 'reject'
+ *                (turning a connection away with BUSY, see AdmissionControl.java)
+ *   gauges     - read only when dumped: open connections, active workers, the deadlines in the timer wheel (see
+ *                TimerWheel.java), the client state store's size, and the requests per second of each mode over
+ *                the last RATE_WINDOW_SECONDS, which a daemon thread samples once a second
+ *
+ * The dump is in the Prometheus text format, one "name{labels} value" line per value with a "# TYPE" line per
+ * metric, so it can be read by a script or scraped as it is. Counters and histograms count from the server's start.
+ */
+
+//Import the Java libraries for input/output and striped counters
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/* This class holds the metrics. Everything is static, as with the JokeServer's other shared state. */
+class Metrics {
+
+	static final int RATE_WINDOW_SECONDS = 10;	//The requests per second gauges average over this many seconds
+	static final String[] MODES = { "joke", "proverb" };	//Label of each ClientStateStore mode
+
+	static final LongAdder[] requests = { new LongAdder(), new LongAdder() };	//Requests served, by mode
+	static final LongAdder[] items = { new LongAdder(), new LongAdder() };	//Jokes/proverbs sent, more than requests with batches
+	static final LongAdder[] cycles = { new LongAdder(), new LongAdder() };	//Cycles completed, by mode
+	static final LongAdder accepted = new LongAdder();	//Client connections accepted
+	static final LongAdder open = new LongAdder();	//Client connections accepted and not closed yet
+	static final LongAdder moved = new LongAdder();	//Requests answered with MOVED, for clients owned by another cluster node
+	static final LongAdder handedOff = new LongAdder();	//Clients whose state was handed off to another cluster node
+	static final LongAdder udpDatagrams = new LongAdder();	//Datagrams received with udp=on (see UdpServer.java)
+	static final LongAdder udpReplayed = new LongAdder();	//Retransmitted requests answered from the replay cache
+	static final LongAdder udpDropped = new LongAdder();	//Datagrams dropped without an answer because they were not requests
+	static final LongAdder udpTooLarge = new LongAdder();	//Requests answered TOO_LARGE because the response could not fit
+	static final LongAdder[] timeouts = { new LongAdder(), new LongAdder(), new LongAdder() };	//Connections closed by their Deadline, by phase
+	static final LongAdder idleClosed = new LongAdder();	//Keep-alive connections closed because maxIdleConnections were idle
+
+	static final LatencyHistogram stateStage = new LatencyHistogram();
+	static final LatencyHistogram handleStage = new LatencyHistogram();
+	static final LatencyHistogram writeStage = new LatencyHistogram();
+	static final LatencyHistogram rejectStage = new LatencyHistogram();
+
+	static volatile WorkerExecutor workers = null;	//The blocking engine's client workers, or null with engine=nio
+
+	//The request counts of each mode at the end of each of the last RATE_WINDOW_SECONDS seconds, oldest first
+	private static final long[][] samples = new long[2][RATE_WINDOW_SECONDS + 1];
+	private static int sampled = 0;	//How many seconds have been sampled, up to RATE_WINDOW_SECONDS + 1
+
+	//Called when a client connection is closed, on any path
+	static void closed() {
+		open.decrement();
+	}
+
+	/* Starts the daemon thread that samples the request counters once a second for the requests per second
+	 * gauges. Without it the gauges are 0.
+	 */
+	static void startSampler() {
+		Thread sampler = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					synchronized (samples) {
+						for (int mode = 0; mode < 2; mode++) {
+							System.arraycopy(samples[mode], 1, samples[mode], 0, RATE_WINDOW_SECONDS);
+							samples[mode][RATE_WINDOW_SECONDS] = requests[mode].sum();
+						}
+						sampled = Math.min(sampled + 1, RATE_WINDOW_SECONDS + 1);
+					}
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}, "metrics-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	//Returns the requests per second of the mode over the sampled seconds, at most RATE_WINDOW_SECONDS
+	static double ratePerSecond(int mode) {
+		synchronized (samples) {
+			if (sampled < 2)
+				return 0;
+			int seconds = sampled - 1;
+			return (samples[mode][RATE_WINDOW_SECONDS] - samples[mode][RATE_WINDOW_SECONDS - seconds]) / (double) seconds;
+		}
+	}
+
+	//Writes every metric to the admin's connection in the Prometheus text format
+	static void dump(PrintStream out) {
+		type(out, "jokeserver_requests_total", "counter");
+		for (int mode = 0; mode < 2; mode++)
+			out.println("jokeserver_requests_total{mode=\"" + MODES[mode] + "\"} " + requests[mode].sum());
+		type(out, "jokeserver_requests_per_second", "gauge");
+		for (int mode = 0; mode < 2; mode++)
+			out.printf("jokeserver_requests_per_second{mode=\"%s\"} %.1f%n", MODES[mode], ratePerSecond(mode));
+		type(out, "jokeserver_items_total", "counter");
+		for (int mode = 0; mode < 2; mode++)
+			out.println("jokeserver_items_total{mode=\"" + MODES[mode] + "\"} " + items[mode].sum());
+		type(out, "jokeserver_cycles_completed_total", "counter");
+		for (int mode = 0; mode < 2; mode++)
+			out.println("jokeserver_cycles_completed_total{mode=\"" + MODES[mode] + "\"} " + cycles[mode].sum());
+
+		value(out, "jokeserver_connections_accepted_total", "counter", accepted.sum());
+		value(out, "jokeserver_connections_open", "gauge", open.sum());
+		WorkerExecutor executor = workers;
+		if (executor != null) {
+			value(out, "jokeserver_workers_active", "gauge", executor.active());
+			value(out, "jokeserver_workers_max", "gauge", executor.maxWorkers);
+			value(out, "jokeserver_dispatch_saturated_total", "counter", executor.saturated.sum());
+			value(out, "jokeserver_dispatch_rejected_total", "counter", executor.rejected.sum());
+			value(out, "jokeserver_connections_idle", "gauge", Worker.idleConnections.get());
+			value(out, "jokeserver_idle_closed_total", "counter", idleClosed.sum());
+		}
+		AdmissionControl admission = JokeServer.admission;
+		if (admission != null) {
+			value(out, "jokeserver_admission_limit", "gauge", admission.limit());
+			value(out, "jokeserver_admission_inflight", "gauge", admission.inflight());
+			value(out, "jokeserver_admission_rejected_total", "counter", admission.rejected.sum());
+		}
+		RateLimiter limiter = JokeServer.rateLimiter;
+		if (limiter != null)
+			value(out, "jokeserver_rate_limited_total", "counter", limiter.limited.sum());
+		type(out, "jokeserver_timeouts_total", "counter");
+		for (int phase = 0; phase < timeouts.length; phase++)
+			out.println("jokeserver_timeouts_total{phase=\"" + Deadline.PHASES[phase] + "\"} " + timeouts[phase].sum());
+		value(out, "jokeserver_deadlines", "gauge", TimerWheel.shared().size());
+		long[] listen = listenQueueOverflows();
+		if (listen != null) {
+			value(out, "jokeserver_host_listen_overflows_total", "counter", listen[0]);
+			value(out, "jokeserver_host_listen_drops_total", "counter", listen[1]);
+		}
+
+		Cluster cluster = Cluster.current();
+		if (cluster != null) {
+			value(out, "jokeserver_cluster_epoch", "gauge", cluster.epoch);
+			value(out, "jokeserver_cluster_members", "gauge", cluster.ring.members.length);
+			value(out, "jokeserver_moved_total", "counter", moved.sum());
+			value(out, "jokeserver_handoff_clients_total", "counter", handedOff.sum());
+		}
+
+		if (JokeServer.config.udp.equals("on")) {
+			value(out, "jokeserver_udp_datagrams_total", "counter", udpDatagrams.sum());
+			value(out, "jokeserver_udp_replayed_total", "counter", udpReplayed.sum());
+			value(out, "jokeserver_udp_dropped_total", "counter", udpDropped.sum());
+			value(out, "jokeserver_udp_too_large_total", "counter", udpTooLarge.sum());
+		}
+
+		ClientStateStore clients = JokeServer.clients;
+		value(out, "jokeserver_clients_resident", "gauge", clients.size());
+		value(out, "jokeserver_client_table_bytes", "gauge", clients.memoryBytes());
+		value(out, "jokeserver_clients_expired_total", "counter", clients.expired());
+		value(out, "jokeserver_clients_evicted_total", "counter", clients.evicted());
+
+		value(out, "jokeserver_log_lines_total", "counter", JokeServer.requestLog.written.sum());
+		value(out, "jokeserver_log_dropped_total", "counter", JokeServer.requestLog.dropped.sum());
+
+		type(out, "jokeserver_stage_seconds", "summary");
+		stage(out, "state", stateStage);
+		stage(out, "handle", handleStage);
+		stage(out, "write", writeStage);
+		if (admission != null)
+			stage(out, "reject", rejectStage);
+	}
+
+	private static void type(PrintStream out, String name, String type) {
+		out.println("# TYPE " + name + " " + type);
+	}
+
+	private static void value(PrintStream out, String name, String type, long value) {
+		type(out, name, type);
+		out.println(name + " " + value);
+	}
+
+	//Writes the quantiles, sum and count of a stage's histogram, in seconds
+	private static void stage(PrintStream out, String stage, LatencyHistogram histogram) {
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999, 1 };
+		for (double q : quantiles)
+			out.printf("jokeserver_stage_seconds{stage=\"%s\",quantile=\"%s\"} %.9f%n", stage, q == 1 ? "1" : String.valueOf(q),
+					histogram.percentile(q * 100) / 1e9);
+		out.printf("jokeserver_stage_seconds_sum{stage=\"%s\"} %.9f%n", stage, histogram.sum() / 1e9);
+		out.println("jokeserver_stage_seconds_count{stage=\"" + stage + "\"} " + histogram.count());
+	}
+
+	/* Returns the ListenOverflows and ListenDrops counters of the TCP stack, i.e. connections dropped because an
+	 * accept queue was full, or null where they cannot be read (anything but Linux). They count every listening
+	 * socket on the host, not only this server's, since the kernel does not count them per socket.
+	 */
+	static long[] listenQueueOverflows() {
+		File netstat = new File("/proc/net/netstat");
+		if (!netstat.canRead())
+			return null;
+		try (BufferedReader in = new BufferedReader(new FileReader(netstat))) {
+			String names;
+			while ((names = in.readLine()) != null) {
+				String values = in.readLine();
+				if (values == null || !names.startsWith("TcpExt:"))
+					continue;
+				String[] n = names.split(" ");
+				String[] v = values.split(" ");
+				long[] result = new long[2];
+				for (int i = 1; i < n.length && i < v.length; i++) {
+					if (n[i].equals("ListenOverflows"))
+						result[0] = Long.parseLong(v[i]);
+					else if (n[i].equals("ListenDrops"))
+						result[1] = Long.parseLong(v[i]);
+				}
+				return result;
+			}
+		} catch (IOException | NumberFormatException e) {
+			//Fall through, the counters are simply not reported
+		}
+		return null;
+	}
+}
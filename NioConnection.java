@@ -0,0 +1,175 @@
+/* This file contains the state of one connection of the JokeServer's non-blocking engine (see NioServer.java), and
+ * the parsing of the requests it receives, which the benchmarks (see HotPathBench.java) and the binary protocol (see
+ * BinaryProtocol.java) drive directly.
+ */
+
+//Import the Java libraries for input/output and byte buffers
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* This class holds the state of one NIO connection: the bytes of the request received so far, whether the
+ * client speaks the keep-alive protocol, and the reply still to be written. The request buffer is only
+ * allocated once a request arrives.
+ */
+class NioConnection {
+
+	private byte[] request = null;	//The bytes of the request received so far, or null if none
+	private int length = 0;	//How many bytes of 'request' are in use
+	private boolean started = false;	//True once the first line of the connection has been received
+	private String uuid = null;	//The UUID of a request whose name line has not been received yet
+	private int count = 1;	//The number of items asked for by the request being received
+	boolean keepAlive = false;	//True if the client sent JokeProtocol.KEEP_ALIVE as its first line, or speaks the binary protocol
+	private BinaryProtocol.Request binary = null;	//Each request of a client speaking the binary protocol, or null for text
+	ByteBuffer reply = null;	//The reply still to be written, or null if there is none
+	Deadline deadline;	//Closes the connection if the client is too slow, see Deadline.java
+	boolean timed = true;	//True while the deadline is timing the request being received, from its first bytes
+
+	/* Appends the bytes of the given buffer to the request. Returns false if the request would grow beyond
+	 * NioServer.MAX_REQUEST_BYTES.
+	 */
+	boolean append(ByteBuffer bytes) {
+		int n = bytes.remaining();
+		if (length + n > NioServer.MAX_REQUEST_BYTES)
+			return false;
+		if (request == null || length + n > request.length) {
+			byte[] grown = new byte[Math.min(NioServer.MAX_REQUEST_BYTES, Math.max(128, (length + n) * 2))];
+			if (request != null)
+				System.arraycopy(request, 0, grown, 0, length);
+			request = grown;
+		}
+		bytes.get(request, length, n);
+		length += n;
+		return true;
+	}
+
+	/* Arms the deadline once all replies have been written: a request that has begun must be completed within
+	 * requestTimeoutMillis of its first bytes, however slowly they trickle in, and a keep-alive connection may
+	 * wait keepAliveIdleMillis for its next request. A connection that has not sent its first request yet keeps
+	 * the deadline it was registered with.
+	 */
+	void awaitRequest() {
+		if (length > 0 || uuid != null || count != 1) {
+			if (!timed)
+				deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);
+			timed = true;
+		} else if (keepAlive) {
+			timed = false;
+			deadline.arm(Deadline.IDLE, JokeServer.config.keepAliveIdleMillis);
+		}
+	}
+
+	/* Handles the requests that have been received completely, adding their replies to the given reply buffer.
+	 * Returns false if no request is complete yet. A connection using the original protocol handles a single
+	 * request, and each keep-alive reply ends with the END_OF_RESPONSE line. A connection opening with
+	 * BinaryProtocol.MAGIC speaks the binary protocol instead (see BinaryProtocol.java). Throws an IOException if
+	 * the client is not speaking either protocol, so that the connection is closed.
+	 */
+	boolean process(ReplyBuffer reply) throws IOException {
+		boolean replied = false;
+		if (!started) {
+			if (length > 0 && (request[0] & 0xFF) == BinaryProtocol.MAGIC) {
+				if (length < 2)
+					return false;
+				int version = request[1] & 0xFF;
+				drop(2);
+				if (!BinaryProtocol.addHello(version, reply))
+					throw new IOException("Unsupported binary protocol version " + version);
+				started = true;
+				keepAlive = true;
+				binary = new BinaryProtocol.Request();
+				replied = true;
+			} else {
+				String first = takeLine();
+				if (first == null)
+					return false;
+				started = true;
+				if (JokeProtocol.KEEP_ALIVE.equals(first))
+					keepAlive = true;
+				else
+					uuid = first;
+			}
+		}
+
+		if (binary != null) {
+			//A malformed frame is answered, and the connection closed once the answer is written
+			while (keepAlive && takeFrame(binary)) {
+				BinaryProtocol.respond(binary, reply);
+				replied = true;
+				if (binary.type == BinaryProtocol.MALFORMED)
+					keepAlive = false;
+			}
+			return replied;
+		}
+
+		while (true) {
+			if (uuid == null && (uuid = takeLine()) == null)
+				break;
+			if (keepAlive && JokeProtocol.PING.equals(uuid)) {
+				//A health check, answered without touching any client state
+				reply.addText(ReplyBuffer.PONG);
+				reply.addText(ReplyBuffer.LINE_END);
+				replied = true;
+				uuid = null;
+				continue;
+			}
+			int batch = Worker.batchCount(uuid);
+			if (batch > 0) {
+				//The line was a batch line, the UUID comes next
+				count = batch;
+				uuid = null;
+				continue;
+			}
+			String name = takeLine();
+			if (name == null)
+				break;
+
+			Worker.handleClient(uuid, name, count, reply);
+			replied = true;
+			uuid = null;
+			count = 1;
+			if (!keepAlive)
+				break;
+			reply.addText(ReplyBuffer.LINE_END);	//The empty END_OF_RESPONSE line
+		}
+		return replied;
+	}
+
+	/* Parses the first binary request frame into 'into' and removes it from the request. Returns false, leaving the
+	 * request as it is, if no complete frame has been received. Throws an IOException if the frame's length is not
+	 * one of a request.
+	 */
+	boolean takeFrame(BinaryProtocol.Request into) throws IOException {
+		if (length < 4)
+			return false;
+		int frameLength = BinaryProtocol.getInt(request, 0);
+		if (frameLength < 1 || frameLength > BinaryProtocol.MAX_REQUEST_FRAME_BYTES)
+			throw new IOException("Bad binary request frame of " + frameLength + " bytes");
+		if (length < 4 + frameLength)
+			return false;
+		BinaryProtocol.parse(request, 4, frameLength, into);
+		drop(4 + frameLength);
+		return true;
+	}
+
+	/* Returns the first line of the request, without its line ending, and removes it from the request. If no
+	 * complete line has been received, returns null and leaves the request as it is.
+	 */
+	String takeLine() {
+		int end = 0;
+		while (end < length && request[end] != '\n')
+			end++;
+		if (end == length)
+			return null;
+		int stop = (end > 0 && request[end - 1] == '\r') ? end - 1 : end;
+		String line = new String(request, 0, stop);
+
+		drop(end + 1);	//Drop the line that was taken, keeping anything the client sent after it
+		return line;
+	}
+
+	//Removes the first n bytes of the request, keeping the rest
+	private void drop(int n) {
+		System.arraycopy(request, n, request, 0, length - n);
+		length -= n;
+	}
+}
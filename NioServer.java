@@ -0,0 +1,256 @@
+/* This file contains the non-blocking engine for the JokeServer's client port, which is used instead of the
+ * blocking ServerSocket / Worker engine when the server is started with engine=nio. One acceptor thread (or
+ * 'acceptors' of them, see Listeners.java) hands accepted connections to a small number of event loop threads, each of which multiplexes its connections with
+ * a Selector. A connection only holds a few small buffers, so tens of thousands of idle or slow clients cost
+ * memory but no threads. The request and reply are the same as with the blocking engine: the client sends its
+ * UUID and name as two lines, and receives the reply produced by Worker.handleClient(). Both the original and the
+ * keep-alive protocol (see JokeProtocol.java) are understood, and slow clients are held to the same deadlines
+ * (see TimerWheel.java).
+ */
+
+//Import the Java libraries for input/output, non-blocking networking and concurrent queues
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* This class represents the NIO engine. The run() method runs the accept loops, which take the place of the
+ * blocking accept loops in JokeServer.main().
+ */
+class NioServer implements Runnable {
+
+	static final int MAX_REQUEST_BYTES = 4096;	//Connections sending more than this without completing a request are closed
+
+	private final ServerSocketChannel[] servchans;	//The listening channels, bound to the client port (see Listeners.java)
+	private final int acceptors;	//The number of accept loops; acceptor i accepts from servchans[i % servchans.length]
+	private final EventLoop[] loops;	//The event loops that connections are handed to in turn
+	private final AtomicInteger next = new AtomicInteger();	//The event loop that gets the next connection, shared by the acceptors
+
+	/* Constructor, takes the listening channels opened by Listeners.open() and the number of acceptors, and starts
+	 * the given number of event loop threads.
+	 */
+	NioServer(ServerSocketChannel[] servchans, int acceptors, int eventLoops) throws IOException {
+		this.servchans = servchans;
+		this.acceptors = acceptors;
+
+		loops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; i++) {
+			loops[i] = new EventLoop();
+			Thread t = new Thread(loops[i], "nio-loop-" + (i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	//Runs the first accept loop on this thread, and any others on threads of their own
+	public void run() {
+		for (int i = 1; i < acceptors; i++) {
+			final ServerSocketChannel servchan = servchans[i % servchans.length];
+			new Thread(new Runnable() {
+				public void run() {
+					accept(servchan);
+				}
+			}, "nio-acceptor-" + (i + 1)).start();
+		}
+		accept(servchans[0]);
+	}
+
+	/* Waits for client connections, switches each one to non-blocking mode and hands it to the next event loop.
+	 * The accept itself is blocking, since this thread has nothing else to do.
+	 */
+	private void accept(ServerSocketChannel servchan) {
+		try {
+			while (JokeServer.controlSwitch) {
+				SocketChannel chan = servchan.accept();
+				Metrics.accepted.increment();
+				Metrics.open.increment();
+				try {
+					chan.configureBlocking(false);
+					chan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				} catch (IOException ioe) {
+					closeQuietly(chan);
+					Metrics.closed();
+					continue;
+				}
+				loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].register(chan);
+			}
+			servchan.close();
+		} catch (IOException ioe) {
+			System.out.println(ioe);
+		}
+	}
+
+	//Closes a channel, ignoring any error since there is nothing left to do with it
+	static void closeQuietly(Channel chan) {
+		try {
+			chan.close();
+		} catch (IOException ioe) {
+			//Nothing to do, the connection is gone either way
+		}
+	}
+}
+
+/* This class represents one event loop thread. It owns a Selector and every connection registered with it,
+ * so connection state is only ever touched by this thread.
+ */
+class EventLoop implements Runnable {
+
+	private final Selector selector;	//Tells the loop which of its connections can be read or written
+	private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();	//Connections handed over by the acceptor
+	private final Queue<SelectionKey> expired = new ConcurrentLinkedQueue<SelectionKey>();	//Connections whose deadline has passed
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(NioServer.MAX_REQUEST_BYTES);	//Shared by all connections of this loop
+	private final ReplyBuffer replyBuffer = new ReplyBuffer();	//Replies are assembled here, also shared by all connections of this loop
+
+	//Constructor, opens the selector
+	EventLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	//Called by the acceptor thread. Queues the connection and wakes the loop so it registers it promptly
+	void register(SocketChannel chan) {
+		pending.add(chan);
+		selector.wakeup();
+	}
+
+	/* Runs for the life of the program, registering new connections and then reading requests from, and
+	 * writing replies to, the connections the selector reports as ready.
+	 */
+	public void run() {
+		while (JokeServer.controlSwitch) {
+			try {
+				selector.select(1000);
+
+				SocketChannel chan;
+				while ((chan = pending.poll()) != null) {
+					try {
+						NioConnection conn = new NioConnection();
+						conn.deadline = new Deadline(closer(chan.register(selector, SelectionKey.OP_READ, conn)), Metrics.timeouts);
+						conn.deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);
+					} catch (ClosedChannelException cce) {
+						//The client already went away
+						Metrics.closed();
+					}
+				}
+
+				//Close the connections the timer wheel has found late, here where their state is kept
+				SelectionKey late;
+				while ((late = expired.poll()) != null)
+					close(late);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isReadable())
+							read(key);
+						else if (key.isWritable())
+							write(key);
+					} catch (IOException | CancelledKeyException e) {
+						close(key);
+					}
+				}
+			} catch (IOException ioe) {
+				System.out.println(JokeServer.serverTag + "Event loop error");
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/* Returns what the deadline of the key's connection closes: the timer wheel thread must not touch the
+	 * connection, so the key is handed to this loop, which closes it.
+	 */
+	private Closeable closer(final SelectionKey key) {
+		return new Closeable() {
+			public void close() {
+				expired.add(key);
+				selector.wakeup();
+			}
+		};
+	}
+
+	/* Reads whatever the client has sent into the shared read buffer and appends it to the connection's request.
+	 * Once a request is complete, the reply is produced and written.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		NioConnection conn = (NioConnection) key.attachment();
+
+		readBuffer.clear();
+		int n = chan.read(readBuffer);
+		if (n < 0) {
+			//The client closed its end, either between keep-alive requests or without completing a request
+			close(key);
+			return;
+		}
+		readBuffer.flip();
+		if (!conn.append(readBuffer)) {
+			//The request is larger than any valid request, so the client is not speaking our protocol
+			close(key);
+			return;
+		}
+		respond(key);
+		if (key.isValid() && conn.reply == null)
+			conn.awaitRequest();
+	}
+
+	/* Produces the reply to every complete request the connection has received and writes it straight from the
+	 * loop's reply buffer with one gathering write. Only the part the socket did not take is copied out and kept
+	 * with the connection, in which case the loop stops reading from the connection until it has been written.
+	 */
+	private void respond(SelectionKey key) throws IOException {
+		NioConnection conn = (NioConnection) key.attachment();
+		if (conn.process(replyBuffer)) {
+			conn.timed = false;	//Whatever is left of the request bytes belongs to the next request
+			long start = System.nanoTime();
+			conn.reply = replyBuffer.writeSome((SocketChannel) key.channel());
+			Metrics.writeStage.record(System.nanoTime() - start);
+			if (conn.reply != null) {
+				conn.deadline.arm(Deadline.WRITE, JokeServer.config.writeTimeoutMillis);
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else
+				written(key);
+		}
+	}
+
+	//Writes as much of the rest of the reply as the socket will take, waiting for the socket again if it is not all taken
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		NioConnection conn = (NioConnection) key.attachment();
+
+		chan.write(conn.reply);
+		if (!conn.reply.hasRemaining()) {
+			conn.reply = null;
+			written(key);
+			if (key.isValid() && conn.reply == null)
+				conn.awaitRequest();
+		}
+	}
+
+	/* Called once the whole reply has been written. The connection is closed as the blocking engine does, unless
+	 * it is a keep-alive connection, which goes back to reading.
+	 */
+	private void written(SelectionKey key) throws IOException {
+		NioConnection conn = (NioConnection) key.attachment();
+		if (conn.keepAlive) {
+			key.interestOps(SelectionKey.OP_READ);
+			respond(key);	//The client may already have sent its next request
+		} else {
+			close(key);
+		}
+	}
+
+	//Closes the connection of the key. Closing it again does nothing, so it is only counted as closed once
+	private static void close(SelectionKey key) {
+		key.cancel();
+		if (key.channel().isOpen()) {
+			NioServer.closeQuietly(key.channel());
+			((NioConnection) key.attachment()).deadline.cancel();
+			Metrics.closed();
+		}
+	}
+}
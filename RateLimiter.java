@@ -0,0 +1,70 @@
+/* This file contains the JokeServer's rate limiting. With rateLimit=N, each client (by UUID) may make N requests
+ * per second on average, and rateBurst at once, with every engine and the UDP mode. This is a token bucket per
+ * client, checked by Worker.handleClient() before the client's state is touched; a request without a token is
+ * answered BUSY, with the time until the next token (see AdmissionControl.addBusy()).
+ */
+
+//Import the Java library for atomic counters
+import java.util.concurrent.atomic.LongAdder;
+
+/* This class represents the per-client token buckets. A bucket holds up to 'burst' tokens and gains 'rate' tokens
+ * per second; a request takes one. Buckets live in a table of SLOTS slots addressed by a hash of the client's key, as
+ * in the UDP mode's ReplayCache: a client whose slot is taken by another client replaces it with a full bucket, so a
+ * limit is only approximate for two clients sharing a slot, which is rare with far fewer active clients than slots.
+ * Each slot is guarded by one of a few striped locks, held for a handful of instructions.
+ */
+class RateLimiter {
+
+	static final int SLOTS = 1 << 16;
+	private static final int STRIPES = 64;
+	private static final long NANOS_PER_TOKEN_UNIT = 1000;	//Tokens are counted in millionths, so rates need no fractions
+
+	private final long rate;	//Tokens per second
+	private final long burst;	//The most tokens a bucket holds, in millionths
+	private final long[] his = new long[SLOTS];	//The client of each slot
+	private final long[] los = new long[SLOTS];
+	private final long[] tokens = new long[SLOTS];	//Millionths of a token left in each slot
+	private final long[] refilled = new long[SLOTS];	//When each slot's tokens were last brought up to date, from nanoTime()
+	private final boolean[] used = new boolean[SLOTS];
+	private final Object[] locks = new Object[STRIPES];
+	final LongAdder limited = new LongAdder();	//Requests turned away
+
+	//Constructor, takes the tokens per second and the size of a bucket
+	RateLimiter(int rate, int burst) {
+		this.rate = rate;
+		this.burst = burst * 1_000_000L;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/* Takes a token from the client's bucket and returns 0, or returns the number of milliseconds until the
+	 * bucket has a token again (at least 1) if it is empty.
+	 */
+	long acquire(long hi, long lo) {
+		int slot = (int) ClientStateStore.hash(hi, lo) & (SLOTS - 1);
+		long now = System.nanoTime();
+		synchronized (locks[slot & (STRIPES - 1)]) {
+			if (!used[slot] || his[slot] != hi || los[slot] != lo) {
+				used[slot] = true;
+				his[slot] = hi;
+				los[slot] = lo;
+				tokens[slot] = burst;
+				refilled[slot] = now;
+			} else {
+				//rate tokens per second are rate millionths per microsecond
+				long gained = (now - refilled[slot]) / NANOS_PER_TOKEN_UNIT * rate;
+				if (gained > 0) {
+					tokens[slot] = Math.min(burst, tokens[slot] + gained);
+					refilled[slot] = now;
+				}
+			}
+			if (tokens[slot] >= 1_000_000L) {
+				tokens[slot] -= 1_000_000L;
+				return 0;
+			}
+			limited.increment();
+			long missing = 1_000_000L - tokens[slot];
+			return Math.max(1, (missing / rate + 999) / 1000);	//Microseconds until the token, rounded up to millis
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/* This file contains the receiving side of the replication of client state between JokeServers (see Replicator.java
+ * for the sending side and the protocol). A server started with replicationPort=PORT applies the updates arriving there.
+ */
+
+//Import the Java libraries for input/output and networking
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/* This class represents the receiving side. It accepts connections from the servers replicating to this one, and
+ * applies their updates to this server's store on one thread per connection.
+ */
+class ReplicaReceiver implements Runnable {
+
+	private final int port;	//The port to accept replication connections at
+	private final ClientStateStore store;	//The store the updates are applied to
+	private volatile long applied = 0;	//Updates applied, i.e. that were ahead of this server's cursors
+	private volatile long lagMillis = -1;	//How far behind the sender the last heartbeat arrived, or -1 before the first
+	private volatile long maxLagMillis = 0;	//The largest lag seen
+
+	//Constructor, takes the port to listen at and the store to apply updates to
+	ReplicaReceiver(int port, ClientStateStore store) {
+		this.port = port;
+		this.store = store;
+	}
+
+	//Runs for the life of the program, accepting replication connections
+	public void run() {
+		try {
+			ServerSocket servsock = new ServerSocket(port, 6);
+			System.out.println(JokeServer.serverTag + "Accepting replicated client state at port " + port + ".");
+			while (JokeServer.controlSwitch) {
+				final Socket sock = servsock.accept();
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						receive(sock);
+					}
+				}, "replica-receiver");
+				reader.setDaemon(true);
+				reader.start();
+			}
+			servsock.close();
+		} catch (IOException ioe) {
+			System.out.println(JokeServer.serverTag + "Replication port " + port + " failed: " + ioe.getMessage());
+		}
+	}
+
+	/* Applies the records arriving on the connection until the sender goes away or sends a corrupt record. A
+	 * cluster handoff ends its records with a HANDOFF_END record, which is answered with the number of client
+	 * records received on the connection (8 bytes), once they have been applied and, with stateDir, logged to disk;
+	 * only then does the sender drop the clients it handed off.
+	 */
+	private void receive(Socket sock) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+			byte[] record = new byte[UpdateBuffer.RECORD_BYTES];
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			long received = 0;	//Client records received on this connection, applied or not
+			while (true) {
+				in.readFully(record);
+				int mode = UpdateBuffer.mode(buf);
+				if (mode == ClientStateStore.JOKES || mode == ClientStateStore.PROVERBS) {
+					received++;
+					if (store.replicate(UpdateBuffer.hi(buf), UpdateBuffer.lo(buf), mode, UpdateBuffer.position(buf), UpdateBuffer.cycle(buf)))
+						applied++;
+				} else if (mode == Replicator.SERVER_MODE) {
+					//Like an admin SET, so only a change newer than this server's mode is applied
+					long epoch = UpdateBuffer.hi(buf);
+					ServerMode before = ServerMode.current();
+					ServerMode changed = ServerMode.set(UpdateBuffer.position(buf) == 1, epoch);
+					if (changed != before)
+						System.out.println(JokeServer.serverTag + "Server has been switched into " + changed.name()
+								+ " mode by replication (epoch " + epoch + ").");
+				} else if (mode == Replicator.HEARTBEAT) {
+					lagMillis = Math.max(0, System.currentTimeMillis() - UpdateBuffer.hi(buf));
+					maxLagMillis = Math.max(maxLagMillis, lagMillis);
+				} else if (mode == Replicator.HANDOFF_END) {
+					ClientStateLog log = JokeServer.stateLog;
+					if (log != null)
+						log.sync();
+					DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+					out.writeLong(received);
+					out.flush();
+				} else {
+					System.out.println(JokeServer.serverTag + "Corrupt replication record, closing the connection");
+					break;
+				}
+			}
+		} catch (IOException ioe) {
+			//The sender went away; it reconnects and sends its whole store again
+		}
+		try {
+			sock.close();
+		} catch (IOException ioe) {
+			//Nothing to do, the connection is gone either way
+		}
+	}
+
+	//Returns a line describing the state of replication, for the admin STATS command
+	String status() {
+		return "Replica: updates applied: " + applied + ", lag: " + (lagMillis < 0 ? "n/a" : lagMillis + " ms") + " (max " + maxLagMillis + " ms)";
+	}
+}
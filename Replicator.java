@@ -0,0 +1,153 @@
+/* This file contains the sending side of the replication of client state between JokeServers (see
+ * ReplicaReceiver.java for the receiving side), so that a client switching servers (with 's' in JokeClient) carries
+ * on with its cycle instead of starting a new one. A server started with replicateTo=HOST:PORT sends its cursor
+ * updates and mode changes to the server listening there, which was started with replicationPort=PORT. For
+ * replication both ways, each server is given both options:
+ *
+ * > java JokeServer replicationPort=4548 replicateTo=localhost:4547
+ * > java JokeServer secondary replicationPort=4547 replicateTo=localhost:4548
+ *
+ * Requests only copy their update into a buffer (see UpdateBuffer.java), which a sender thread ships every
+ * replicationMillis in a single gathering write, followed by a heartbeat carrying the send time. The lag of the
+ * replica is therefore bounded by that interval plus the time on the wire, and the replica reports it (admin STATS).
+ * On every (re)connect the sender first sends its whole store, so a replica that was down or just started catches up;
+ * while the replica is unreachable nothing is buffered.
+ *
+ * A replica only applies an update that is ahead of its own cursor for the client (see ClientStateStore.replicate()),
+ * so late, repeated or crossing updates never send a client items it has already seen. Since the order of a cycle
+ * only depends on the client, mode and cycle number (see CyclePermutation.java), a replica serving the same corpus
+ * continues a client's cycle exactly where the other server left it, up to the replication lag.
+ */
+
+//Import the Java libraries for input/output and networking
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/* This class represents the sending side. Updates received from another server are not sent on, so two servers
+ * replicating to each other do not echo updates back and forth.
+ */
+class Replicator implements ClientStateStore.Listener, Runnable {
+
+	static final int SERVER_MODE = -2;	//Record mode of a joke/proverb mode change: position is 1 for joke mode, 0 for proverb mode, hi the epoch
+	static final int HEARTBEAT = -3;	//Record mode of a heartbeat: hi is the time it was sent, in milliseconds since 1970
+	static final int HANDOFF_END = -4;	//Record mode ending a cluster handoff, which the receiver acknowledges (see Handoff.java)
+
+	private final String host;	//Where the replica is
+	private final int port;
+	private final ClientStateStore store;	//The store whose updates are sent
+	private final int intervalMillis;	//How often buffered updates are sent
+	private final UpdateBuffer pending = new UpdateBuffer();	//Updates not sent yet
+	private volatile boolean connected = false;	//True while the replica is connected
+	private volatile long sent = 0;	//Records sent since the server started, only written by the sender thread
+
+	//Constructor, takes the replica's address as HOST:PORT, the store and the send interval
+	Replicator(String address, ClientStateStore store, int intervalMillis) {
+		int colon = address.lastIndexOf(':');
+		this.host = address.substring(0, colon);
+		this.port = Integer.parseInt(address.substring(colon + 1));
+		this.store = store;
+		this.intervalMillis = intervalMillis;
+		store.addListener(this);
+	}
+
+	/* Called by a request after its update is made and the client's store segment unlocked. Only buffers the update,
+	 * in the calling thread's stripe of the buffer, while connected.
+	 */
+	public void updated(long hi, long lo, int mode, int position, int cycle, boolean replicated) {
+		if (!replicated && connected)
+			pending.append(hi, lo, mode, position, cycle);
+	}
+
+	//Called when the admin changes the joke/proverb mode. The record carries the mode's epoch, so its order is irrelevant
+	void modeChanged(ServerMode mode) {
+		if (connected)
+			pending.append(mode.epoch, 0, SERVER_MODE, mode.jokeMode ? 1 : 0, 0);
+	}
+
+	/* Runs for the life of the program on the sender thread: connects to the replica, sends the whole store, and
+	 * then sends the buffered updates every intervalMillis. If the replica goes away, reconnects once a second.
+	 */
+	public void run() {
+		boolean reported = false;	//True once a failure to reach the replica has been printed, to print it only once
+		while (JokeServer.controlSwitch) {
+			SocketChannel chan = null;
+			try {
+				chan = SocketChannel.open();
+				chan.socket().connect(new InetSocketAddress(host, port), 1000);
+				chan.socket().setTcpNoDelay(true);
+
+				//Buffer updates from now on, so the full copy sent next plus the updates after it miss nothing
+				connected = true;
+				pending.clear();
+				sendAll(chan);
+				System.out.println(JokeServer.serverTag + "Replicating client state to " + host + ":" + port);
+				reported = false;
+
+				ByteBuffer heartbeat = ByteBuffer.allocate(UpdateBuffer.RECORD_BYTES);
+				while (JokeServer.controlSwitch) {
+					Thread.sleep(intervalMillis);
+					ByteBuffer[] updates = pending.take();
+					sent += UpdateBuffer.remaining(updates) / UpdateBuffer.RECORD_BYTES;
+					heartbeat.clear();
+					UpdateBuffer.encode(heartbeat, System.currentTimeMillis(), 0, HEARTBEAT, 0, 0);
+					heartbeat.flip();
+					ByteBuffer[] batch = Arrays.copyOf(updates, updates.length + 1);
+					batch[updates.length] = heartbeat;
+					while (heartbeat.hasRemaining())
+						chan.write(batch);
+				}
+			} catch (IOException ioe) {
+				if (!reported)
+					System.out.println(JokeServer.serverTag + "Cannot replicate to " + host + ":" + port + ": " + ioe.getMessage());
+				reported = true;
+			} catch (InterruptedException ie) {
+				return;
+			} finally {
+				connected = false;
+				pending.clear();
+				if (chan != null)
+					NioServer.closeQuietly(chan);
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	//Sends the server's mode and the cursors of every client in the store
+	private void sendAll(final SocketChannel chan) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(UpdateBuffer.RECORD_BYTES * 4096);
+		ServerMode mode = ServerMode.current();
+		UpdateBuffer.encode(buf, mode.epoch, 0, SERVER_MODE, mode.jokeMode ? 1 : 0, 0);
+		store.forEachClient(new ClientStateStore.Visitor() {
+			public void visit(long hi, long lo, int[] state, int at, long lastUsedSeconds) throws IOException {
+				if (buf.remaining() < 2 * UpdateBuffer.RECORD_BYTES)
+					writeAll(chan, buf);
+				for (int mode = 0; mode < 2; mode++) {
+					int base = at + mode * ClientStateStore.INTS_PER_MODE;
+					UpdateBuffer.encode(buf, hi, lo, mode, state[base + ClientStateStore.POSITION], state[base + ClientStateStore.CYCLE]);
+					sent++;
+				}
+			}
+		});
+		writeAll(chan, buf);
+	}
+
+	//Writes the buffer's contents to the channel and empties the buffer
+	private static void writeAll(SocketChannel chan, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			chan.write(buf);
+		buf.clear();
+	}
+
+	//Returns a line describing the state of replication, for the admin STATS command
+	String status() {
+		return "Replicating to " + host + ":" + port + ": " + (connected ? "connected" : "not connected") + ", records sent: " + sent;
+	}
+}
@@ -0,0 +1,26 @@
+/* This file contains the reply that the futures of AsyncJokeClient and AsyncJokeAdmin complete with. */
+
+//Import the Java libraries for lists
+import java.util.Collections;
+import java.util.List;
+
+/* This class represents one reply: the lines the server sent, without the END_OF_RESPONSE line. */
+class Reply {
+
+	final List<String> lines;
+
+	//Constructor, takes the lines of the reply
+	Reply(List<String> lines) {
+		this.lines = Collections.unmodifiableList(lines);
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			if (text.length() > 0)
+				text.append(System.lineSeparator());
+			text.append(line);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,447 @@
+/* This file contains the buffer the JokeServer assembles its replies in. Every piece of a reply is already
+ * encoded before the request arrives: the server tag and the fixed texts are encoded once per buffer, each
+ * corpus entry's tag and body are encoded when the corpus is loaded (see Corpus.java), and only the client's
+ * name is encoded per request, into a reusable scratch array. A reply is a list of ByteBuffer views over those
+ * bytes, written to the socket with one gathering write, so no intermediate strings or byte arrays are created.
+ * The view objects themselves are kept and reused from one reply to the next.
+ *
+ * Each NIO event loop has its own ReplyBuffer, and each connection of the blocking engine borrows one from a pool
+ * for as long as it is open, see acquire(). Running this class on its own
+ * measures the bytes allocated per request on the reply path:
+ *
+ * > java ReplyBuffer [requests]
+ */
+
+//Import the Java libraries for input/output, buffers, channels and for measuring allocation
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* This class represents one reply being assembled. It is not safe to share between threads.
+ */
+class ReplyBuffer {
+
+	private static final ThreadLocal<ReplyBuffer> PER_THREAD = new ThreadLocal<ReplyBuffer>() {
+		protected ReplyBuffer initialValue() {
+			return new ReplyBuffer();
+		}
+	};
+	private static final ArrayBlockingQueue<ReplyBuffer> POOL = new ArrayBlockingQueue<ReplyBuffer>(1024);	//Buffers not in use, see acquire()
+
+	//The fixed texts of a reply. Each is a position in 'constants' and a length
+	static final int SERVER_TAG = 0, COLON = 1, LINE_END = 2, JOKE_CYCLE = 3, PROVERB_CYCLE = 4;
+	private static final int LOG_SENT = 5, LOG_JOKE = 6, LOG_PROVERB = 7, LOG_JOKE_CYCLE = 8, LOG_PROVERB_CYCLE = 9;
+	static final int PONG = 10, BUSY = 11;
+
+	private final ByteBuffer constants;	//The encoded fixed texts, never read through directly
+	private final int[] constantStart = new int[12];
+	private final int[] constantLength = new int[12];
+
+	private ByteBuffer[] slots = new ByteBuffer[16];	//The views making up the reply, in order
+	private int count = 0;	//How many slots are in use
+	private final IdentityHashMap<ByteBuffer, Views> views = new IdentityHashMap<ByteBuffer, Views>();	//Reusable views per source
+	private Views[] sources = new Views[8];	//The same Views as in 'views', so they can be reset without an iterator
+	private int sourceCount = 0;
+
+	private ByteBuffer names = ByteBuffer.allocate(256);	//The encoded names, and the reserved bytes, of the current reply
+	private int nameStart = 0;	//Position of the current client's name in 'names'
+	private int nameLength = 0;	//Length of the current client's name in 'names'
+
+	private byte[] log = new byte[256];	//Scratch space for console log lines
+	private byte[] copy = new byte[256];	//Scratch space for writing a reply to an OutputStream
+	private int unsampled = 0;	//"Sent" lines skipped since the last one logged, see RequestLog's sampling
+
+	int frame = -1;	//The slot of the binary response frame being assembled, or -1 for a text reply (see BinaryProtocol.java)
+
+	//Returns the ReplyBuffer of the calling thread, for threads that live as long as the program (e.g. an event loop)
+	static ReplyBuffer forThread() {
+		return PER_THREAD.get();
+	}
+
+	/* Returns a ReplyBuffer for one connection, to be given back with release() once it is closed. The buffers are
+	 * kept from one connection to the next, so that the fixed texts and the views are not created again for every
+	 * connection, which a per-thread buffer would not avoid when every connection gets a new thread
+	 * (executor=thread or virtual).
+	 */
+	static ReplyBuffer acquire() {
+		ReplyBuffer reply = POOL.poll();
+		return reply != null ? reply : new ReplyBuffer();
+	}
+
+	//Gives a buffer from acquire() back, keeping it for the next connection unless the pool is full
+	static void release(ReplyBuffer reply) {
+		reply.clear();
+		POOL.offer(reply);
+	}
+
+	//Constructor, encodes the fixed texts, including the server tag, which is known by the time requests arrive
+	ReplyBuffer() {
+		String tag = JokeServer.serverTag;
+		String[] texts = { tag, ": ", System.lineSeparator(), tag + "JOKE CYCLE COMPLETED" + System.lineSeparator(),
+				tag + "PROVERB CYCLE COMPLETED" + System.lineSeparator(), tag + "Sent ", " Joke ", " Proverb ",
+				tag + "JOKE CYCLE COMPLETED FOR ", tag + "PROVERB CYCLE COMPLETED FOR ", JokeProtocol.PONG + System.lineSeparator(),
+				JokeProtocol.BUSY };
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < texts.length; i++) {
+			byte[] encoded = texts[i].getBytes(StandardCharsets.UTF_8);
+			constantStart[i] = bytes.size();
+			constantLength[i] = encoded.length;
+			bytes.write(encoded, 0, encoded.length);
+		}
+		constants = ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	//Empties the buffer so that a new reply can be assembled. The views are kept for reuse
+	void clear() {
+		for (int i = 0; i < count; i++)
+			slots[i] = null;
+		count = 0;
+		for (int i = 0; i < sourceCount; i++)
+			sources[i].used = 0;
+		names.clear();
+
+		//Forget the views of old sources now and then, so the buffers of reloaded corpora can be collected
+		if (sourceCount > 32) {
+			views.clear();
+			Arrays.fill(sources, 0, sourceCount, null);
+			sourceCount = 0;
+		}
+		nameLength = 0;
+		frame = -1;
+	}
+
+	//Returns true if nothing has been added since the last clear()
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/* Adds 'length' bytes of 'source' from 'position' on to the reply. The source's own position and limit are
+	 * never changed, so it may be shared by any number of threads.
+	 */
+	void add(ByteBuffer source, int position, int length) {
+		Views v = views.get(source);
+		if (v == null) {
+			v = new Views(source);
+			views.put(source, v);
+			if (sourceCount == sources.length) {
+				Views[] grown = new Views[sourceCount * 2];
+				System.arraycopy(sources, 0, grown, 0, sourceCount);
+				sources = grown;
+			}
+			sources[sourceCount++] = v;
+		}
+		ByteBuffer view = v.next();
+		view.limit(position + length).position(position);
+		if (count == slots.length) {
+			ByteBuffer[] grown = new ByteBuffer[count * 2];
+			System.arraycopy(slots, 0, grown, 0, count);
+			slots = grown;
+		}
+		slots[count++] = view;
+	}
+
+	//Adds one of the fixed texts (SERVER_TAG, COLON, ...) to the reply
+	void addText(int text) {
+		add(constants, constantStart[text], constantLength[text]);
+	}
+
+	//Adds the decimal digits of a number that is zero or more to the reply
+	void addNumber(long value) {
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10)
+			digits++;
+		int slot = reserve(digits);
+		for (int i = digits - 1; i >= 0; i--) {
+			put(slot, i, '0' + value % 10, 1);
+			value /= 10;
+		}
+	}
+
+	/* Encodes the client's name for this reply. Names are almost always ASCII, which is copied directly;
+	 * anything else is encoded as UTF-8.
+	 */
+	void setName(String name) {
+		int start = names.position();
+		int length = name.length();
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++)
+			ascii = name.charAt(i) < 0x80;
+
+		if (ascii) {
+			ensureNameSpace(length);
+			for (int i = 0; i < length; i++)
+				names.put((byte) name.charAt(i));
+		} else {
+			byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+			ensureNameSpace(encoded.length);
+			names.put(encoded);
+		}
+		nameStart = start;
+		nameLength = names.position() - start;
+	}
+
+	//Adds the client's name, as given to setName(), to the reply
+	void addName() {
+		add(names, nameStart, nameLength);
+	}
+
+	//Makes room for 'length' more name bytes. A larger array is only needed for unusually long names
+	private void ensureNameSpace(int length) {
+		if (names.remaining() < length) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(names.capacity() * 2, names.position() + length));
+			names.flip();
+			grown.put(names);
+			names = grown;	//Views already taken still point at the old array, which stays valid
+		}
+	}
+
+	/* Reserves 'length' bytes at the end of the reply, to be filled in with put() once their value is known, and
+	 * returns their slot. The binary protocol's length prefixes are only known once what follows them is added.
+	 */
+	int reserve(int length) {
+		ensureNameSpace(length);
+		int start = names.position();
+		names.position(start + length);
+		add(names, start, length);
+		return count - 1;
+	}
+
+	/* Writes the lowest 'bytes' bytes of the value, most significant first, at 'offset' in a slot returned by
+	 * reserve(). The bytes are written through the slot's own view, which still points at them if the scratch
+	 * array has been replaced by a larger one since.
+	 */
+	void put(int slot, int offset, long value, int bytes) {
+		ByteBuffer view = slots[slot];
+		for (int i = bytes - 1; i >= 0; i--) {
+			view.put(view.position() + offset + i, (byte) value);
+			value >>>= 8;
+		}
+	}
+
+	//Returns the number of bytes in the reply from the given slot on
+	int bytesFrom(int slot) {
+		int n = 0;
+		for (int i = slot; i < count; i++)
+			n += slots[i].remaining();
+		return n;
+	}
+
+	//Returns the number of slots in the reply, so that a slot can later be referred to by its number
+	int size() {
+		return count;
+	}
+
+	/* Writes the whole reply to a blocking channel with gathering writes, then clears the buffer. */
+	void writeTo(GatheringByteChannel chan) throws IOException {
+		int first = 0;
+		while (first < count) {
+			chan.write(slots, first, count - first);
+			while (first < count && !slots[first].hasRemaining())
+				first++;
+		}
+		clear();
+	}
+
+	/* Writes as much of the reply as a non-blocking channel takes in one gathering write. Returns null if all of it
+	 * was written, otherwise a new buffer holding the rest, which the caller writes later. Either way the
+	 * ReplyBuffer is cleared.
+	 */
+	ByteBuffer writeSome(GatheringByteChannel chan) throws IOException {
+		chan.write(slots, 0, count);
+		int left = 0;
+		for (int i = 0; i < count; i++)
+			left += slots[i].remaining();
+
+		ByteBuffer rest = null;
+		if (left > 0) {
+			rest = ByteBuffer.allocate(left);
+			for (int i = 0; i < count; i++)
+				rest.put(slots[i]);
+			rest.flip();
+		}
+		clear();
+		return rest;
+	}
+
+	//Copies the whole reply into the buffer, which must have room for it, then clears the reply
+	void writeTo(ByteBuffer out) {
+		for (int i = 0; i < count; i++)
+			out.put(slots[i]);
+		clear();
+	}
+
+	//Copies the whole reply to an output stream with a single write, through a scratch array kept for the next reply, then clears the buffer
+	void writeTo(OutputStream out) throws IOException {
+		int length = bytesFrom(0);
+		if (copy.length < length)
+			copy = new byte[Math.max(length, copy.length * 2)];
+		int at = 0;
+		for (int i = 0; i < count; i++) {
+			int n = slots[i].remaining();
+			slots[i].get(copy, at, n);
+			at += n;
+		}
+		out.write(copy, 0, at);
+		clear();
+	}
+
+	/* Logs "Sent <name> Joke <tag>" (or Proverb) to the console (see RequestLog.java), taking the tag from the given
+	 * slot of the reply, without creating any strings. Does nothing unless the request log wants this line.
+	 */
+	void logSent(boolean joke, int tagSlot) {
+		RequestLog requestLog = JokeServer.requestLog;
+		if (!requestLog.logSent || ++unsampled < requestLog.sampling)
+			return;
+		unsampled = 0;
+		int n = 0;
+		n = copyText(LOG_SENT, n);
+		n = copy(names, nameStart, nameLength, n);
+		n = copyText(joke ? LOG_JOKE : LOG_PROVERB, n);
+		ByteBuffer tag = slots[tagSlot];
+		n = copy(tag, tag.position(), tag.remaining(), n);
+		n = copyText(LINE_END, n);
+		requestLog.append(log, 0, n);
+	}
+
+	//Logs "JOKE CYCLE COMPLETED FOR <name>" (or PROVERB) to the console, without creating any strings
+	void logCycleCompleted(boolean joke) {
+		RequestLog requestLog = JokeServer.requestLog;
+		if (!requestLog.logCycles)
+			return;
+		int n = 0;
+		n = copyText(joke ? LOG_JOKE_CYCLE : LOG_PROVERB_CYCLE, n);
+		n = copy(names, nameStart, nameLength, n);
+		n = copyText(LINE_END, n);
+		requestLog.append(log, 0, n);
+	}
+
+	//Copies a fixed text into the log scratch array at 'at', returning the position after it
+	private int copyText(int text, int at) {
+		return copy(constants, constantStart[text], constantLength[text], at);
+	}
+
+	//Copies bytes of 'source' into the log scratch array at 'at' (growing it if needed), returning the position after them
+	private int copy(ByteBuffer source, int position, int length, int at) {
+		if (at + length > log.length) {
+			byte[] grown = new byte[Math.max(log.length * 2, at + length)];
+			System.arraycopy(log, 0, grown, 0, at);
+			log = grown;
+		}
+		for (int i = 0; i < length; i++)
+			log[at + i] = source.get(position + i);
+		return at + length;
+	}
+
+	/* This class holds the views created for one source buffer. The first 'used' of them belong to the reply
+	 * being assembled; the others are free to be reused.
+	 */
+	private static final class Views {
+		final ByteBuffer source;
+		ByteBuffer[] list = new ByteBuffer[4];
+		int created = 0;
+		int used = 0;
+
+		Views(ByteBuffer source) {
+			this.source = source;
+		}
+
+		//Returns a free view of the source, creating one only if all existing views are in use
+		ByteBuffer next() {
+			if (used == created) {
+				if (created == list.length) {
+					ByteBuffer[] grown = new ByteBuffer[created * 2];
+					System.arraycopy(list, 0, grown, 0, created);
+					list = grown;
+				}
+				list[created++] = source.duplicate();
+			}
+			ByteBuffer view = list[used++];
+			view.clear();
+			return view;
+		}
+	}
+
+	/* Measures the bytes allocated per request on the reply path: handles the given number of requests (half jokes,
+	 * half proverbs, with console logging switched off) for a few clients, writing the replies to a channel that
+	 * discards them, and reports the bytes the thread allocated divided by the number of requests.
+	 */
+	public static void main(String args[]) throws IOException {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String[] uuids = new String[16];
+		for (int i = 0; i < uuids.length; i++)
+			uuids[i] = UUID.randomUUID().toString();
+
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		GatheringByteChannel discard = new NullChannel();
+		ReplyBuffer reply = forThread();
+
+		//Warm up first, so that the views and the JIT compiled code are in place before measuring
+		ServerMode[] modes = { new ServerMode(true, 0), new ServerMode(false, 0) };
+		for (int i = 0; i < 200000; i++) {
+			ServerMode.force(modes[i & 1]);
+			Worker.handleClient(uuids[i & 15], "Warmup", 1, reply);
+			reply.writeTo(discard);
+		}
+
+		long before = allocatedBytes();
+		for (int i = 0; i < requests; i++) {
+			ServerMode.force(modes[i & 1]);
+			Worker.handleClient(uuids[i & 15], "Client", 1, reply);
+			reply.writeTo(discard);
+		}
+		long after = allocatedBytes();
+		System.setOut(console);
+		System.out.println("Requests: " + requests);
+		System.out.println("Bytes allocated per request: " + (after - before) / (double) requests);
+	}
+
+	//Returns the bytes allocated so far by the calling thread, or -1 if the JVM cannot tell
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	//A channel that accepts and discards everything written to it
+	static final class NullChannel implements GatheringByteChannel {
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long n = 0;
+			for (int i = offset; i < offset + length; i++) {
+				n += srcs[i].remaining();
+				srcs[i].position(srcs[i].limit());
+			}
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/* This file contains the JokeServer's request log: the "Sent <name> Joke <tag>" and "JOKE CYCLE COMPLETED FOR <name>"
+ * lines printed for every request. Printing them straight to System.out made every worker thread take the
+ * PrintStream's lock and wait for the console, so the console set the server's throughput. Instead, request threads
+ * copy their line into a ring buffer without taking any lock, and a single background thread writes whatever has
+ * accumulated to System.out in one write, so the request path never waits on I/O.
+ *
+ * The ring is an array of fixed-size slots. A request thread claims the next slot by moving 'tail' forward with a
+ * compare-and-set, copies its line into the slot, and then publishes it by setting the slot's length. The writer
+ * takes published slots in order from 'head', copies them into its batch, and frees them by clearing the length and
+ * moving 'head' forward. Lines longer than a slot are cut short.
+ *
+ * Options (see ServerConfig.java):
+ *   requestLog  - all (the original lines), cycles (only cycle completions) or off
+ *   logSampling - only every Nth "Sent" line is logged; cycle completions are always logged
+ *   logBufferKB - the size of the ring
+ *   logWhenFull - drop (the line is counted as dropped, see the admin METRICS command) or block (the request thread
+ *                 waits for the writer to make room, so nothing is lost but the console can slow requests down again)
+ */
+
+//Import the Java libraries for the console and lock-free counters
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* This class represents the ring and its writer thread. Any number of threads may append. */
+class RequestLog implements Runnable {
+
+	static final int SLOT_BYTES = 128;	//The longest line kept whole, including the line ending
+	static final int BATCH_BYTES = 64 * 1024;	//The most the writer writes at once
+	static final long IDLE_PARK_NANOS = 1000000;	//How long the writer sleeps when the ring is empty
+
+	final boolean logSent;	//True if "Sent" lines are logged
+	final boolean logCycles;	//True if cycle completion lines are logged
+	final int sampling;	//Only every sampling'th "Sent" line is logged, counted per thread (see ReplyBuffer.logSent())
+	private final boolean block;	//True to wait for room when the ring is full, false to drop the line
+
+	private final byte[] ring;	//The slots, one after the other
+	private final AtomicIntegerArray lengths;	//The length of the line in each slot, or 0 while the slot is not published
+	private final int mask;	//Slots - 1, the number of slots being a power of two
+	private final AtomicLong tail = new AtomicLong();	//The next slot to claim, counting from the start
+	private volatile long head = 0;	//The next slot to write out; only the writer thread moves it
+	private volatile boolean running = true;
+	private final Thread writer;	//The only thread that takes lines out of the ring, or null for an "off" log
+
+	final LongAdder written = new LongAdder();	//Lines written to the console
+	final LongAdder dropped = new LongAdder();	//Lines dropped because the ring was full
+
+	/* Constructor, takes the options described above, and starts the writer thread. The ring gets the largest power
+	 * of two number of slots that fits in bufferKB, at least 16. An "off" log is never appended to, so it starts no
+	 * thread, which makes it cheap to create, e.g. as the default of programs that never set the options.
+	 */
+	RequestLog(String level, int sampling, int bufferKB, String whenFull) {
+		this.logSent = level.equals("all");
+		this.logCycles = !level.equals("off");
+		this.sampling = sampling;
+		this.block = whenFull.equals("block");
+
+		int slots = 16;
+		while ((long) slots * 2 * SLOT_BYTES <= bufferKB * 1024L && slots < (1 << 24))
+			slots *= 2;
+		ring = new byte[slots * SLOT_BYTES];
+		lengths = new AtomicIntegerArray(slots);
+		mask = slots - 1;
+
+		if (!logSent && !logCycles) {
+			writer = null;
+			return;
+		}
+		writer = new Thread(this, "request-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/* Appends a line, which must end with a line ending. Never waits on I/O: if the ring is full the line is dropped,
+	 * or with logWhenFull=block, the calling thread waits until the writer has taken some lines out of the ring.
+	 */
+	void append(byte[] line, int offset, int length) {
+		long slot;
+		while (true) {
+			slot = tail.get();
+			if (slot - head >= lengths.length()) {
+				if (!block || !running) {
+					dropped.increment();
+					return;
+				}
+				LockSupport.parkNanos(10000);
+				continue;
+			}
+			if (tail.compareAndSet(slot, slot + 1))
+				break;
+		}
+
+		int at = (int) (slot & mask);
+		int n = Math.min(length, SLOT_BYTES);
+		System.arraycopy(line, offset, ring, at * SLOT_BYTES, n);
+		if (n < length)
+			ring[at * SLOT_BYTES + n - 1] = '\n';	//Cut short, but still a line of its own
+		lengths.set(at, n);	//Publishes the line to the writer
+	}
+
+	/* Runs on the writer thread until stop(): copies the published lines into a batch in order and writes the batch
+	 * to System.out with a single write, sleeping briefly whenever the ring is empty.
+	 */
+	public void run() {
+		byte[] batch = new byte[BATCH_BYTES];
+		while (running) {
+			if (drain(batch) == 0)
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+		drain(batch);	//What was appended before stop()
+	}
+
+	/* Writes out every line published so far, in batches, and returns the number of lines written. Stops at a slot
+	 * that has been claimed but not published yet; its line goes out with the next call.
+	 */
+	private int drain(byte[] batch) {
+		int lines = 0;
+		while (true) {
+			long next = head;
+			int n = 0;
+			while (next < tail.get()) {
+				int at = (int) (next & mask);
+				int length = lengths.get(at);
+				if (length == 0 || n + length > batch.length)
+					break;
+				System.arraycopy(ring, at * SLOT_BYTES, batch, n, length);
+				n += length;
+				lengths.set(at, 0);
+				next++;
+			}
+			if (next == head)
+				return lines;
+			lines += (int) (next - head);
+			written.add(next - head);
+			head = next;	//Frees the slots for request threads
+
+			PrintStream out = System.out;
+			out.write(batch, 0, n);
+			out.flush();
+		}
+	}
+
+	/* Stops the writer thread after it has written out what is in the ring, e.g. when the server shuts down. Request
+	 * threads appending after that drop their lines instead of waiting.
+	 */
+	void stop() {
+		running = false;
+		if (writer == null)
+			return;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(1000);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
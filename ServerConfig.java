@@ -0,0 +1,264 @@
+/* This file contains the class which holds the JokeServer's startup options. The options are parsed from the
+ * command line, where the original "secondary" argument may be followed (or replaced) by any number of
+ * key=value pairs, for example:
+ *
+ * > java JokeServer secondary executor=virtual maxWorkers=5000 saturation=reject
+ */
+
+/* This class represents the options the server was started with. Every option has a default, and running
+ * "java JokeServer" with no arguments serves the original protocol at the original ports, except that:
+ *   - at most maxWorkers (256) requests are worked on at once, and further connections wait to be accepted
+ *   - an admin connection is only taken as the original TOGGLE once it has sent no command for
+ *     adminCommandWaitMillis (250 ms), so the original JokeClientAdmin's toggle is answered that much later
+ *   - the client state may use at most a quarter of the heap, beyond which the least recently used clients are
+ *     evicted
+ *   - the per-request console lines are printed by a thread of their own, and dropped while logBufferKB of them
+ *     are waiting
+ *   - a client taking more than requestTimeoutMillis (10 s) to send its request, or writeTimeoutMillis (10 s) to
+ *     read its reply, is disconnected
+ */
+class ServerConfig {
+
+	boolean secondary = false;	//True if the server was launched with the "secondary" argument
+
+	/* The ports the server listens at. Zero means the original ones: 4545 and 5050, or 4546 and 5051 for the
+	 * secondary server. Giving them lets any number of servers run on one machine, e.g. the nodes of a cluster.
+	 */
+	int port = 0;	//The port clients connect to
+	int adminPort = 0;	//The port JokeClientAdmin connects to
+
+	int acceptors = 1;	//Threads accepting client connections, each with its own SO_REUSEPORT socket where supported (see Listeners.java)
+	int backlog = 6;	//The length of each listening socket's queue of connections not accepted yet
+	String udp = "off";	//"on" to also answer single datagram requests at the client port's number (see UdpServer.java)
+	int udpReplaySlots = 65536;	//How many recent UDP responses are kept to answer retransmitted requests with
+
+	/* How client/admin requests are executed:
+	 *   thread  - a new platform thread for every request (the original behaviour, but capped)
+	 *   pool    - a fixed pool of maxWorkers platform threads
+	 *   virtual - one virtual thread per request (falls back to 'pool' on JVMs without virtual threads)
+	 */
+	String executor = "pool";
+	int maxWorkers = 256;	//Maximum number of client requests being worked on at the same time
+	int maxAdminWorkers = 8;	//Maximum number of admin requests being worked on at the same time
+
+	/* What the accept loop does when maxWorkers requests are already being worked on:
+	 *   block  - wait for a worker to free up (new connections wait in the listen backlog)
+	 *   reject - close the new connection immediately
+	 *   caller - serve the connection's first request on the accepting thread itself, then close it
+	 */
+	String saturation = "block";
+
+	/* How many keep-alive connections of the blocking engine may wait for their next request at the same time, each
+	 * holding a worker while it waits. A connection answered while that many are waiting is closed instead (pooled
+	 * clients connect again), so idle clients cannot take all maxWorkers workers. Zero means half of maxWorkers.
+	 */
+	int maxIdleConnections = 0;
+
+	/* Admission control and rate limiting (see AdmissionControl.java and RateLimiter.java). A request turned away
+	 * by either is answered with a BUSY line naming how long to wait before trying again, instead of waiting for a
+	 * worker.
+	 */
+	String admission = "off";	//"adaptive" to cap the blocking engine's concurrent requests at a limit that follows their latency; engine=nio is not limited
+	int retryAfterMillis = 100;	//How long a client turned away by the concurrency limit is told to wait
+	int rateLimit = 0;	//Requests per second each client may make on average, or 0 for no limit
+	int rateBurst = 0;	//Requests a client may make at once after being idle, or 0 for rateLimit of them
+
+	/* Which engine serves the client port:
+	 *   blocking - a ServerSocket whose accepted sockets are handed to Workers (see JokeServer.java)
+	 *   nio      - a few event loop threads multiplexing all connections with Selectors (see NioServer.java)
+	 */
+	String engine = "blocking";
+	int eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));	//Event loop threads for engine=nio
+
+	/* Deadlines of client connections (see TimerWheel.java). A connection missing one is closed, so a client that
+	 * connects and sends nothing, or trickles its request or reads its reply a byte at a time, cannot hold on to it.
+	 */
+	int keepAliveIdleMillis = 30000;	//How long a keep-alive connection may wait for its next request before it is closed
+	int requestTimeoutMillis = 10000;	//How long a request may take to arrive, from the connection or from its first byte
+	int writeTimeoutMillis = 10000;	//How long the client may take to read a reply
+
+	int maxBatch = 1000;	//The largest number of items a single batch request is answered with
+
+	String jokesFile = null;	//A corpus file (see MappedCorpus.java) to serve jokes from, or null for the built-in jokes
+	String proverbsFile = null;	//A corpus file to serve proverbs from, or null for the built-in proverbs
+
+	String reloadPolicy = "keep";	//"keep" or "restart", what happens to client cycles on an admin RELOAD (see CorpusSnapshot.java)
+	int adminCommandWaitMillis = 250;	//How long to wait for an admin command before treating the request as TOGGLE
+
+	/* How much client state is kept (see ClientStateStore.java). Zero means no limit. By default idle clients are
+	 * kept, but the store may use at most a quarter of the heap, after which the least recently used clients are evicted.
+	 */
+	int clientTtlSeconds = 0;	//How long a client may go without a request before its state is removed
+	int maxClients = 0;	//The most clients whose state is kept
+	int clientMemoryMB = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));	//The most memory the state may use
+
+	String stateDir = null;	//A directory to persist client state in (see ClientStateLog.java), or null to keep it in memory only
+	int stateSyncMillis = 100;	//How often logged client state updates are written and forced to disk
+	int stateSnapshotSeconds = 300;	//How often the client state log is compacted into a snapshot
+
+	String replicateTo = null;	//HOST:PORT of a server to replicate client state to (see Replicator.java), or null
+	int replicationPort = 0;	//The port to accept replicated client state at, or 0 to not accept it
+	int replicationMillis = 20;	//How often updates are sent to the replica, which bounds its lag
+
+	String cluster = null;	//The cluster's members as HOST:PORT[/STATEPORT],... (see Cluster.java), or null to serve every client
+	String node = null;	//This server's HOST:PORT in the cluster, or null to find it by its client port
+	int virtualNodes = HashRing.DEFAULT_VIRTUAL_NODES;	//Points per member on the cluster's hash ring
+
+	/* The per-request console lines (see RequestLog.java): which are logged, how many of the "Sent" lines, how much
+	 * may wait for the console, and whether a line is dropped or the request waits when that is full.
+	 */
+	String requestLog = "all";	//"all", "cycles" or "off"
+	int logSampling = 1;	//Only every Nth "Sent" line is logged
+	int logBufferKB = 1024;	//The size of the ring the lines wait in
+	String logWhenFull = "drop";	//"drop" or "block"
+
+	/* Parses the command line arguments into a new ServerConfig. Throws an IllegalArgumentException
+	 * naming the offending argument if an argument is not recognized or has an invalid value.
+	 */
+	static ServerConfig parse(String args[]) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			if (arg.equals("secondary")) {
+				config.secondary = true;
+				continue;
+			}
+
+			//Every other argument must be of the form key=value
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+
+			if (key.equals("port")) {
+				config.port = positiveInt(key, value);
+			} else if (key.equals("adminPort")) {
+				config.adminPort = positiveInt(key, value);
+			} else if (key.equals("acceptors")) {
+				config.acceptors = positiveInt(key, value);
+			} else if (key.equals("backlog")) {
+				config.backlog = positiveInt(key, value);
+			} else if (key.equals("udp")) {
+				config.udp = oneOf(key, value, "on", "off");
+			} else if (key.equals("udpReplaySlots")) {
+				config.udpReplaySlots = positiveInt(key, value);
+			} else if (key.equals("executor")) {
+				config.executor = oneOf(key, value, "thread", "pool", "virtual");
+			} else if (key.equals("maxWorkers")) {
+				config.maxWorkers = positiveInt(key, value);
+			} else if (key.equals("maxIdleConnections")) {
+				config.maxIdleConnections = nonNegativeInt(key, value);
+			} else if (key.equals("maxAdminWorkers")) {
+				config.maxAdminWorkers = positiveInt(key, value);
+			} else if (key.equals("engine")) {
+				config.engine = oneOf(key, value, "blocking", "nio");
+			} else if (key.equals("eventLoops")) {
+				config.eventLoops = positiveInt(key, value);
+			} else if (key.equals("keepAliveIdleMillis")) {
+				config.keepAliveIdleMillis = positiveInt(key, value);
+			} else if (key.equals("maxBatch")) {
+				config.maxBatch = positiveInt(key, value);
+			} else if (key.equals("jokes")) {
+				config.jokesFile = value;
+			} else if (key.equals("proverbs")) {
+				config.proverbsFile = value;
+			} else if (key.equals("reloadPolicy")) {
+				config.reloadPolicy = oneOf(key, value, "keep", "restart");
+			} else if (key.equals("adminCommandWaitMillis")) {
+				config.adminCommandWaitMillis = positiveInt(key, value);
+			} else if (key.equals("clientTtlSeconds")) {
+				config.clientTtlSeconds = nonNegativeInt(key, value);
+			} else if (key.equals("maxClients")) {
+				config.maxClients = nonNegativeInt(key, value);
+			} else if (key.equals("clientMemoryMB")) {
+				config.clientMemoryMB = nonNegativeInt(key, value);
+			} else if (key.equals("stateDir")) {
+				config.stateDir = value;
+			} else if (key.equals("stateSyncMillis")) {
+				config.stateSyncMillis = positiveInt(key, value);
+			} else if (key.equals("stateSnapshotSeconds")) {
+				config.stateSnapshotSeconds = positiveInt(key, value);
+			} else if (key.equals("replicateTo")) {
+				int colon = value.lastIndexOf(':');
+				if (colon <= 0)
+					throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+				positiveInt(key, value.substring(colon + 1));
+				config.replicateTo = value;
+			} else if (key.equals("replicationPort")) {
+				config.replicationPort = positiveInt(key, value);
+			} else if (key.equals("replicationMillis")) {
+				config.replicationMillis = positiveInt(key, value);
+			} else if (key.equals("cluster")) {
+				new HashRing(value, 1);	//Only to check the members, the server builds the ring once all options are known
+				config.cluster = value;
+			} else if (key.equals("node")) {
+				config.node = value;
+			} else if (key.equals("virtualNodes")) {
+				config.virtualNodes = positiveInt(key, value);
+			} else if (key.equals("requestLog")) {
+				config.requestLog = oneOf(key, value, "all", "cycles", "off");
+			} else if (key.equals("logSampling")) {
+				config.logSampling = positiveInt(key, value);
+			} else if (key.equals("logBufferKB")) {
+				config.logBufferKB = positiveInt(key, value);
+			} else if (key.equals("logWhenFull")) {
+				config.logWhenFull = oneOf(key, value, "drop", "block");
+			} else if (key.equals("saturation")) {
+				config.saturation = oneOf(key, value, "block", "reject", "caller");
+			} else if (key.equals("requestTimeoutMillis")) {
+				config.requestTimeoutMillis = positiveInt(key, value);
+			} else if (key.equals("writeTimeoutMillis")) {
+				config.writeTimeoutMillis = positiveInt(key, value);
+			} else if (key.equals("admission")) {
+				config.admission = oneOf(key, value, "off", "adaptive");
+			} else if (key.equals("retryAfterMillis")) {
+				config.retryAfterMillis = positiveInt(key, value);
+			} else if (key.equals("rateLimit")) {
+				config.rateLimit = nonNegativeInt(key, value);
+			} else if (key.equals("rateBurst")) {
+				config.rateBurst = nonNegativeInt(key, value);
+			} else {
+				throw new IllegalArgumentException("Unrecognized option: " + key);
+			}
+		}
+		return config;
+	}
+
+	//Returns the number of keep-alive connections that may wait for a request at the same time
+	int idleConnectionCap() {
+		return maxIdleConnections > 0 ? maxIdleConnections : Math.max(1, maxWorkers / 2);
+	}
+
+	//Returns the value if it is one of the allowed choices, otherwise throws an IllegalArgumentException
+	static String oneOf(String key, String value, String... choices) {
+		for (String choice : choices) {
+			if (choice.equals(value))
+				return value;
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+	}
+
+	//Returns the value as an int if it is greater than zero, otherwise throws an IllegalArgumentException
+	static int positiveInt(String key, String value) {
+		try {
+			int n = Integer.parseInt(value);
+			if (n > 0)
+				return n;
+		} catch (NumberFormatException nfe) {
+			//Falls through to the exception below
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+	}
+
+	//Returns the value as an int if it is zero or more, otherwise throws an IllegalArgumentException
+	static int nonNegativeInt(String key, String value) {
+		try {
+			int n = Integer.parseInt(value);
+			if (n >= 0)
+				return n;
+		} catch (NumberFormatException nfe) {
+			//Falls through to the exception below
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+	}
+}
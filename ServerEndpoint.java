@@ -0,0 +1,67 @@
+/* This file contains the JokeClient's view of one server: its latency estimate and its circuit breaker, which the
+ * ServerSelector (see ServerSelector.java) ranks the servers by.
+ */
+
+/* This class represents one server as seen by the selector: its latency estimate and its circuit breaker. */
+class ServerEndpoint {
+
+	static final double EWMA_WEIGHT = 0.2;	//How much a new latency sample moves the estimate
+
+	final String host;
+	final int port;
+	private double latencyMillis = -1;	//Moving average of the response times, -1 until the first response
+	private int failures = 0;	//Failures since the last success
+	private long openUntil = 0;	//While the circuit is open, the time it lets a trial through, otherwise 0
+	private long trialUntil = 0;	//While a trial is out on a half open circuit, the time it has run out, otherwise 0
+
+	//Constructor, takes the host and port of the server
+	ServerEndpoint(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	//Records a response that took the given time, which also closes the circuit
+	synchronized void succeeded(double millis) {
+		latencyMillis = latencyMillis < 0 ? millis : latencyMillis + EWMA_WEIGHT * (millis - latencyMillis);
+		if (openUntil != 0)
+			System.out.println("Server " + this + " is answering again");
+		failures = 0;
+		openUntil = 0;
+		trialUntil = 0;
+	}
+
+	//Records a failure, opening the circuit after FAILURES_TO_OPEN in a row (or again after a failed trial)
+	synchronized void failed() {
+		failures++;
+		if (failures >= ServerSelector.FAILURES_TO_OPEN) {
+			if (openUntil == 0)
+				System.out.println("Server " + this + " is not answering, using the other server");
+			openUntil = System.currentTimeMillis() + ServerSelector.OPEN_MILLIS;
+		}
+		trialUntil = 0;
+	}
+
+	/* Returns true if requests may be sent: the circuit is closed, or open for long enough to let a trial through.
+	 * Once open for that long the circuit is half open, and only the first caller gets true, so a single request is
+	 * risked on the server. The trial's outcome closes or reopens the circuit; a caller that was given the trial but
+	 * sent its request elsewhere lets another one through after a request timeout.
+	 */
+	synchronized boolean available() {
+		if (openUntil == 0)
+			return true;
+		long now = System.currentTimeMillis();
+		if (now < openUntil || now < trialUntil)
+			return false;
+		trialUntil = now + ServerSelector.REQUEST_TIMEOUT_MILLIS;
+		return true;
+	}
+
+	//Returns the latency estimate in milliseconds, or Double.MAX_VALUE before the first response, to rank the server last
+	synchronized double latency() {
+		return latencyMillis < 0 ? Double.MAX_VALUE : latencyMillis;
+	}
+
+	public String toString() {
+		return host + ", port " + port;
+	}
+}
@@ -0,0 +1,72 @@
+/* This file contains the JokeServer's joke/proverb mode. The mode is an immutable snapshot of the mode and its epoch,
+ * replaced as a whole, so a request reads it once and uses one consistent mode for its whole reply, and every thread
+ * sees a change as soon as it is made.
+ *
+ * The epoch numbers the changes. Each change must carry a higher epoch than the server's current one, otherwise it
+ * is refused as stale; this makes changes idempotent and lets late or repeated ones arrive in any order. An admin
+ * tool setting the mode of many servers (see JokeClientAdmin's "set" command) picks one epoch above all of theirs and
+ * sends the same SET to every server, so they all end up in the same mode whatever else was in flight. A TOGGLE, as
+ * sent by the original JokeClientAdmin, uses the server's own epoch + 1.
+ */
+
+//Import the Java library for swapping the snapshot atomically
+import java.util.concurrent.atomic.AtomicReference;
+
+/* This class represents one snapshot of the mode. */
+class ServerMode {
+
+	private static final AtomicReference<ServerMode> current = new AtomicReference<ServerMode>(new ServerMode(true, 0));
+
+	final boolean jokeMode;	//True in joke mode, false in proverb mode
+	final long epoch;	//The number of the change that set this mode, 0 for the mode the server started in
+
+	//Constructor, takes the mode and its epoch
+	ServerMode(boolean jokeMode, long epoch) {
+		this.jokeMode = jokeMode;
+		this.epoch = epoch;
+	}
+
+	//Returns the server's current mode
+	static ServerMode current() {
+		return current.get();
+	}
+
+	//Switches to the other mode with the next epoch, and returns the new mode
+	static ServerMode toggle() {
+		while (true) {
+			ServerMode mode = current.get();
+			ServerMode toggled = new ServerMode(!mode.jokeMode, mode.epoch + 1);
+			if (current.compareAndSet(mode, toggled))
+				return toggled;
+		}
+	}
+
+	/* Sets the mode if the epoch is higher than the current one, and returns the mode the server is in afterwards.
+	 * The change was applied, or had already been, if the returned mode has the given mode and epoch.
+	 */
+	static ServerMode set(boolean jokeMode, long epoch) {
+		while (true) {
+			ServerMode mode = current.get();
+			if (epoch <= mode.epoch)
+				return mode;
+			ServerMode changed = new ServerMode(jokeMode, epoch);
+			if (current.compareAndSet(mode, changed))
+				return changed;
+		}
+	}
+
+	//Replaces the mode whatever its epoch. Only for benchmarks, which switch between modes they created in advance
+	static void force(ServerMode mode) {
+		current.set(mode);
+	}
+
+	//Returns "JOKE" or "PROVERB"
+	String name() {
+		return jokeMode ? "JOKE" : "PROVERB";
+	}
+
+	//Returns the mode as the admin MODE and SET commands report it, e.g. "MODE JOKE 3"
+	public String toString() {
+		return "MODE " + name() + " " + epoch;
+	}
+}
@@ -0,0 +1,222 @@
+/* This file contains the JokeClient's choice of server for each request. Instead of only changing servers when the
+ * user types 's', the client keeps checking both servers in the background and routes every request itself:
+ *
+ *   health checks - a daemon thread PINGs every server every HEALTH_CHECK_MILLIS (see JokeProtocol.java) and feeds
+ *                   the result into the same latency estimate and circuit breaker as real requests
+ *   latency       - each server has a moving average of its response times (an EWMA), used to rank the servers
+ *   routing       - the server the user chose with 's' is used while it is available and not much slower than the
+ *                   other one (SLOWER_MARGIN times and SLOWER_MIN_MILLIS), otherwise the fastest available server
+ *   retry         - a request that fails on one server is sent to the next one right away
+ *   hedging       - if the chosen server has not answered within twice its usual latency, the request is also sent
+ *                   to the next server, and whichever answers first is used
+ *   circuit break - after FAILURES_TO_OPEN failures in a row a server is skipped for OPEN_MILLIS, after which a single
+ *                   trial request (or health check) is let through (see ServerEndpoint.java); it closes the circuit
+ *                   again on success
+ *
+ * All attempts of a request share one deadline of REQUEST_TIMEOUT_MILLIS, so failing over to the other server always
+ * happens within one request timeout. A hedged request that loses the race may still be served by the slower
+ * server; with replication (see Replicator.java) that server's cursor then moves too, so the client may skip an
+ * item, but it never sees one twice.
+ */
+
+//Import the Java libraries for input/output, networking, and running attempts concurrently
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/* This class represents the selector. It is shared by the JokeClient's main thread, the health check thread and the
+ * threads running the attempts.
+ */
+class ServerSelector {
+
+	static final int REQUEST_TIMEOUT_MILLIS = 1000;	//Deadline of a request over all its attempts
+	static final int HEALTH_CHECK_MILLIS = 500;	//How often every server is PINGed
+	static final int FAILURES_TO_OPEN = 3;	//Failures in a row after which a server's circuit opens
+	static final int OPEN_MILLIS = 5000;	//How long an open circuit keeps requests away from a server
+	static final int MIN_HEDGE_MILLIS = 20;	//Never hedge sooner than this
+	static final double SLOWER_MARGIN = 2.0;	//The user's server is kept unless it is this many times slower than another
+	static final double SLOWER_MIN_MILLIS = 10;	//... and also at least this much slower, so that jitter alone never moves the client
+
+	private final ServerEndpoint[] endpoints;	//The servers to choose from
+	private final ConnectionPool pool;	//The keep-alive connections to them
+	private volatile ServerEndpoint preferred;	//The server the user chose
+	private volatile ServerEndpoint lastUsed = null;	//The server that answered the last request
+
+	//Runs the attempts of requests, and lets a slow attempt finish in the background after another one has won
+	private final ExecutorService attempts = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "request-attempt");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	//Constructor, takes the connection pool and the servers, the first of which is preferred
+	ServerSelector(ConnectionPool pool, ServerEndpoint... endpoints) {
+		this.pool = pool;
+		this.endpoints = endpoints;
+		this.preferred = endpoints[0];
+	}
+
+	//Makes the given server the preferred one, as the user asked with 's' (which already told the user about the switch)
+	void prefer(ServerEndpoint endpoint) {
+		preferred = endpoint;
+		lastUsed = endpoint;
+	}
+
+	/* Starts the daemon thread that PINGs every server every HEALTH_CHECK_MILLIS. The first round only opens the
+	 * connections, so that connecting (and the client warming up) is not taken for the servers' latency.
+	 */
+	void startHealthChecks() {
+		Thread checker = new Thread(new Runnable() {
+			public void run() {
+				for (boolean first = true; ; first = false) {
+					for (ServerEndpoint endpoint : endpoints) {
+						long start = System.nanoTime();
+						try {
+							pool.ping(endpoint.host, endpoint.port, REQUEST_TIMEOUT_MILLIS);
+							if (!first)
+								endpoint.succeeded((System.nanoTime() - start) / 1e6);
+						} catch (IOException ioe) {
+							endpoint.failed();
+						}
+					}
+					try {
+						Thread.sleep(HEALTH_CHECK_MILLIS);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}, "health-check");
+		checker.setDaemon(true);
+		checker.start();
+	}
+
+	/* Sends the request to the best server, retrying and hedging on the others as described above, and returns the
+	 * lines of the first response. Throws an IOException if no server answered before the deadline.
+	 */
+	List<String> request(final String uuid, final String name, final int count) throws IOException {
+		long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS;
+		List<ServerEndpoint> order = ranked();
+		CompletionService<List<String>> done = new ExecutorCompletionService<List<String>>(attempts);
+		List<Future<List<String>>> started = new ArrayList<Future<List<String>>>();
+		List<ServerEndpoint> targets = new ArrayList<ServerEndpoint>();	//The server of each attempt in 'started'
+		IOException failure = null;
+		int next = 0;	//The next server in 'order' to send the request to
+		int running = 0;	//Attempts started that have not finished yet
+
+		started.add(done.submit(attempt(order.get(next), uuid, name, count, deadline)));
+		targets.add(order.get(next++));
+		running++;
+		try {
+			while (true) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				long wait = remaining;
+				if (next < order.size())
+					wait = Math.min(remaining, hedgeDelay(order.get(next - 1)));
+
+				Future<List<String>> finished = done.poll(wait, TimeUnit.MILLISECONDS);
+				if (finished == null) {
+					if (next < order.size()) {
+						//Hedge: the server is slower than usual, so ask the next one as well
+						started.add(done.submit(attempt(order.get(next), uuid, name, count, deadline)));
+						targets.add(order.get(next++));
+						running++;
+					}
+					continue;
+				}
+				running--;
+				try {
+					List<String> response = finished.get();
+					ServerEndpoint endpoint = targets.get(started.indexOf(finished));
+					if (lastUsed != endpoint) {
+						if (lastUsed != null)
+							System.out.println("Now communicating with: " + endpoint);
+						lastUsed = endpoint;
+					}
+					return response;
+				} catch (ExecutionException ee) {
+					failure = ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+					if (next < order.size()) {
+						//Retry: the attempt failed, so try the next server right away
+						started.add(done.submit(attempt(order.get(next), uuid, name, count, deadline)));
+						targets.add(order.get(next++));
+						running++;
+					} else if (running == 0) {
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Future<List<String>> attempt : started)
+				attempt.cancel(false);	//Attempts already sent finish in the background, which keeps their latency estimates right
+		}
+		if (failure != null)
+			throw failure;
+		throw new SocketTimeoutException("No server answered within " + REQUEST_TIMEOUT_MILLIS + " ms");
+	}
+
+	//Returns one attempt of the request on the given server, which records its outcome on the server's estimates
+	private Callable<List<String>> attempt(final ServerEndpoint endpoint, final String uuid, final String name, final int count,
+			final long deadline) {
+		return new Callable<List<String>>() {
+			public List<String> call() throws IOException {
+				long start = System.nanoTime();
+				try {
+					int timeout = (int) Math.max(1, deadline - System.currentTimeMillis());
+					List<String> response = pool.request(endpoint.host, endpoint.port, uuid, name, count, timeout);
+					endpoint.succeeded((System.nanoTime() - start) / 1e6);
+					return response;
+				} catch (IOException ioe) {
+					endpoint.failed();
+					throw ioe;
+				}
+			}
+		};
+	}
+
+	/* Returns the servers in the order to try them. Servers whose circuit is open come last, so they are only used
+	 * if nothing else answers. The preferred server comes first unless it is much slower than the fastest one (see
+	 * SLOWER_MARGIN); the rest are ordered by their latency estimates.
+	 */
+	private List<ServerEndpoint> ranked() {
+		List<ServerEndpoint> available = new ArrayList<ServerEndpoint>();
+		List<ServerEndpoint> open = new ArrayList<ServerEndpoint>();
+		for (ServerEndpoint endpoint : endpoints) {
+			if (endpoint.available())
+				insertByLatency(available, endpoint);
+			else
+				insertByLatency(open, endpoint);
+		}
+		ServerEndpoint chosen = preferred;
+		if (available.remove(chosen)) {
+			double fastest = available.isEmpty() ? Double.MAX_VALUE : available.get(0).latency();
+			if (chosen.latency() <= Math.max(fastest * SLOWER_MARGIN, fastest + SLOWER_MIN_MILLIS))
+				available.add(0, chosen);
+			else
+				insertByLatency(available, chosen);
+		}
+		available.addAll(open);
+		return available;
+	}
+
+	//Inserts the server into the list, keeping the list ordered by latency estimate
+	private static void insertByLatency(List<ServerEndpoint> list, ServerEndpoint endpoint) {
+		int i = 0;
+		while (i < list.size() && list.get(i).latency() <= endpoint.latency())
+			i++;
+		list.add(i, endpoint);
+	}
+
+	//Returns how long to wait for the server before hedging: twice its usual latency, within sensible bounds
+	private static long hedgeDelay(ServerEndpoint endpoint) {
+		return (long) Math.min(REQUEST_TIMEOUT_MILLIS / 2, Math.max(MIN_HEDGE_MILLIS, 2 * endpoint.latency()));
+	}
+}
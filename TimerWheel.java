@@ -0,0 +1,106 @@
+/* This file contains the one thread that enforces the deadlines of connections (see Deadline.java), on the server
+ * and in the clients. A blocking read or write cannot be given a deadline of its own: SO_TIMEOUT only bounds each
+ * read, so a client trickling one byte at a time never runs into it, and it does not bound writes at all. Instead,
+ * every connection gets a Deadline, and when it passes the connection is closed, which makes the read or write
+ * blocked on it fail at once.
+ *
+ * The deadlines are kept in a hashed timer wheel (Varghese and Lauck): a ring of SLOTS buckets, each holding the
+ * deadlines that fall in one TICK_MILLIS tick, modulo the length of the ring. The wheel thread visits one bucket
+ * per tick, so adding a deadline and finding the ones due both take constant time however many there are.
+ *
+ * Connections move their deadline at every step (waiting for a request, reading it, writing the reply), often in
+ * microseconds, so moving one must be cheaper than taking it out of the wheel and putting it back. A Deadline
+ * therefore stays where it is when it is moved, and only its time is changed; when the wheel reaches its bucket and
+ * finds it is not due yet, it files it again in the bucket of its new time. A deadline further away than a turn of
+ * the wheel is looked at once per turn. Moving a deadline is a single atomic write, and no thread but the wheel's
+ * ever touches the buckets.
+ */
+
+//Import the Java library for concurrent queues
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* This class represents the wheel and its thread. There is one per program, started the first time a Deadline is
+ * armed.
+ */
+class TimerWheel implements Runnable {
+
+	static final int TICK_MILLIS = 10;	//How late a deadline may be enforced at most
+	static final int SLOTS = 1024;	//Buckets in the ring, which turns once in SLOTS * TICK_MILLIS = about 10 seconds
+
+	private static TimerWheel shared = null;
+
+	private final Deadline[] buckets = new Deadline[SLOTS];	//The deadlines of each bucket, linked through Deadline.next
+	private final ConcurrentLinkedQueue<Deadline> added = new ConcurrentLinkedQueue<Deadline>();	//Not filed yet
+	private long tick;	//The next tick to visit
+	private volatile int size = 0;	//Deadlines in the wheel, for the metrics
+
+	//Returns the program's wheel, starting its thread the first time
+	static synchronized TimerWheel shared() {
+		if (shared == null) {
+			shared = new TimerWheel();
+			Thread thread = new Thread(shared, "timer-wheel");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return shared;
+	}
+
+	//The wheel's clock in milliseconds, which unlike currentTimeMillis() never jumps when the system clock is set
+	static long now() {
+		return System.nanoTime() / 1_000_000L;
+	}
+
+	private TimerWheel() {
+		tick = now() / TICK_MILLIS;
+	}
+
+	//Hands a new deadline to the wheel thread, from any thread
+	void add(Deadline deadline) {
+		added.add(deadline);
+	}
+
+	//Returns the number of deadlines in the wheel, including those cancelled since its last turn
+	int size() {
+		return size;
+	}
+
+	/* Every tick, files the deadlines added since the last one, then visits the buckets of the ticks that have
+	 * passed: the deadlines due are expired, the cancelled ones dropped, and the others filed again.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException ie) {
+				return;
+			}
+			long now = now();
+			Deadline deadline;
+			while ((deadline = added.poll()) != null) {
+				size++;
+				file(deadline);
+			}
+			for (; tick <= now / TICK_MILLIS; tick++) {
+				int slot = (int) (tick & (SLOTS - 1));
+				Deadline next = buckets[slot];
+				buckets[slot] = null;
+				while ((deadline = next) != null) {
+					next = deadline.next;
+					deadline.next = null;
+					if (deadline.cancelled || deadline.expireIfDue(now))
+						size--;
+					else
+						file(deadline);
+				}
+			}
+		}
+	}
+
+	//Puts the deadline in the bucket of its time, or of the next tick to visit if that has passed already
+	private void file(Deadline deadline) {
+		long at = Math.max(deadline.at() / TICK_MILLIS, tick + 1);
+		int slot = (int) (at & (SLOTS - 1));
+		deadline.next = buckets[slot];
+		buckets[slot] = deadline;
+	}
+}
@@ -0,0 +1,81 @@
+/* This file contains the client side of the JokeServer's UDP mode (see UdpServer.java for the datagrams and the
+ * server side). It is used by the ConnectionPool when the JokeClient is started with protocol=udp.
+ */
+
+//Import the Java libraries for input/output, networking, the lines of a response and random request IDs
+import java.io.*;
+import java.net.*;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/* This class represents the client side of the UDP mode. Each request gets a random request ID and its own
+ * socket, connected to the server so that only the server's datagrams are received on it, and is sent again with
+ * the same ID whenever no response arrives in time, waiting twice as long each time. Requests are padded to
+ * UdpServer.PADDING_BYTES_PER_ITEM per item, so that the server may send back up to MAX_AMPLIFICATION times that.
+ */
+class UdpClient {
+
+	static final int FIRST_TIMEOUT_MILLIS = 250;	//How long to wait for the first response
+	static final int ATTEMPTS = 5;	//How often a request is sent before giving up, unless the caller's timeout ends it sooner
+
+	/* Sends the request, or a PING if uuid is null, to the server's UDP port and returns the lines of the response
+	 * as the TCP protocols would. Gives up with a SocketTimeoutException after ATTEMPTS sends, or once timeoutMillis
+	 * have passed if it is not 0.
+	 */
+	List<String> exchange(String server, int port, String uuid, String name, int count, int timeoutMillis) throws IOException {
+		long id = ThreadLocalRandom.current().nextLong();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(BinaryProtocol.MAGIC);
+		out.write(BinaryProtocol.VERSION);
+		out.writeLong(id);
+		if (uuid == null)
+			BinaryProtocol.writePing(out);
+		else
+			BinaryProtocol.writeRequest(out, uuid, name, count);
+		int padded = (int) Math.min(UdpServer.MAX_DATAGRAM_BYTES, (long) Math.max(count, 1) * UdpServer.PADDING_BYTES_PER_ITEM);
+		if (uuid != null && bytes.size() < padded)
+			out.write(new byte[padded - bytes.size()]);
+		byte[] datagram = bytes.toByteArray();
+
+		long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		byte[] buf = new byte[UdpServer.MAX_DATAGRAM_BYTES];
+		try (DatagramSocket sock = new DatagramSocket()) {
+			sock.connect(new InetSocketAddress(server, port));
+			int wait = FIRST_TIMEOUT_MILLIS;
+			for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					break;
+				sock.send(new DatagramPacket(datagram, datagram.length));
+				long until = System.currentTimeMillis() + Math.min(wait, left);
+				wait *= 2;
+
+				//Wait for the response to this request; anything else arriving on the socket is ignored
+				while (true) {
+					long remaining = until - System.currentTimeMillis();
+					if (remaining <= 0)
+						break;
+					sock.setSoTimeout((int) remaining);
+					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					try {
+						sock.receive(packet);
+					} catch (SocketTimeoutException ste) {
+						break;
+					} catch (PortUnreachableException pue) {
+						throw new ConnectException("No UDP listener at " + server + ":" + port);
+					}
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, 0, packet.getLength()));
+					try {
+						String serverTag = BinaryProtocol.readHello(in);
+						if (in.readLong() == id)
+							return BinaryProtocol.readResponse(in, serverTag, name);
+					} catch (EOFException eof) {
+						//A truncated datagram is ignored like any other stray one
+					}
+				}
+			}
+		}
+		throw new SocketTimeoutException("No UDP response from " + server + ":" + port);
+	}
+}
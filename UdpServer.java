@@ -0,0 +1,201 @@
+/* This file contains the JokeServer's UDP mode: with udp=on, the server also listens for datagrams at the client
+ * port's number, and answers each request datagram with one response datagram. A request then costs no connection
+ * setup or teardown and no worker, only one thread that handles every datagram in turn with the same
+ * Worker.handleClient() as the other engines, so client state is shared with them.
+ *
+ * The datagrams are made of the binary protocol's parts (see BinaryProtocol.java):
+ *
+ *   request:   MAGIC | VERSION | request ID (8 bytes) | one request frame
+ *   response:  the server's answer to the opening (MAGIC | version | server tag) | the same request ID | one
+ *              response frame
+ *
+ * Datagrams may be lost, so the client sends the request again if no response arrives in time (see UdpClient),
+ * with the same request ID. The server keeps its most recent responses in a ReplayCache, keyed by the client's
+ * UUID and the request ID, and answers a request it has already handled with the response it sent, so a
+ * retransmitted request does not move the client's cycle forward twice. The cache is direct-mapped with
+ * udpReplaySlots slots: a newer request landing in the same slot replaces the older one, so a retransmit arriving
+ * after more than about that many other requests may be handled again.
+ *
+ * So that the server cannot be used to flood a forged source address, a response may be at most MAX_AMPLIFICATION
+ * times as long as the request datagram, and never longer than a datagram can carry. The client pads its request
+ * with zeros after the frame to PADDING_BYTES_PER_ITEM per item asked for (see UdpClient), and the server ignores
+ * the padding. A request whose largest possible response (every item as long as the corpora's longest entry) does
+ * not fit is answered with the TOO_LARGE status before the client's state is touched, so no items are counted as
+ * sent, and such batches should be asked for over TCP. TOO_LARGE answers are not kept in the ReplayCache.
+ */
+
+//Import the Java libraries for input/output, networking and buffers
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/* This class represents the UDP listener. Its run() method receives, handles and answers datagrams one at a time
+ * on the thread it runs on, for the life of the program.
+ */
+class UdpServer implements Runnable {
+
+	static final int MAX_DATAGRAM_BYTES = 65507;	//The largest UDP payload over IPv4
+	static final int HEADER_BYTES = 2 + 8;	//MAGIC, VERSION and the request ID in front of the request frame
+	static final int MAX_AMPLIFICATION = 3;	//How many times longer than its request datagram a response may be
+	static final int PADDING_BYTES_PER_ITEM = 512;	//What the client pads its request to per item asked for
+	static final int ITEM_HEADER_BYTES = 2 + 4;	//The flags, tag length and body length of each item in a response
+
+	private final DatagramChannel chan;
+	private final ReplayCache replays;
+	private final ByteBuffer received = ByteBuffer.allocate(MAX_DATAGRAM_BYTES + 1);	//Padded requests can be as long as any datagram
+	private final ByteBuffer response = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+	private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+
+	//Constructor, binds the UDP socket to the port and creates a replay cache of the given number of slots
+	UdpServer(int port, int replaySlots) throws IOException {
+		chan = DatagramChannel.open();
+		chan.bind(new InetSocketAddress(port));
+		replays = new ReplayCache(replaySlots);
+	}
+
+	public void run() {
+		ReplyBuffer reply = ReplyBuffer.forThread();
+		while (JokeServer.controlSwitch) {
+			try {
+				received.clear();
+				SocketAddress client = chan.receive(received);
+				Metrics.udpDatagrams.increment();
+				if (handle(reply))
+					chan.send(response, client);
+				else
+					Metrics.udpDropped.increment();
+			} catch (IOException ioe) {
+				System.out.println(JokeServer.serverTag + "UDP error: " + ioe);
+			}
+		}
+	}
+
+	/* Handles the datagram in 'received' and leaves the response datagram in 'response'. Returns false if the
+	 * datagram is not a request, in which case it is dropped without an answer.
+	 */
+	private boolean handle(ReplyBuffer reply) {
+		byte[] bytes = received.array();
+		int length = received.position();
+		if (length < HEADER_BYTES + 4 || length == received.capacity() || (bytes[0] & 0xFF) != BinaryProtocol.MAGIC)
+			return false;
+		int version = bytes[1] & 0xFF;
+		long id = BinaryProtocol.getLong(bytes, 2);
+		int frameLength = BinaryProtocol.getInt(bytes, HEADER_BYTES);
+		if (frameLength < 0 || frameLength > BinaryProtocol.MAX_REQUEST_FRAME_BYTES || frameLength > length - HEADER_BYTES - 4)
+			return false;	//Anything after the frame is the client's padding
+		BinaryProtocol.parse(bytes, HEADER_BYTES + 4, frameLength, request);
+
+		//A request handled before gets the response it got then, without touching the client's state again
+		boolean replayable = request.type == BinaryProtocol.REQUEST || request.type == BinaryProtocol.BATCH;
+		response.clear();
+		if (replayable && replays.replay(request.hi, request.lo, id, response)) {
+			response.flip();
+			Metrics.udpReplayed.increment();
+			return true;
+		}
+
+		if (!BinaryProtocol.addHello(version, reply))
+			return false;
+		int idSlot = reply.reserve(8);
+		reply.put(idSlot, 0, id, 8);
+
+		/* Turn away a request whose largest possible response would not fit before handling it, so that neither
+		 * the client's cycle nor the cluster's replicas move for items the client never gets. The other
+		 * requests are answered with a status alone, which is always shorter than the request.
+		 */
+		int limit = (int) Math.min(MAX_DATAGRAM_BYTES, (long) MAX_AMPLIFICATION * length);
+		if (replayable && largestResponse(reply.bytesFrom(0)) > limit) {
+			tooLarge(version, id, reply);
+			return true;
+		}
+		BinaryProtocol.respond(request, reply);
+
+		//A RELOAD of longer entries between the check and the reply can still make the reply too long
+		if (reply.bytesFrom(0) > limit) {
+			tooLarge(version, id, reply);
+			return true;
+		}
+		reply.writeTo(response);
+		response.flip();
+		if (replayable)
+			replays.remember(request.hi, request.lo, id, response);
+		return true;
+	}
+
+	/* Returns the most bytes the response to the REQUEST or BATCH in 'request' can take, given the bytes in front
+	 * of its frame: the number of items BinaryProtocol.respond() will ask for, each as long as the longest entry of
+	 * either corpus, since the admin can change the mode at any time.
+	 */
+	private long largestResponse(int headerBytes) {
+		CorpusSnapshot snapshot = JokeServer.corpus;
+		int longest = Math.max(snapshot.jokes.maxEntryBytes(), snapshot.proverbs.maxEntryBytes());
+		int items = Math.min(Math.max(request.count, 1), JokeServer.config.maxBatch);
+		return headerBytes + 5 + (long) items * (ITEM_HEADER_BYTES + longest);
+	}
+
+	//Replaces the reply with a TOO_LARGE response and leaves it in 'response'
+	private void tooLarge(int version, long id, ReplyBuffer reply) {
+		reply.clear();
+		BinaryProtocol.addHello(version, reply);
+		int idSlot = reply.reserve(8);
+		reply.put(idSlot, 0, id, 8);
+		int frame = reply.reserve(5);
+		reply.put(frame, 0, 1, 4);
+		reply.put(frame, 4, BinaryProtocol.TOO_LARGE, 1);
+		reply.writeTo(response);
+		response.flip();
+		Metrics.udpTooLarge.increment();
+	}
+}
+
+/* This class holds the UDP responses most recently sent, so that a retransmitted request is answered with the
+ * same response instead of being handled again. It is direct-mapped: every (client, request ID) has one slot, and a
+ * response stored in a slot replaces the one there. It is only used by the UdpServer's thread, so it needs no locks.
+ */
+class ReplayCache {
+
+	private final long[] his;	//The client and request ID of the response in each slot
+	private final long[] los;
+	private final long[] ids;
+	private final byte[][] responses;	//The response datagram in each slot, or null; arrays are reused when large enough
+	private final int[] lengths;
+	private final int mask;
+
+	//Constructor, takes the number of slots, which is rounded up to a power of two
+	ReplayCache(int slots) {
+		int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		his = new long[size];
+		los = new long[size];
+		ids = new long[size];
+		responses = new byte[size][];
+		lengths = new int[size];
+		mask = size - 1;
+	}
+
+	private int slot(long hi, long lo, long id) {
+		return (int) ClientStateStore.hash(hi, lo ^ id) & mask;
+	}
+
+	//Puts the response stored for the client's request into 'out' and returns true, or returns false if there is none
+	boolean replay(long hi, long lo, long id, ByteBuffer out) {
+		int slot = slot(hi, lo, id);
+		if (responses[slot] == null || his[slot] != hi || los[slot] != lo || ids[slot] != id)
+			return false;
+		out.put(responses[slot], 0, lengths[slot]);
+		return true;
+	}
+
+	//Stores the response to the client's request from the (heap) buffer, leaving the buffer's position where it was
+	void remember(long hi, long lo, long id, ByteBuffer response) {
+		int slot = slot(hi, lo, id);
+		int length = response.remaining();
+		if (responses[slot] == null || responses[slot].length < length)
+			responses[slot] = new byte[Math.max(length, 64)];
+		System.arraycopy(response.array(), response.position(), responses[slot], 0, length);
+		his[slot] = hi;
+		los[slot] = lo;
+		ids[slot] = id;
+		lengths[slot] = length;
+	}
+}
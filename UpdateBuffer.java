@@ -0,0 +1,146 @@
+/* This file contains the buffer that cursor updates are copied into by requests, on their way to the client state
+ * log (see ClientStateLog.java) and to a replica (see Replicator.java).
+ */
+
+//Import the Java library for byte buffers
+import java.nio.ByteBuffer;
+
+/* This class holds encoded cursor update records (in the log record format, see ClientStateLog.java) until a thread
+ * takes them to write them out, to the log file or to a replica. Appending only copies 32 bytes, into one of
+ * several stripes picked by the appending thread, so requests on different threads rarely share a lock. Each stripe
+ * swaps two buffers on every take(), so the appending side never waits for the write, and take() hands out the
+ * stripes' buffers for one gathering write instead of copying them together. Records appended by different threads
+ * are taken in no particular order, so readers must not rely on the order of one client's records (a client's
+ * cursor only moves forward, so the furthest one is the latest).
+ */
+class UpdateBuffer {
+
+	static final int RECORD_BYTES = 32;
+	static final int INVALID = -1;	//What mode() returns for a record that fails its checksum
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final ByteBuffer[] taken;	//The stripes' buffers handed out by the last take()
+
+	//Constructor, with about two stripes per core
+	UpdateBuffer() {
+		int n = 1;
+		while (n < 2 * Runtime.getRuntime().availableProcessors() && n < 64)
+			n <<= 1;
+		stripes = new Stripe[n];
+		taken = new ByteBuffer[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe();
+		stripeMask = n - 1;
+	}
+
+	//Appends a record to the calling thread's stripe
+	void append(long hi, long lo, int mode, int position, int cycle) {
+		stripes[(int) Thread.currentThread().getId() & stripeMask].append(hi, lo, mode, position, cycle);
+	}
+
+	//Puts one record into the given buffer, which must have RECORD_BYTES remaining
+	static void encode(ByteBuffer out, long hi, long lo, int mode, int position, int cycle) {
+		out.putLong(hi).putLong(lo).putInt(mode).putInt(position).putInt(cycle).putInt(checksum(hi, lo, mode, position, cycle));
+	}
+
+	//Returns the number of bytes appended since the last take()
+	int size() {
+		int n = 0;
+		for (Stripe stripe : stripes)
+			n += stripe.size();
+		return n;
+	}
+
+	//Drops every record appended since the last take()
+	void clear() {
+		for (Stripe stripe : stripes)
+			stripe.clear();
+	}
+
+	/* Returns the records appended since the last call, one buffer per stripe, ready to be read, and starts a new
+	 * batch. The array and its buffers are only valid until the next call, which must come from the same thread (or
+	 * under the same lock).
+	 */
+	ByteBuffer[] take() {
+		for (int i = 0; i < stripes.length; i++)
+			taken[i] = stripes[i].take();
+		return taken;
+	}
+
+	//Returns the number of bytes left to read in the given buffers
+	static long remaining(ByteBuffer[] buffers) {
+		long n = 0;
+		for (ByteBuffer buffer : buffers)
+			n += buffer.remaining();
+		return n;
+	}
+
+	//The fields of the record at the buffer's position
+	static long hi(ByteBuffer record) {
+		return record.getLong(record.position());
+	}
+
+	static long lo(ByteBuffer record) {
+		return record.getLong(record.position() + 8);
+	}
+
+	static int position(ByteBuffer record) {
+		return record.getInt(record.position() + 20);
+	}
+
+	static int cycle(ByteBuffer record) {
+		return record.getInt(record.position() + 24);
+	}
+
+	//Returns the mode field of the record at the buffer's position, or INVALID if the record fails its checksum
+	static int mode(ByteBuffer record) {
+		int mode = record.getInt(record.position() + 16);
+		if (record.getInt(record.position() + 28) != checksum(hi(record), lo(record), mode, position(record), cycle(record)))
+			return INVALID;
+		return mode;
+	}
+
+	//Returns the checksum of a record's fields
+	private static int checksum(long hi, long lo, int mode, int position, int cycle) {
+		long h = ClientStateStore.hash(hi, lo) ^ ClientStateStore.hash(((long) mode << 32) | position, cycle);
+		return (int) (h ^ (h >>> 32)) | 1;	//Never 0, so a zero-filled record never passes
+	}
+
+	/* One stripe of the buffer: the records appended by the threads that map to it, guarded by the stripe itself. */
+	private static final class Stripe {
+		private ByteBuffer pending = ByteBuffer.allocate(1 << 12);	//Records appended since the last take(), guarded by 'this'
+		private ByteBuffer taken = ByteBuffer.allocate(1 << 12);	//The records handed out by the last take()
+
+		//Appends a record, growing the buffer if the taking thread has fallen behind
+		synchronized void append(long hi, long lo, int mode, int position, int cycle) {
+			if (pending.remaining() < RECORD_BYTES) {
+				ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+			encode(pending, hi, lo, mode, position, cycle);
+		}
+
+		synchronized int size() {
+			return pending.position();
+		}
+
+		synchronized void clear() {
+			pending.clear();
+		}
+
+		//Swaps the buffers and returns the records appended since the last call, ready to be read
+		ByteBuffer take() {
+			taken.clear();
+			synchronized (this) {
+				ByteBuffer appended = pending;
+				pending = taken;
+				taken = appended;
+			}
+			taken.flip();
+			return taken;
+		}
+	}
+}
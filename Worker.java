@@ -0,0 +1,411 @@
+/* This file contains the JokeServer's Worker, which serves one client connection of the blocking engine. Its
+ * static methods produce the reply to a request, and are shared with the NIO engine (see NioServer.java), the binary
+ * protocol (see BinaryProtocol.java) and the benchmarks, so that every engine answers requests the same way.
+ */
+
+//Import the Java libraries for input/output, for working with networks, and for the count of idle connections
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* This class "does the work" of the primary server. After setting up means of input/output through the socket, 
+ * it acquires the clients UUID and name, and then calls the handleClient() method, which uses some helper
+ * functions to maintain client state and send the client a joke/proverb.
+ */
+class Worker implements Runnable {
+
+	static final AtomicInteger idleConnections = new AtomicInteger();	//Keep-alive connections waiting for their next request
+
+	//This socket is a class member, local to the Worker
+	Socket sock;
+	private final AdmissionControl admission;	//Admits the connection's requests and is told their latency, or null
+	private boolean admitted;	//True while the connection holds a place in the admission control's limit, see admit()
+	private long requestStart = System.nanoTime();	//When the current request arrived, the accept for the first one
+	private final Deadline deadline;	//Closes the socket if the client takes too long, see Deadline.java
+	private boolean idle = false;	//True while the connection is counted in idleConnections
+	private boolean singleRequest = false;	//True if the connection is closed after one request, see oneRequest()
+
+	/* Constructor, takes a socket as an argument and assigns the class member socket to it, and the admission
+	 * control that admitted the connection, if any
+	 */
+	Worker (Socket s, AdmissionControl admission) {
+		this.sock = s;
+		this.admission = admission;
+		this.deadline = new Deadline(s, Metrics.timeouts);
+	}
+
+	/* Returns a Runnable serving only the connection's first request, for the accepting thread to run with
+	 * saturation=caller: a keep-alive session would keep it from accepting for as long as the client likes. A
+	 * pooled client finds the connection closed when it next uses it, and connects again.
+	 */
+	Runnable oneRequest() {
+		return new Runnable() {
+			public void run() {
+				singleRequest = true;
+				Worker.this.run();
+			}
+		};
+	}
+
+	/* Since the class is setup to function in a multi-threaded environment, this method
+	 * is called by one of the JokeServer's worker threads once the Worker has been dispatched.
+	 * This method creates a buffered reader to accept communication from client through the
+	 * given socket, and borrows a reply buffer to send communication back. It acquires
+	 * the client's UUID and name, calls the handleClient() method, sends the reply, and then closes
+	 * the socket. If the client speaks the keep-alive protocol (see JokeProtocol.java), requests are
+	 * handled until the client closes the connection instead, or until too many connections are idle (see
+	 * awaitRequest()). Every read and write is under the connection's deadline: the request must arrive within
+	 * requestTimeoutMillis, a keep-alive connection may wait at most keepAliveIdleMillis for the first line of its
+	 * next request, and the client must read each reply within writeTimeoutMillis. A missed deadline closes the
+	 * socket, which ends the blocked read or write.
+	 */
+	public void run() {
+		BufferedReader in = null; //This var is a buffer which will receive characters from the client
+		ReplyBuffer reply = ReplyBuffer.acquire();	//The reply to the client is assembled in this buffer, given back at the end
+		deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);
+		try {
+			//A first byte of BinaryProtocol.MAGIC means the client speaks the binary protocol, otherwise it is read again as text
+			BufferedInputStream bytes = new BufferedInputStream(sock.getInputStream());
+			bytes.mark(1);
+			if (bytes.read() == BinaryProtocol.MAGIC) {
+				serveBinary(new DataInputStream(bytes), reply);
+				return;
+			}
+			bytes.reset();
+			in = new BufferedReader(new InputStreamReader(bytes)); //Initialize buffer reader variable with input stream reader through the given socket
+
+			/* Attempt to retrieve client UUID and name from the buffered reader and call the handleClient() method.
+			/  Otherwise if there is a problem retrieving the data from the buffer, an IOException is caught.
+			*/
+			try {
+
+				//Assign client's uuid and name to vars from the buffered reader
+				String uuid;
+				String name;
+				int count;	//How many jokes/proverbs the client asked for, more than 1 for a batch request
+				uuid = in.readLine();
+
+				if (JokeProtocol.KEEP_ALIVE.equals(uuid)) {
+					//Keep-alive client: the first request follows at once, each further one may keep the connection idle
+					boolean first = true;
+					while (first || awaitRequest()) {
+						first = false;
+						in.mark(1);
+						if (in.read() < 0)
+							break;
+						in.reset();
+						requestArrived();
+						if ((uuid = in.readLine()) == null)
+							break;
+						if (JokeProtocol.PING.equals(uuid)) {
+							reply.addText(ReplyBuffer.PONG);
+							reply.addText(ReplyBuffer.LINE_END);
+							send(reply);
+							continue;
+						}
+						count = batchCount(uuid);
+						if (count > 0 && (uuid = in.readLine()) == null)
+							break;
+						if ((name = in.readLine()) == null)
+							break;
+						if (admit())
+							handleClient(uuid, name, Math.max(count, 1), reply);
+						else
+							AdmissionControl.addBusy(JokeServer.config.retryAfterMillis, reply);
+						reply.addText(ReplyBuffer.LINE_END);	//The empty END_OF_RESPONSE line
+						send(reply);
+						finishRequest();
+					}
+				} else {
+					count = batchCount(uuid);
+					if (count > 0)
+						uuid = in.readLine();
+					name = in.readLine();
+
+					//Call method to maintain client state and send joke/proverb
+					if (admit())
+						handleClient(uuid, name, Math.max(count, 1), reply);
+					else
+						AdmissionControl.addBusy(JokeServer.config.retryAfterMillis, reply);
+					send(reply);
+					finishRequest();
+				}
+
+			} catch (IOException x) {
+				//A connection closed by its deadline, e.g. an idle keep-alive connection, needs no message
+				if (!deadline.expired()) {
+					System.out.println(JokeServer.serverTag + "Server read error");
+					x.printStackTrace();
+				}
+			}
+		} catch (IOException ioe) {
+			if (!deadline.expired())
+				System.out.println(ioe);
+		} finally {
+			//Close the socket however the connection ended, even on an unexpected exception
+			reply.clear();	//In case the connection failed before the reply was sent
+			try {
+				sock.close();
+			} catch (IOException ioe) {
+				//Nothing to do, the connection is gone either way
+			}
+			deadline.cancel();
+			leaveIdle();
+			ReplyBuffer.release(reply);
+			Metrics.closed();
+			if (admitted)
+				admission.release();	//The request failed before it was answered
+		}
+	}
+	
+	/* Serves a client speaking the binary protocol (see BinaryProtocol.java), whose MAGIC byte has been read: answers
+	 * its version, then handles request frames until the client closes the connection or misses a deadline, as for a
+	 * keep-alive client. A frame that is not a request closes the connection.
+	 */
+	private void serveBinary(DataInputStream in, ReplyBuffer reply) throws IOException {
+		try {
+			if (!BinaryProtocol.addHello(in.readUnsignedByte(), reply))
+				return;
+			send(reply);
+			deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);	//The first request follows the opening at once
+			byte[] frame = new byte[BinaryProtocol.MAX_REQUEST_FRAME_BYTES];
+			BinaryProtocol.Request request = new BinaryProtocol.Request();
+			boolean first = true;
+			while (first || awaitRequest()) {
+				first = false;
+				int high = in.read();	//The request's deadline starts with its first byte
+				if (high < 0)
+					break;
+				requestArrived();
+				int length = high << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+				if (length < 1 || length > frame.length)
+					break;
+				in.readFully(frame, 0, length);
+				BinaryProtocol.parse(frame, 0, length, request);
+				boolean handled = request.type == BinaryProtocol.REQUEST || request.type == BinaryProtocol.BATCH;
+				if (!handled || admit())
+					BinaryProtocol.respond(request, reply);
+				else
+					BinaryProtocol.respondBusy(JokeServer.config.retryAfterMillis, reply);
+				send(reply);
+				if (handled)
+					finishRequest();
+				if (request.type == BinaryProtocol.MALFORMED)
+					break;
+			}
+		} catch (EOFException eof) {
+			//The client closed the connection
+		} catch (IOException ioe) {
+			if (!deadline.expired())
+				throw ioe;	//Otherwise the client missed a deadline, which closed the connection
+		} finally {
+			reply.clear();	//In case the connection failed before the reply was sent
+			sock.close();
+		}
+	}
+
+	/* Called once a keep-alive connection has been answered, before waiting for its next request. Returns false if
+	 * the connection should be closed instead: on the accepting thread (see oneRequest()), or if maxIdleConnections
+	 * connections are waiting already, so that idle clients, or clients that only PING now and then, cannot hold
+	 * every worker while new clients wait for one. Otherwise the connection counts as idle until its next request
+	 * arrives, and may wait keepAliveIdleMillis for it.
+	 */
+	private boolean awaitRequest() {
+		if (singleRequest)
+			return false;
+		if (idleConnections.incrementAndGet() > JokeServer.config.idleConnectionCap()) {
+			idleConnections.decrementAndGet();
+			Metrics.idleClosed.increment();
+			return false;
+		}
+		idle = true;
+		deadline.arm(Deadline.IDLE, JokeServer.config.keepAliveIdleMillis);
+		return true;
+	}
+
+	//Called when the first byte of a request arrives: the connection is busy again, and has requestTimeoutMillis for the rest
+	private void requestArrived() {
+		leaveIdle();
+		requestStart = System.nanoTime();
+		deadline.arm(Deadline.REQUEST, JokeServer.config.requestTimeoutMillis);
+	}
+
+	//Stops counting the connection as idle, if it is
+	private void leaveIdle() {
+		if (idle) {
+			idle = false;
+			idleConnections.decrementAndGet();
+		}
+	}
+
+	/* Takes a place in the admission control's limit for the request that has been read and returns true, or
+	 * returns false if the limit has been reached, and the request is answered BUSY on the connection instead of
+	 * being handled. Places are taken per request rather than per connection, so that PINGs and keep-alive
+	 * connections waiting for their next request do not keep other clients' requests out.
+	 */
+	private boolean admit() {
+		if (admission == null)
+			return true;
+		admitted = admission.tryAcquire();
+		return admitted;
+	}
+
+	/* Called once a request's reply has been sent: tells the admission control how long the request took from its
+	 * arrival, and gives back the connection's place in the limit
+	 */
+	private void finishRequest() {
+		if (admitted) {
+			admitted = false;
+			admission.sample(System.nanoTime() - requestStart);
+			admission.release();
+		}
+	}
+
+	//Writes the reply to the client with gathering writes, within writeTimeoutMillis
+	private void send(ReplyBuffer reply) throws IOException {
+		deadline.arm(Deadline.WRITE, JokeServer.config.writeTimeoutMillis);
+		long start = System.nanoTime();
+		if (sock.getChannel() != null)
+			reply.writeTo(sock.getChannel());
+		else
+			reply.writeTo(sock.getOutputStream());
+		Metrics.writeStage.record(System.nanoTime() - start);
+	}
+
+	/* If the line is a batch request line (see JokeProtocol.java), returns the number of items asked for,
+	 * limited to the server's maxBatch option. Otherwise returns 0, meaning the line is the client's UUID.
+	 */
+	static int batchCount(String line) {
+		int count = JokeProtocol.parseBatch(line);
+		return count < 0 ? 0 : Math.min(Math.max(count, 1), JokeServer.config.maxBatch);
+	}
+
+	/* Adds 'count' jokes/proverbs for the client to the reply. This method is static so that the NIO engine
+	 * (see NioServer.java) can produce the same reply. The mode is read once, so a batch never mixes jokes
+	 * and proverbs. The client's cursor for that mode is moved forward by 'count' with a single update of the
+	 * client state store (a new client starts at the beginning of a cycle), and a cycle completion line follows
+	 * every item that completes a cycle.
+	 */
+	static void handleClient(String uuid, String name, int count, ReplyBuffer reply) {
+		if (uuid == null || name == null)
+			return;	//The client went away without sending a whole request
+		handleClient(ClientStateStore.keyHigh(uuid), ClientStateStore.keyLow(uuid), name, count, reply);
+	}
+
+	/* Same as above, for the client with the given key in the client state store. The binary protocol sends the
+	 * key itself (see BinaryProtocol.java); its replies are framed, with each item added by BinaryProtocol.addItem().
+	 */
+	static void handleClient(long hi, long lo, String name, int count, ReplyBuffer reply) {
+		long start = System.nanoTime();
+		reply.setName(name);
+
+		//In a cluster, a client owned by another server is only told which one (see Cluster.java)
+		Cluster cluster = Cluster.current();
+		if (cluster != null) {
+			int owner = cluster.ownerOf(hi, lo);
+			if (owner != cluster.self) {
+				cluster.addMoved(owner, reply);
+				Metrics.moved.increment();
+				return;
+			}
+		}
+
+		//A client over its rate limit is told when to try again, without touching its state (see RateLimiter.java)
+		RateLimiter limiter = JokeServer.rateLimiter;
+		if (limiter != null) {
+			long retryAfterMillis = limiter.acquire(hi, lo);
+			if (retryAfterMillis > 0) {
+				AdmissionControl.addBusy(retryAfterMillis, reply);
+				return;
+			}
+		}
+
+		//Read the mode and the corpus once, so the whole reply uses the same ones even if the admin changes them
+		boolean jokeMode = ServerMode.current().jokeMode;
+		int mode = jokeMode ? ClientStateStore.JOKES : ClientStateStore.PROVERBS;
+		CorpusSnapshot snapshot = JokeServer.corpus;
+		Corpus corpus = snapshot.corpus(mode);
+		int numItems = corpus.size();
+
+		/* The client's position in its cycle is turned into an index in the corpus by the client's own permutation
+		 * for this cycle (see CyclePermutation.java), so every client sees every joke/proverb once per cycle in its
+		 * own random order, and the shared corpus is never reordered.
+		 */
+		long stateStart = System.nanoTime();
+		long cursor = JokeServer.clients.advance(hi, lo, mode, count, numItems, snapshot.generation(mode),
+				JokeServer.config.reloadPolicy.equals("restart"));
+		Metrics.stateStage.record(System.nanoTime() - stateStart);
+		int cycle = (int) (cursor >>> 32);	//The client's cycle number, see ClientStateStore.advance()
+		int position = (int) cursor;	//The position in the cycle of the first item to send
+		long key = CyclePermutation.key(hi, lo, mode, cycle);
+
+		for (int i = 0; i < count; i++) {
+			int index = CyclePermutation.index(position, numItems, key);
+			boolean lastOfCycle = position == numItems - 1;
+			if (reply.frame >= 0)
+				BinaryProtocol.addItem(corpus, index, lastOfCycle, jokeMode, reply);
+			else if (jokeMode)
+				sendJoke(corpus, index, lastOfCycle, reply);
+			else
+				sendProverb(corpus, index, lastOfCycle, reply);
+
+			//Move to the next position, starting the next cycle with its own permutation after the last one
+			if (lastOfCycle) {
+				Metrics.cycles[mode].increment();
+				position = 0;
+				key = CyclePermutation.key(hi, lo, mode, ++cycle);
+			} else {
+				position++;
+			}
+		}
+		Metrics.requests[mode].increment();
+		Metrics.items[mode].add(count);
+		Metrics.handleStage.record(System.nanoTime() - start);
+	}
+
+	/* Sends clients randomized jokes. The index is the joke's index in the joke corpus, and lastOfCycle is
+	 * true if it is the last joke of the client's cycle, in which case the cycle completion is also sent.
+	 * The reply line is assembled from bytes encoded in advance (see ReplyBuffer.java).
+	 */
+	static void sendJoke(Corpus jokes, int joke, boolean lastOfCycle, ReplyBuffer reply) {
+		
+		//Add customized line (to the reply, and print to console) containing the client's name and joke tag
+		reply.addText(ReplyBuffer.SERVER_TAG);
+		int tagSlot = reply.size();
+		jokes.appendTag(joke, reply);
+		reply.addName();
+		reply.addText(ReplyBuffer.COLON);
+		jokes.appendBody(joke, reply);
+		reply.addText(ReplyBuffer.LINE_END);
+		reply.logSent(true, tagSlot);
+		
+		//If this was the last joke of the cycle, add the cycle completion notification (to the reply, and print to console)
+		if (lastOfCycle) {
+			reply.addText(ReplyBuffer.JOKE_CYCLE);
+			reply.logCycleCompleted(true);
+		}
+	}
+	
+	/* Sends clients randomized proverbs. The index is the proverb's index in the proverb corpus, and lastOfCycle
+	 * is true if it is the last proverb of the client's cycle, in which case the cycle completion is also sent.
+	 * The reply line is assembled from bytes encoded in advance (see ReplyBuffer.java).
+	 */
+	static void sendProverb(Corpus proverbs, int proverb, boolean lastOfCycle, ReplyBuffer reply) {
+		
+		//Add customized line (to the reply, and print to console) containing the client's name and proverb tag
+		reply.addText(ReplyBuffer.SERVER_TAG);
+		int tagSlot = reply.size();
+		proverbs.appendTag(proverb, reply);
+		reply.addName();
+		reply.addText(ReplyBuffer.COLON);
+		proverbs.appendBody(proverb, reply);
+		reply.addText(ReplyBuffer.LINE_END);
+		reply.logSent(false, tagSlot);
+		
+		//If this was the last proverb of the cycle, add the cycle completion notification (to the reply, and print to console)
+		if (lastOfCycle) {
+			reply.addText(ReplyBuffer.PROVERB_CYCLE);
+			reply.logCycleCompleted(false);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/* This file contains the class used by the JokeServer's accept loops to run Worker and AdminWorker requests.
+ * Instead of starting a new thread for every accepted socket, requests are handed to a WorkerExecutor which
+ * runs them on a bounded pool of platform threads, on virtual threads, or on new platform threads, and which
+ * caps how many requests may be worked on at the same time.
+ */
+
+//Import the Java libraries for concurrency and for looking up virtual thread support at runtime
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/* This class runs requests for an accept loop. A semaphore with maxWorkers permits is the cap on concurrent
+ * requests for every execution mode, and the saturation policy decides what dispatch() does when no permit is left.
+ */
+class WorkerExecutor {
+
+	private final String name;	//Used to name the threads, e.g. "worker" or "admin"
+	private final ExecutorService executor;	//Runs the requests, or null if a new thread is started for each request
+	private final Semaphore permits;	//One permit per request that may be worked on at the same time
+	private final String saturation;	//"block", "reject" or "caller", see ServerConfig
+	private final AtomicInteger threadCount = new AtomicInteger();	//Used to number the threads that are created
+	private final AtomicInteger callerRuns = new AtomicInteger();	//Requests running on the calling thread, which hold no permit
+	final String mode;	//The execution mode actually in use, which may differ from the one asked for
+	final int maxWorkers;	//The cap on concurrent requests
+	final LongAdder saturated = new LongAdder();	//Requests dispatched while the cap was reached, see dispatch()
+	final LongAdder rejected = new LongAdder();	//Of those, the requests turned away by saturation=reject
+
+	/* Constructor, takes the execution mode, the cap on concurrent requests, the saturation policy and a
+	 * name for the threads. If virtual threads are asked for but this JVM does not have them, a pool is used.
+	 */
+	WorkerExecutor(String name, String mode, int maxWorkers, String saturation) {
+		this.name = name;
+		this.maxWorkers = maxWorkers;
+		this.permits = new Semaphore(maxWorkers);
+		this.saturation = saturation;
+
+		ExecutorService virtual = null;
+		if (mode.equals("virtual")) {
+			virtual = newVirtualThreadExecutor();
+			if (virtual == null) {
+				System.out.println(JokeServer.serverTag + "Virtual threads are not available, using a pool for " + name + " requests");
+				mode = "pool";
+			}
+		}
+
+		if (mode.equals("virtual"))
+			this.executor = virtual;
+		else if (mode.equals("pool"))
+			this.executor = Executors.newFixedThreadPool(maxWorkers, platformThreads());
+		else
+			this.executor = null;
+		this.mode = mode;
+	}
+
+	/* Hands a request to a worker. If the cap on concurrent requests has been reached, the saturation policy
+	 * is applied: "block" waits for a permit, "reject" returns false without running the request (the caller
+	 * should then close the connection), and "caller" runs the request on the calling thread.
+	 */
+	boolean dispatch(Runnable request) throws InterruptedException {
+		return dispatch(request, request);
+	}
+
+	/* Same as above, but with saturation=caller runs 'onCaller' instead of the request. While it runs the calling
+	 * thread does not accept connections, so it should be a shorter version of the request: for a Worker, one
+	 * request and not a whole keep-alive session.
+	 */
+	boolean dispatch(final Runnable request, Runnable onCaller) throws InterruptedException {
+		if (!permits.tryAcquire()) {
+			saturated.increment();	//New connections now wait in, or overflow, the listen backlog
+			if (saturation.equals("reject")) {
+				rejected.increment();
+				return false;
+			} else if (saturation.equals("caller")) {
+				callerRuns.incrementAndGet();
+				try {
+					onCaller.run();
+				} finally {
+					callerRuns.decrementAndGet();
+				}
+				return true;
+			}
+			permits.acquire();
+		}
+
+		//The permit is released when the request finishes, whether or not it throws
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					request.run();
+				} finally {
+					permits.release();
+				}
+			}
+		};
+
+		try {
+			if (executor != null)
+				executor.execute(task);
+			else
+				platformThreads().newThread(task).start();
+		} catch (RuntimeException re) {
+			permits.release();
+			throw re;
+		}
+		return true;
+	}
+
+	//Returns the number of requests being worked on, including those run by the calling thread
+	int active() {
+		return maxWorkers - permits.availablePermits() + callerRuns.get();
+	}
+
+	//Stops accepting new requests. Requests that are already running are allowed to finish
+	void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	//Returns a ThreadFactory creating platform threads named after this executor, e.g. "worker-12"
+	private ThreadFactory platformThreads() {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + threadCount.incrementAndGet());
+			}
+		};
+	}
+
+	/* Returns Executors.newVirtualThreadPerTaskExecutor() if this JVM has it (Java 21 and later), otherwise null.
+	 * The method is looked up at runtime so the server still compiles and runs on older JVMs.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			return null;
+		}
+	}
+}